@@ -0,0 +1,57 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+/**
+ *
+ * A {@link PasswordHasher} with an adjustable work factor. The work factor of
+ * such a hasher can be calibrated against
+ * {@link MongoConfiguration#PASSWORD_LATENCY_BUDGET} and stored hashes of a
+ * lower work factor are rehashed on login.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public interface AdjustablePasswordHasher extends PasswordHasher {
+
+	/**
+	 * @return the work factor of new hashes
+	 */
+	public int getCost();
+
+	/**
+	 * @param storedHash
+	 *            a value for which {@link #isHash(String)} is true
+	 * 
+	 * @return the work factor the hash was created with, -1 if it cannot be
+	 *         determined
+	 */
+	public int getCost(String storedHash);
+
+	/**
+	 * @param factor
+	 *            how many times longer a hash should take
+	 * 
+	 * @return a hasher whose hashes take about the given factor longer to
+	 *         compute, limited to the range supported by the hasher
+	 */
+	public AdjustablePasswordHasher withScaledCost(double factor);
+
+}
@@ -0,0 +1,85 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *
+ * The non blocking variant of the {@link UserDetailService}. Each operation
+ * returns right away and completes the returned future once the mongo
+ * database answered, so that a caller can have many lookups in flight without
+ * holding a thread for each of them.
+ * 
+ * A custom {@link UserDetailService} that also implements this interface is
+ * used as is, any other service is adapted by running its blocking calls on a
+ * bounded pool of threads.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public interface AsyncUserDetailService {
+
+	public MongoConfiguration getConfiguration();
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * 
+	 * @return a future of the user info from the mongo source, completed with
+	 *         <code>null</code> if the user does not exist
+	 */
+	public CompletableFuture<UserInfo> getUserInfoAsync(String username);
+
+	public CompletableFuture<List<String>> getUserNamesAsync();
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * 
+	 * @return a future of the role names of the user, empty if the user does
+	 *         not exist
+	 */
+	public CompletableFuture<List<String>> getRolesAsync(String username);
+
+	public CompletableFuture<UserInfo> addUserAsync(UserInfo user);
+
+	public CompletableFuture<UserInfo> updateUserAsync(UserInfo user);
+
+	public CompletableFuture<Void> deleteUserAsync(String username);
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * @param expectedHash
+	 *            the hash the password was verified against
+	 * @param newHash
+	 *            the hash to store
+	 * 
+	 * @return a future completed with false if the hash was not replaced, see
+	 *         {@link UserDetailService#updatePasswordHash(String, String, String)}
+	 */
+	public default CompletableFuture<Boolean> updatePasswordHashAsync(
+			String username, String expectedHash, String newHash) {
+		return CompletableFuture.completedFuture(false);
+	}
+
+}
@@ -19,16 +19,25 @@
  */
 package org.apache.karaf.jaas.modules.mongo;
 
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.jaas.modules.mongo.internal.RoleDictionary;
 
 /**
  * 
  * A user principal that can carry additional attributes as populated in the
  * underlying mongo datastore.
  * 
+ * It also carries the roles of the user as a set of interned role ids, so
+ * {@link #hasRole(String)} answers in constant time instead of scanning the
+ * principals of the subject.
+ * 
  * @author Niels Bertram
  *
  */
@@ -36,6 +45,19 @@ public class ExtendedUserPrincipal extends UserPrincipal {
 
 	Map<String, String> properties = new HashMap<String, String>();
 
+	private BitSet roles = new BitSet();
+
+	/**
+	 * The dictionary the role ids were interned in, it is replaced when the
+	 * bundle restarts while the subject is still logged in.
+	 */
+	private RoleDictionary dictionary = RoleDictionary.getInstance();
+
+	/**
+	 * The roles that could not be interned.
+	 */
+	private Set<String> overflowRoles;
+
 	public ExtendedUserPrincipal(String name) {
 		super(name);
 	}
@@ -52,4 +74,35 @@ public class ExtendedUserPrincipal extends UserPrincipal {
 		this.properties.put(key, value);
 	}
 
+	/**
+	 * @param role
+	 *            the role name
+	 * 
+	 * @return true if the user holds the role
+	 */
+	public boolean hasRole(String role) {
+		int id = dictionary.getId(role);
+		if (id >= 0) {
+			return roles.get(id);
+		}
+		return overflowRoles != null && overflowRoles.contains(role);
+	}
+
+	void setRoles(Collection<String> roles) {
+		RoleDictionary dictionary = RoleDictionary.getInstance();
+		this.dictionary = dictionary;
+		this.roles = dictionary.toBitSet(roles);
+		// only set if the dictionary is full
+		Set<String> overflow = null;
+		for (String role : roles) {
+			if (dictionary.getId(role) < 0) {
+				if (overflow == null) {
+					overflow = new HashSet<String>();
+				}
+				overflow.add(role);
+			}
+		}
+		this.overflowRoles = overflow;
+	}
+
 }
@@ -19,13 +19,27 @@
  */
 package org.apache.karaf.jaas.modules.mongo;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.karaf.jaas.boot.principal.RolePrincipal;
 import org.apache.karaf.jaas.boot.principal.UserPrincipal;
 import org.apache.karaf.jaas.modules.BackingEngine;
 import org.apache.karaf.jaas.modules.mongo.internal.DefaultUserDetailService;
+import org.apache.karaf.jaas.modules.mongo.internal.NegativeLookupCache;
+import org.apache.karaf.jaas.modules.mongo.internal.PageIterator;
+import org.apache.karaf.jaas.modules.mongo.internal.UserDetailServiceRegistry;
+import org.apache.karaf.jaas.modules.mongo.internal.UserInfoCache;
+import org.apache.karaf.jaas.modules.mongo.internal.UserPrincipalList;
+import org.apache.karaf.jaas.modules.mongo.internal.VerifiedCredentialMemo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +57,8 @@ public class MongoBackingEngine implements BackingEngine {
 
 	UserDetailService service;
 
+	AsyncUserDetailService asyncService;
+
 	public MongoBackingEngine() {
 		log.error("Cant call default constructor, use factory");
 	}
@@ -50,17 +66,27 @@ public class MongoBackingEngine implements BackingEngine {
 	public MongoBackingEngine(MongoConfiguration configuration) {
 		// we just assume the default implementation will do here
 		this.service = new DefaultUserDetailService(configuration);
+		// the lookups fanned out by listRoles share one pool per store
+		this.asyncService = UserDetailServiceRegistry.getAsyncService(service);
 	}
 
 	@Override
 	public void addUser(String username, String password) {
-		log.info("add {}:{}", username, password);
+		log.info("add {}", username);
+
+		// only the hash of the password is stored
+		PasswordHasher hasher = service.getConfiguration().getPasswordHasher();
+		if (hasher != null && password != null && !hasher.isHash(password)) {
+			password = hasher.hash(password);
+		}
 
 		UserInfo userInfo = new UserInfo(username, password);
 		try {
 			service.addUser(userInfo);
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			invalidate(username);
 		}
 
 	}
@@ -73,6 +99,8 @@ public class MongoBackingEngine implements BackingEngine {
 			service.deleteUser(username);
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			invalidate(username);
 		}
 
 	}
@@ -81,35 +109,119 @@ public class MongoBackingEngine implements BackingEngine {
 	public List<UserPrincipal> listUsers() {
 		log.debug("list users");
 
-		try {
-			List<String> usernames = service.getUserNames();
-			List<UserPrincipal> users = new LinkedList<UserPrincipal>();
-
-			for (String username : usernames) {
-				users.add(new UserPrincipal(username));
+		// read from the mongo database as the list is iterated
+		return new UserPrincipalList(new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				try {
+					return service.iterateUserNames();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e.getMessage(), e);
+				}
 			}
+		});
+
+	}
 
-			return users;
+	/**
+	 * Lists the users holding a role one page at a time.
+	 * 
+	 * @param role
+	 *            the role name
+	 * @param cursor
+	 *            the cursor of the previous page or <code>null</code> for the
+	 *            first page
+	 * @param limit
+	 *            the maximum number of user names returned, at least 1
+	 * 
+	 * @return the user names holding the role
+	 */
+	public Page<String> listUsersInRole(String role, String cursor, int limit) {
+		log.debug("list users in role {}", role);
+
+		try {
+			return service.listUsersInRole(role, cursor, limit);
+		} catch (RuntimeException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
 		}
 
 	}
 
+	/**
+	 * Lists all users holding a role, the users are read page by page as the
+	 * list is iterated.
+	 * 
+	 * @param role
+	 *            the role name
+	 * 
+	 * @return the users holding the role
+	 */
+	public List<UserPrincipal> listUsersInRole(final String role) {
+
+		final int pageSize = service.getConfiguration().getUserListBatchSize();
+
+		return new UserPrincipalList(new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new PageIterator<String>() {
+					@Override
+					protected Page<String> fetch(String cursor) {
+						return listUsersInRole(role, cursor, pageSize);
+					}
+				};
+			}
+		});
+
+	}
+
 	@Override
 	public List<RolePrincipal> listRoles(UserPrincipal user) {
 		log.debug("list roles for {}", user.getName());
 
+		return listRoles(Collections.singletonList(user)).get(user.getName());
+
+	}
+
+	/**
+	 * Lists the roles of many users at once. The lookups are sent to the
+	 * mongo database concurrently rather than one after the other.
+	 * 
+	 * @param users
+	 *            the users to list the roles of
+	 * 
+	 * @return the roles by username, empty for a user that does not exist
+	 */
+	public Map<String, List<RolePrincipal>> listRoles(
+			Collection<UserPrincipal> users) {
+
+		Map<String, CompletableFuture<List<String>>> lookups = new LinkedHashMap<String, CompletableFuture<List<String>>>();
+
+		for (UserPrincipal user : users) {
+			lookups.put(user.getName(),
+					asyncService.getRolesAsync(user.getName()));
+		}
+
+		Map<String, List<RolePrincipal>> result = new LinkedHashMap<String, List<RolePrincipal>>();
+
 		try {
 
-			UserInfo userInfo = service.getUserInfo(user.getName());
-			List<RolePrincipal> roles = new LinkedList<RolePrincipal>();
+			for (Map.Entry<String, CompletableFuture<List<String>>> lookup : lookups
+					.entrySet()) {
 
-			for (String group : userInfo.getGroups()) {
-				roles.add(new RolePrincipal(group));
+				List<RolePrincipal> roles = new LinkedList<RolePrincipal>();
+
+				for (String group : await(lookup.getKey(), lookup.getValue())) {
+					roles.add(new RolePrincipal(group));
+				}
+
+				result.put(lookup.getKey(), roles);
 			}
 
-			return roles;
+			return result;
 
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
@@ -117,26 +229,42 @@ public class MongoBackingEngine implements BackingEngine {
 
 	}
 
+	/**
+	 * Waits for a roles lookup, a lookup rejected because too many are
+	 * pending is run on the calling thread instead.
+	 */
+	private List<String> await(String username,
+			CompletableFuture<List<String>> lookup) throws Exception {
+
+		try {
+			return lookup.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RejectedExecutionException) {
+				return service.getRoles(username);
+			}
+			throw e.getCause() instanceof Exception ? (Exception) e
+					.getCause() : e;
+		}
+
+	}
+
 	@Override
 	public void addRole(String username, String role) {
 		log.debug("add role {} to {}", role, username);
 
 		try {
 
-			// first see if user exists
-			UserInfo userInfo = service.getUserInfo(username);
-			if (userInfo == null) {
+			if (!service.addRole(username, role)) {
 				throw new RuntimeException("User [" + username
 						+ "] does not exist.");
 			}
 
-			userInfo.getGroups().add(role);
-			service.updateUser(userInfo);
-
 		} catch (RuntimeException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			invalidate(username);
 		}
 
 	}
@@ -146,21 +274,86 @@ public class MongoBackingEngine implements BackingEngine {
 		log.debug("delete role {} from {}", role, username);
 
 		try {
-			// first see if user exists
-			UserInfo userInfo = service.getUserInfo(username);
-			if (userInfo == null) {
+			if (!service.removeRole(username, role)) {
 				throw new RuntimeException("User [" + username
 						+ "] does not exist.");
 			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			invalidate(username);
+		}
+
+	}
 
-			userInfo.getGroups().remove(role);
-			service.updateUser(userInfo);
+	/**
+	 * Nests a group in another group, the members of the child group and of
+	 * all groups nested in it gain the roles of the parent group and of all
+	 * groups it is nested in. Requires {@link MongoConfiguration#GROUPS_NESTED}
+	 * to be enabled for the login modules to resolve the inherited roles.
+	 * 
+	 * @param parent
+	 *            the group to nest into
+	 * @param child
+	 *            the group to nest
+	 */
+	public void addNestedGroup(String parent, String child) {
+		log.debug("nest group {} in {}", child, parent);
+
+		try {
+			service.addNestedGroup(parent, child);
 		} catch (RuntimeException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			// any number of users may have gained roles
+			UserInfoCache.invalidateAll(service.getConfiguration());
 		}
 
 	}
 
+	/**
+	 * Removes a nested group from a group.
+	 * 
+	 * @param parent
+	 *            the group the child is nested in
+	 * @param child
+	 *            the nested group
+	 */
+	public void removeNestedGroup(String parent, String child) {
+		log.debug("remove nested group {} from {}", child, parent);
+
+		try {
+			service.removeNestedGroup(parent, child);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			// any number of users may have lost roles
+			UserInfoCache.invalidateAll(service.getConfiguration());
+		}
+
+	}
+
+	/**
+	 * Ensures the login modules do not authenticate a modified user from
+	 * their cache nor reject a new user as unknown.
+	 * 
+	 * @param username
+	 *            the user that was modified
+	 */
+	private void invalidate(String username) {
+		invalidate(service.getConfiguration(), username);
+	}
+
+	static void invalidate(MongoConfiguration configuration, String username) {
+		UserInfoCache.invalidate(configuration, username);
+		NegativeLookupCache.invalidate(configuration, username);
+		VerifiedCredentialMemo.invalidate(configuration, username);
+	}
+
 }
@@ -24,6 +24,8 @@ import java.util.Map;
 import org.apache.karaf.jaas.modules.BackingEngine;
 import org.apache.karaf.jaas.modules.BackingEngineFactory;
 
+import com.mongodb.ReadPreference;
+
 /**
  * 
  * The backing engine for the {@link MongoLoginModule}.
@@ -46,7 +48,10 @@ public class MongoBackingEngineFactory implements BackingEngineFactory {
 				null, options);
 
 		try {
-			BackingEngine engine = new MongoBackingEngine(confBuilder.build());
+			MongoConfiguration configuration = confBuilder.build();
+			// administration must see its own changes
+			configuration.setReadPreference(ReadPreference.primary());
+			BackingEngine engine = new MongoBackingEngine(configuration);
 			return engine;
 		} catch (ConfigurationException e) {
 			throw new RuntimeException(
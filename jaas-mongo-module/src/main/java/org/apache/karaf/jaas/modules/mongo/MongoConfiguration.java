@@ -22,6 +22,9 @@ package org.apache.karaf.jaas.modules.mongo;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+
 /**
  * 
  * The holder for prepared mongodb configuration that can be supplied to the
@@ -62,8 +65,262 @@ public class MongoConfiguration {
 	 */
 	public static final String USER_ADDITIONAL_ATTRIBUTES = "mongo.user.attributes";
 
+	/**
+	 * If set to <code>true</code> the role names of a user are also kept as an
+	 * array on the user document, so that a login only needs to fetch the
+	 * user document. The groups collection is still maintained by the
+	 * {@link MongoBackingEngine}. Default is <code>false</code>.
+	 */
+	public static final String USER_ROLES_EMBEDDED = "mongo.user.roles.embedded";
+
+	/**
+	 * The name of the user document attribute holding the role names if
+	 * {@link #USER_ROLES_EMBEDDED} is enabled, default is
+	 * {@link #DEFAULT_USER_ROLES_ATTRIBUTE}.
+	 */
+	public static final String USER_ROLES_ATTRIBUTE = "mongo.user.roles.attribute";
+
+	/**
+	 * The number of seconds a successfully authenticated user is kept in the
+	 * login cache before the user and its groups are looked up in the mongo
+	 * database again. The cache is disabled unless this is greater than 0.
+	 */
+	public static final String USER_CACHE_TTL = "mongo.user.cache.ttl";
+
+	/**
+	 * The maximum number of users held in the login cache, default is
+	 * {@link #DEFAULT_USER_CACHE_SIZE}.
+	 */
+	public static final String USER_CACHE_SIZE = "mongo.user.cache.size";
+
+	/**
+	 * The number of seconds a username that does not exist in the users
+	 * collection is remembered, so that repeated logins with that username do
+	 * not query the mongo database. Disabled unless greater than 0.
+	 */
+	public static final String NEGATIVE_CACHE_TTL = "mongo.user.negative.cache.ttl";
+
+	/**
+	 * The maximum number of unknown usernames remembered, default is
+	 * {@link #DEFAULT_NEGATIVE_CACHE_SIZE}.
+	 */
+	public static final String NEGATIVE_CACHE_SIZE = "mongo.user.negative.cache.size";
+
+	/**
+	 * The maximum number of connections per mongo server, drivers default is
+	 * 100. Should at least match the number of concurrent logins.
+	 */
+	public static final String CLIENT_CONNECTIONS_PER_HOST = "mongo.client.connections.per.host";
+
+	/**
+	 * The minimum number of connections kept open per mongo server.
+	 */
+	public static final String CLIENT_MIN_CONNECTIONS_PER_HOST = "mongo.client.min.connections.per.host";
+
+	/**
+	 * Multiplied with {@link #CLIENT_CONNECTIONS_PER_HOST} gives the number of
+	 * threads that may wait for a connection, further threads fail right
+	 * away.
+	 */
+	public static final String CLIENT_THREADS_ALLOWED_TO_BLOCK = "mongo.client.threads.allowed.to.block.multiplier";
+
+	/**
+	 * The maximum number of milliseconds a login waits for a connection of a
+	 * saturated pool.
+	 */
+	public static final String CLIENT_MAX_WAIT_TIME = "mongo.client.max.wait.time";
+
+	/**
+	 * The connect timeout in milliseconds, 0 waits forever.
+	 */
+	public static final String CLIENT_CONNECT_TIMEOUT = "mongo.client.connect.timeout";
+
+	/**
+	 * The socket read timeout in milliseconds, 0 waits forever.
+	 */
+	public static final String CLIENT_SOCKET_TIMEOUT = "mongo.client.socket.timeout";
+
+	/**
+	 * If set to <code>true</code> TCP keep-alive is enabled on the sockets.
+	 */
+	public static final String CLIENT_SOCKET_KEEP_ALIVE = "mongo.client.socket.keep.alive";
+
+	/**
+	 * The number of milliseconds a pooled connection may be idle before it is
+	 * closed, 0 for no limit.
+	 */
+	public static final String CLIENT_MAX_CONNECTION_IDLE_TIME = "mongo.client.max.connection.idle.time";
+
+	/**
+	 * The number of milliseconds a pooled connection may live before it is
+	 * closed, 0 for no limit.
+	 */
+	public static final String CLIENT_MAX_CONNECTION_LIFE_TIME = "mongo.client.max.connection.life.time";
+
+	/**
+	 * The name of the replica set the mongo servers must belong to.
+	 */
+	public static final String CLIENT_REQUIRED_REPLICA_SET_NAME = "mongo.client.required.replica.set.name";
+
+	/**
+	 * The read preference of the lookups made by a login, one of
+	 * <code>primary</code>, <code>primaryPreferred</code>,
+	 * <code>secondary</code>, <code>secondaryPreferred</code> or
+	 * <code>nearest</code>. Default is <code>primary</code>. Changes made via
+	 * the {@link MongoBackingEngine} always read from and write to the
+	 * primary.
+	 */
+	public static final String READ_PREFERENCE = "mongo.read.preference";
+
+	/**
+	 * The tag sets that select the members for {@link #READ_PREFERENCE}, the
+	 * sets are separated by a semicolon and are tried in order, the tags of a
+	 * set are separated by a comma e.g. <code>dc:east,use:auth;dc:east</code>.
+	 * Not allowed with <code>primary</code>.
+	 */
+	public static final String READ_PREFERENCE_TAGS = "mongo.read.preference.tags";
+
+	/**
+	 * If set to <code>true</code> a user that is not found on a secondary is
+	 * looked up on the primary again, so that a user that was just added and
+	 * not yet replicated can log in. Default is <code>true</code>.
+	 */
+	public static final String READ_PRIMARY_FALLBACK = "mongo.read.primary.fallback";
+
+	/**
+	 * The maximum number of threads that run the lookups of the
+	 * {@link AsyncUserDetailService} adapter, default is
+	 * {@link #DEFAULT_ASYNC_THREADS}. Should not exceed
+	 * {@link #CLIENT_CONNECTIONS_PER_HOST}.
+	 */
+	public static final String ASYNC_THREADS = "mongo.async.threads";
+
+	/**
+	 * The maximum number of lookups waiting for a thread, further lookups are
+	 * rejected. Default is {@link #DEFAULT_ASYNC_QUEUE_SIZE}.
+	 */
+	public static final String ASYNC_QUEUE_SIZE = "mongo.async.queue.size";
+
+	/**
+	 * The hasher of the stored passwords, either <code>pbkdf2</code>,
+	 * <code>none</code> to store plain text passwords or the class name of a
+	 * custom {@link PasswordHasher}. Default is <code>pbkdf2</code>. Stored
+	 * passwords that were not created by the hasher are compared as plain
+	 * text, so existing users can still log in.
+	 */
+	public static final String PASSWORD_HASHER = "mongo.password.hasher";
+
+	/**
+	 * The number of PBKDF2 iterations of new password hashes, default is
+	 * {@link #DEFAULT_PBKDF2_ITERATIONS}.
+	 */
+	public static final String PASSWORD_PBKDF2_ITERATIONS = "mongo.password.pbkdf2.iterations";
+
+	/**
+	 * The number of milliseconds a single password hash may take. If set the
+	 * cost of an {@link AdjustablePasswordHasher} is calibrated to the
+	 * highest value that fits the budget on this machine. The calibration
+	 * runs in the background when the configuration is first built, until it
+	 * finishes the configured cost is used. Ignored if the cost is pinned with
+	 * {@link #PASSWORD_PBKDF2_ITERATIONS}, which keeps the cost the same on
+	 * all machines. Disabled unless greater than 0.
+	 */
+	public static final String PASSWORD_LATENCY_BUDGET = "mongo.password.latency.budget";
+
+	/**
+	 * If set to <code>true</code> a stored hash whose cost is below the cost
+	 * of the {@link AdjustablePasswordHasher} is replaced on successful login,
+	 * a hash is never downgraded. Default is <code>true</code>.
+	 */
+	public static final String PASSWORD_REHASH = "mongo.password.rehash";
+
+	/**
+	 * The number of seconds a successful password verification is remembered,
+	 * so that repeated logins with the same password do not repeat the key
+	 * derivation. The memo is bypassed as soon as the stored hash changes.
+	 * Disabled unless greater than 0.
+	 */
+	public static final String PASSWORD_MEMO_TTL = "mongo.password.memo.ttl";
+
+	/**
+	 * The maximum number of remembered verifications, default is
+	 * {@link #DEFAULT_PASSWORD_MEMO_SIZE}.
+	 */
+	public static final String PASSWORD_MEMO_SIZE = "mongo.password.memo.size";
+
+	/**
+	 * The maximum number of threads verifying password hashes, default is the
+	 * number of processors.
+	 */
+	public static final String PASSWORD_THREADS = "mongo.password.threads";
+
+	/**
+	 * The maximum number of password verifications waiting for a thread,
+	 * further logins are rejected. Default is
+	 * {@link #DEFAULT_PASSWORD_QUEUE_SIZE}.
+	 */
+	public static final String PASSWORD_QUEUE_SIZE = "mongo.password.queue.size";
+
+	/**
+	 * If set to <code>true</code> the indexes on the user name, the group
+	 * members and the group name are created the first time the mongo users
+	 * store is used. A failed creation is retried up to three times. Default
+	 * is <code>false</code>, the indexes are expected to be created with the
+	 * collections.
+	 */
+	public static final String INDEX_PROVISION = "mongo.index.provision";
+
+	/**
+	 * If set to <code>true</code> a warning with the query plan is logged if
+	 * a login query does not use an index. Default is <code>false</code>.
+	 */
+	public static final String INDEX_VERIFY = "mongo.index.verify";
+
+	/**
+	 * If set to <code>true</code> the user lookup is answered from a compound
+	 * index of the user name and the password hash without reading the user
+	 * document. The index is created if {@link #INDEX_PROVISION} is enabled,
+	 * until it exists the lookup reads the document. Not applied to users with
+	 * {@link #USER_ADDITIONAL_ATTRIBUTES} or embedded roles. Default is
+	 * <code>false</code>.
+	 */
+	public static final String USER_LOOKUP_COVERED = "mongo.user.lookup.covered";
+
+	/**
+	 * The number of user names read from the mongo database at a time when
+	 * users are listed, default is {@link #DEFAULT_USER_LIST_BATCH_SIZE}.
+	 */
+	public static final String USER_LIST_BATCH_SIZE = "mongo.user.list.batch.size";
+
+	/**
+	 * If set to <code>true</code> groups may be nested in other groups and a
+	 * user holds the roles of all groups its groups are nested in. The nesting
+	 * is maintained through the {@link MongoBackingEngine}. Default is
+	 * <code>false</code>.
+	 */
+	public static final String GROUPS_NESTED = "mongo.group.nested";
+
 	public static final String DEFAULT_USER_COLLECTION = "users";
 	public static final String DEFAULT_GROUP_COLLECTION = "groups";
+	public static final String DEFAULT_USER_ROLES_ATTRIBUTE = "roles";
+
+	public static final int DEFAULT_USER_CACHE_TTL = 0;
+	public static final int DEFAULT_USER_CACHE_SIZE = 1000;
+
+	public static final int DEFAULT_NEGATIVE_CACHE_TTL = 0;
+	public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 10000;
+
+	public static final int DEFAULT_ASYNC_THREADS = 16;
+	public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+	public static final String PASSWORD_HASHER_PBKDF2 = "pbkdf2";
+	public static final String PASSWORD_HASHER_NONE = "none";
+	public static final int DEFAULT_PBKDF2_ITERATIONS = 100000;
+	public static final int DEFAULT_PASSWORD_QUEUE_SIZE = 100;
+	public static final int DEFAULT_PASSWORD_LATENCY_BUDGET = 0;
+	public static final int DEFAULT_USER_LIST_BATCH_SIZE = 1000;
+	public static final int DEFAULT_PASSWORD_MEMO_TTL = 0;
+	public static final int DEFAULT_PASSWORD_MEMO_SIZE = 10000;
 
 	/**
 	 * Extended Configuration <br/>
@@ -85,6 +342,55 @@ public class MongoConfiguration {
 
 	private List<String> additionalAttributes = new ArrayList<String>();
 
+	private boolean userRolesEmbedded = false;
+
+	private String userRolesAttribute = DEFAULT_USER_ROLES_ATTRIBUTE;
+
+	private int userCacheTimeToLive = DEFAULT_USER_CACHE_TTL;
+
+	private int userCacheSize = DEFAULT_USER_CACHE_SIZE;
+
+	private int negativeCacheTimeToLive = DEFAULT_NEGATIVE_CACHE_TTL;
+
+	private int negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+
+	private int asyncThreads = DEFAULT_ASYNC_THREADS;
+
+	private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+
+
+	// replaced by the calibrated hasher while logins read it
+	private volatile PasswordHasher passwordHasher;
+
+	private boolean passwordRehash = true;
+
+	private volatile boolean passwordCostCalibrated;
+
+	private boolean indexProvision = false;
+
+	private boolean indexVerify = false;
+
+	private boolean userLookupCovered = false;
+
+	private int userListBatchSize = DEFAULT_USER_LIST_BATCH_SIZE;
+
+	private boolean groupsNested = false;
+
+	private int passwordMemoTimeToLive = DEFAULT_PASSWORD_MEMO_TTL;
+
+	private int passwordMemoSize = DEFAULT_PASSWORD_MEMO_SIZE;
+
+	private int passwordThreads = Runtime.getRuntime().availableProcessors();
+
+	private int passwordQueueSize = DEFAULT_PASSWORD_QUEUE_SIZE;
+
+	private ReadPreference readPreference = ReadPreference.primary();
+
+	private boolean readPrimaryFallback = true;
+
+	private MongoClientOptions clientOptions = MongoClientOptions.builder()
+			.build();
+
 	public String getDatabaseName() {
 		return dbName;
 	}
@@ -134,4 +440,248 @@ public class MongoConfiguration {
 		this.additionalAttributes.addAll(additionalAttributes);
 	}
 
+	public boolean isUserRolesEmbedded() {
+		return userRolesEmbedded;
+	}
+
+	public void setUserRolesEmbedded(boolean userRolesEmbedded) {
+		this.userRolesEmbedded = userRolesEmbedded;
+	}
+
+	public String getUserRolesAttribute() {
+		return userRolesAttribute;
+	}
+
+	public void setUserRolesAttribute(String userRolesAttribute) {
+		this.userRolesAttribute = userRolesAttribute;
+	}
+
+	public boolean isUserCacheEnabled() {
+		return userCacheTimeToLive > 0 && userCacheSize > 0;
+	}
+
+	/**
+	 * @return the time-to-live of a cached user (seconds)
+	 */
+	public int getUserCacheTimeToLive() {
+		return userCacheTimeToLive;
+	}
+
+	public void setUserCacheTimeToLive(int userCacheTimeToLive) {
+		this.userCacheTimeToLive = userCacheTimeToLive;
+	}
+
+	public int getUserCacheSize() {
+		return userCacheSize;
+	}
+
+	public void setUserCacheSize(int userCacheSize) {
+		this.userCacheSize = userCacheSize;
+	}
+
+	public boolean isNegativeCacheEnabled() {
+		return negativeCacheTimeToLive > 0 && negativeCacheSize > 0;
+	}
+
+	/**
+	 * @return the time-to-live of a cached unknown username (seconds)
+	 */
+	public int getNegativeCacheTimeToLive() {
+		return negativeCacheTimeToLive;
+	}
+
+	public void setNegativeCacheTimeToLive(int negativeCacheTimeToLive) {
+		this.negativeCacheTimeToLive = negativeCacheTimeToLive;
+	}
+
+	public int getNegativeCacheSize() {
+		return negativeCacheSize;
+	}
+
+	public void setNegativeCacheSize(int negativeCacheSize) {
+		this.negativeCacheSize = negativeCacheSize;
+	}
+
+	/**
+	 * @return the options of the mongo clients created for this configuration
+	 */
+	public MongoClientOptions getClientOptions() {
+		return clientOptions;
+	}
+
+	public void setClientOptions(MongoClientOptions clientOptions) {
+		this.clientOptions = clientOptions;
+	}
+
+	/**
+	 * @return the read preference of the lookups made by a login
+	 */
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+
+	public void setReadPreference(ReadPreference readPreference) {
+		this.readPreference = readPreference;
+	}
+
+	/**
+	 * @return true if a user that is not found on a secondary is looked up on
+	 *         the primary again
+	 */
+	public boolean isReadPrimaryFallback() {
+		return readPrimaryFallback;
+	}
+
+	public void setReadPrimaryFallback(boolean readPrimaryFallback) {
+		this.readPrimaryFallback = readPrimaryFallback;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	/**
+	 * @return the hasher of the stored passwords or <code>null</code> if
+	 *         passwords are stored as plain text
+	 */
+	public PasswordHasher getPasswordHasher() {
+		return passwordHasher;
+	}
+
+	public void setPasswordHasher(PasswordHasher passwordHasher) {
+		this.passwordHasher = passwordHasher;
+	}
+
+	public int getPasswordThreads() {
+		return passwordThreads;
+	}
+
+	public void setPasswordThreads(int passwordThreads) {
+		this.passwordThreads = passwordThreads;
+	}
+
+	public int getPasswordQueueSize() {
+		return passwordQueueSize;
+	}
+
+	public void setPasswordQueueSize(int passwordQueueSize) {
+		this.passwordQueueSize = passwordQueueSize;
+	}
+
+	/**
+	 * @return true if stored hashes of a lower cost are replaced on login
+	 */
+	public boolean isPasswordRehash() {
+		return passwordRehash;
+	}
+
+	public void setPasswordRehash(boolean passwordRehash) {
+		this.passwordRehash = passwordRehash;
+	}
+
+	/**
+	 * @return true if the cost of the password hasher was calibrated on this
+	 *         machine rather than pinned in the configuration
+	 */
+	public boolean isPasswordCostCalibrated() {
+		return passwordCostCalibrated;
+	}
+
+	public void setPasswordCostCalibrated(boolean passwordCostCalibrated) {
+		this.passwordCostCalibrated = passwordCostCalibrated;
+	}
+
+	/**
+	 * @return true if successful password verifications are remembered
+	 */
+	public boolean isPasswordMemoEnabled() {
+		return passwordMemoTimeToLive > 0 && passwordMemoSize > 0;
+	}
+
+	/**
+	 * @return the time a successful verification is remembered (seconds)
+	 */
+	public int getPasswordMemoTimeToLive() {
+		return passwordMemoTimeToLive;
+	}
+
+	public void setPasswordMemoTimeToLive(int passwordMemoTimeToLive) {
+		this.passwordMemoTimeToLive = passwordMemoTimeToLive;
+	}
+
+	public int getPasswordMemoSize() {
+		return passwordMemoSize;
+	}
+
+	public void setPasswordMemoSize(int passwordMemoSize) {
+		this.passwordMemoSize = passwordMemoSize;
+	}
+
+	/**
+	 * @return true if the indexes required by the lookups are created
+	 */
+	public boolean isIndexProvision() {
+		return indexProvision;
+	}
+
+	public void setIndexProvision(boolean indexProvision) {
+		this.indexProvision = indexProvision;
+	}
+
+	/**
+	 * @return true if the query plans of the lookups are verified
+	 */
+	public boolean isIndexVerify() {
+		return indexVerify;
+	}
+
+	public void setIndexVerify(boolean indexVerify) {
+		this.indexVerify = indexVerify;
+	}
+
+	/**
+	 * @return true if the user lookup is answered from an index alone
+	 */
+	public boolean isUserLookupCovered() {
+		return userLookupCovered;
+	}
+
+	public void setUserLookupCovered(boolean userLookupCovered) {
+		this.userLookupCovered = userLookupCovered;
+	}
+
+	/**
+	 * @return the number of user names read at a time when listing users
+	 */
+	public int getUserListBatchSize() {
+		return userListBatchSize;
+	}
+
+	public void setUserListBatchSize(int userListBatchSize) {
+		this.userListBatchSize = userListBatchSize;
+	}
+
+	/**
+	 * @return true if the effective roles of nested groups are resolved
+	 */
+	public boolean isGroupsNested() {
+		return groupsNested;
+	}
+
+	public void setGroupsNested(boolean groupsNested) {
+		this.groupsNested = groupsNested;
+	}
+
 }
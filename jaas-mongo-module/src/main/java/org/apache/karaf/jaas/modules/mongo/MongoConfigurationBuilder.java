@@ -26,10 +26,19 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.osgi.framework.BundleContext;
 
 import org.apache.karaf.jaas.modules.mongo.internal.DefaultUserDetailService;
+import org.apache.karaf.jaas.modules.mongo.internal.PasswordHasherCalibrator;
+import org.apache.karaf.jaas.modules.mongo.internal.Pbkdf2PasswordHasher;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
 
 /**
  * 
@@ -80,7 +89,7 @@ public class MongoConfigurationBuilder {
 					"Mongo library is not accessible by this login module.", e);
 		}
 
-		MongoConfiguration conf = new MongoConfiguration();
+		final MongoConfiguration conf = new MongoConfiguration();
 
 		String datasourceURL = (String) options
 				.get(MongoConfiguration.DATASOURCE);
@@ -110,9 +119,12 @@ public class MongoConfigurationBuilder {
 			// TODO test this ... uh, ah lets see if we can load it from bundle
 			// context
 			try {
-				Class<? extends UserDetailService> clazz = (Class<UserDetailService>) bundleContext
+				// the backing engine factory has no bundle context
+				Class<? extends UserDetailService> clazz = (Class<UserDetailService>) (bundleContext != null ? bundleContext
 						.getBundle().loadClass(
-								userSourceImplementationClassName);
+								userSourceImplementationClassName)
+						: getClass().getClassLoader().loadClass(
+								userSourceImplementationClassName));
 				conf.setUserDetailServiceImplementationClass(clazz);
 			} catch (ClassNotFoundException e) {
 				throw new ConfigurationException(
@@ -145,9 +157,294 @@ public class MongoConfigurationBuilder {
 
 		conf.setAdditionalAttributes(parseCommaList(optAttr));
 
+		// roles embedded in the user document
+		conf.setUserRolesEmbedded(parseBoolean(
+				MongoConfiguration.USER_ROLES_EMBEDDED, false));
+
+		String rolesAttr = (String) options
+				.get(MongoConfiguration.USER_ROLES_ATTRIBUTE);
+		if (rolesAttr != null && rolesAttr.trim().length() > 0) {
+			conf.setUserRolesAttribute(rolesAttr.trim());
+		}
+
+		// login cache
+		conf.setUserCacheTimeToLive(parseInt(MongoConfiguration.USER_CACHE_TTL,
+				MongoConfiguration.DEFAULT_USER_CACHE_TTL));
+		conf.setUserCacheSize(parseInt(MongoConfiguration.USER_CACHE_SIZE,
+				MongoConfiguration.DEFAULT_USER_CACHE_SIZE));
+
+		// unknown user cache
+		conf.setNegativeCacheTimeToLive(parseInt(
+				MongoConfiguration.NEGATIVE_CACHE_TTL,
+				MongoConfiguration.DEFAULT_NEGATIVE_CACHE_TTL));
+		conf.setNegativeCacheSize(parseInt(
+				MongoConfiguration.NEGATIVE_CACHE_SIZE,
+				MongoConfiguration.DEFAULT_NEGATIVE_CACHE_SIZE));
+
+		// mongo client connection pool and timeouts
+		conf.setClientOptions(buildClientOptions());
+
+		// threads running the lookups of the async adapter
+		conf.setAsyncThreads(parsePositiveInt(MongoConfiguration.ASYNC_THREADS,
+				MongoConfiguration.DEFAULT_ASYNC_THREADS));
+		conf.setAsyncQueueSize(parsePositiveInt(
+				MongoConfiguration.ASYNC_QUEUE_SIZE,
+				MongoConfiguration.DEFAULT_ASYNC_QUEUE_SIZE));
+
+		// password hashing
+		PasswordHasher hasher = buildPasswordHasher();
+
+		int budget = parseInt(MongoConfiguration.PASSWORD_LATENCY_BUDGET,
+				MongoConfiguration.DEFAULT_PASSWORD_LATENCY_BUDGET);
+		conf.setPasswordHasher(hasher);
+
+		// a pinned cost is the same on every machine and is never calibrated
+		if (budget > 0 && hasher instanceof AdjustablePasswordHasher
+				&& !isSet(MongoConfiguration.PASSWORD_PBKDF2_ITERATIONS)) {
+			// the configured cost is used until the calibration finished
+			CompletableFuture<AdjustablePasswordHasher> calibration = PasswordHasherCalibrator
+					.calibrate((AdjustablePasswordHasher) hasher, budget);
+			if (calibration != null) {
+				calibration.thenAccept(new Consumer<AdjustablePasswordHasher>() {
+					@Override
+					public void accept(AdjustablePasswordHasher calibrated) {
+						conf.setPasswordHasher(calibrated);
+						conf.setPasswordCostCalibrated(true);
+					}
+				});
+			}
+		}
+
+		conf.setPasswordRehash(parseBoolean(
+				MongoConfiguration.PASSWORD_REHASH, true));
+		conf.setPasswordMemoTimeToLive(parseInt(
+				MongoConfiguration.PASSWORD_MEMO_TTL,
+				MongoConfiguration.DEFAULT_PASSWORD_MEMO_TTL));
+		conf.setPasswordMemoSize(parseInt(
+				MongoConfiguration.PASSWORD_MEMO_SIZE,
+				MongoConfiguration.DEFAULT_PASSWORD_MEMO_SIZE));
+		conf.setPasswordThreads(parsePositiveInt(
+				MongoConfiguration.PASSWORD_THREADS, Runtime.getRuntime()
+						.availableProcessors()));
+		conf.setPasswordQueueSize(parsePositiveInt(
+				MongoConfiguration.PASSWORD_QUEUE_SIZE,
+				MongoConfiguration.DEFAULT_PASSWORD_QUEUE_SIZE));
+
+		// where logins read from
+		conf.setReadPreference(buildReadPreference());
+		conf.setReadPrimaryFallback(parseBoolean(
+				MongoConfiguration.READ_PRIMARY_FALLBACK, true));
+
+		conf.setGroupsNested(parseBoolean(MongoConfiguration.GROUPS_NESTED,
+				false));
+		conf.setUserListBatchSize(parsePositiveInt(
+				MongoConfiguration.USER_LIST_BATCH_SIZE,
+				MongoConfiguration.DEFAULT_USER_LIST_BATCH_SIZE));
+
+		// indexes of the users store
+		conf.setIndexProvision(parseBoolean(
+				MongoConfiguration.INDEX_PROVISION, false));
+		conf.setIndexVerify(parseBoolean(MongoConfiguration.INDEX_VERIFY,
+				false));
+		conf.setUserLookupCovered(parseBoolean(
+				MongoConfiguration.USER_LOOKUP_COVERED, false));
+
 		return conf;
 	}
 
+	private PasswordHasher buildPasswordHasher() throws ConfigurationException {
+
+		String hasher = isSet(MongoConfiguration.PASSWORD_HASHER) ? options
+				.get(MongoConfiguration.PASSWORD_HASHER).toString().trim()
+				: MongoConfiguration.PASSWORD_HASHER_PBKDF2;
+
+		if (MongoConfiguration.PASSWORD_HASHER_NONE.equals(hasher)) {
+			return null;
+		}
+
+		if (MongoConfiguration.PASSWORD_HASHER_PBKDF2.equals(hasher)) {
+			return new Pbkdf2PasswordHasher(parsePositiveInt(
+					MongoConfiguration.PASSWORD_PBKDF2_ITERATIONS,
+					MongoConfiguration.DEFAULT_PBKDF2_ITERATIONS));
+		}
+
+		try {
+			// the backing engine factory has no bundle context
+			Class<?> clazz = bundleContext != null ? bundleContext.getBundle()
+					.loadClass(hasher) : getClass().getClassLoader()
+					.loadClass(hasher);
+			return (PasswordHasher) clazz.newInstance();
+		} catch (ClassNotFoundException | InstantiationException
+				| IllegalAccessException | ClassCastException e) {
+			throw new ConfigurationException(
+					"Failed to load custom password hasher. " + e.getMessage(),
+					e);
+		}
+
+	}
+
+	private ReadPreference buildReadPreference()
+			throws ConfigurationException {
+
+		String name = isSet(MongoConfiguration.READ_PREFERENCE) ? options
+				.get(MongoConfiguration.READ_PREFERENCE).toString().trim()
+				: "primary";
+
+		List<DBObject> tagSets = new ArrayList<DBObject>();
+
+		if (isSet(MongoConfiguration.READ_PREFERENCE_TAGS)) {
+			StringTokenizer sets = new StringTokenizer(options.get(
+					MongoConfiguration.READ_PREFERENCE_TAGS).toString(), ";");
+			while (sets.hasMoreTokens()) {
+				DBObject tagSet = new BasicDBObject();
+				for (String tag : parseCommaList(sets.nextToken())) {
+					int colon = tag.indexOf(':');
+					if (colon < 1) {
+						throw new ConfigurationException("Option ["
+								+ MongoConfiguration.READ_PREFERENCE_TAGS
+								+ "] has an invalid tag: " + tag);
+					}
+					tagSet.put(tag.substring(0, colon).trim(),
+							tag.substring(colon + 1).trim());
+				}
+				tagSets.add(tagSet);
+			}
+		}
+
+		try {
+			if (tagSets.isEmpty()) {
+				return ReadPreference.valueOf(name);
+			}
+			return ReadPreference.valueOf(name, tagSets.get(0), tagSets
+					.subList(1, tagSets.size()).toArray(new DBObject[0]));
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid read preference. "
+					+ e.getMessage(), e);
+		}
+
+	}
+
+	/**
+	 * Builds the mongo client options from the
+	 * <code>mongo.client.*</code> options, the driver defaults apply to all
+	 * options that are not set.
+	 */
+	private MongoClientOptions buildClientOptions()
+			throws ConfigurationException {
+
+		MongoClientOptions.Builder builder = MongoClientOptions.builder();
+
+		try {
+
+			if (isSet(MongoConfiguration.CLIENT_CONNECTIONS_PER_HOST)) {
+				builder.connectionsPerHost(parseInt(
+						MongoConfiguration.CLIENT_CONNECTIONS_PER_HOST, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_MIN_CONNECTIONS_PER_HOST)) {
+				builder.minConnectionsPerHost(parseInt(
+						MongoConfiguration.CLIENT_MIN_CONNECTIONS_PER_HOST, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_THREADS_ALLOWED_TO_BLOCK)) {
+				builder.threadsAllowedToBlockForConnectionMultiplier(parseInt(
+						MongoConfiguration.CLIENT_THREADS_ALLOWED_TO_BLOCK, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_MAX_WAIT_TIME)) {
+				builder.maxWaitTime(parseInt(
+						MongoConfiguration.CLIENT_MAX_WAIT_TIME, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_CONNECT_TIMEOUT)) {
+				builder.connectTimeout(parseInt(
+						MongoConfiguration.CLIENT_CONNECT_TIMEOUT, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_SOCKET_TIMEOUT)) {
+				builder.socketTimeout(parseInt(
+						MongoConfiguration.CLIENT_SOCKET_TIMEOUT, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_SOCKET_KEEP_ALIVE)) {
+				builder.socketKeepAlive(parseBoolean(
+						MongoConfiguration.CLIENT_SOCKET_KEEP_ALIVE, false));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_MAX_CONNECTION_IDLE_TIME)) {
+				builder.maxConnectionIdleTime(parseInt(
+						MongoConfiguration.CLIENT_MAX_CONNECTION_IDLE_TIME, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_MAX_CONNECTION_LIFE_TIME)) {
+				builder.maxConnectionLifeTime(parseInt(
+						MongoConfiguration.CLIENT_MAX_CONNECTION_LIFE_TIME, 0));
+			}
+
+			if (isSet(MongoConfiguration.CLIENT_REQUIRED_REPLICA_SET_NAME)) {
+				builder.requiredReplicaSetName(options
+						.get(MongoConfiguration.CLIENT_REQUIRED_REPLICA_SET_NAME)
+						.toString().trim());
+			}
+
+			return builder.build();
+
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid mongo client option. "
+					+ e.getMessage(), e);
+		}
+
+	}
+
+	private boolean isSet(String option) {
+		Object value = options.get(option);
+		return value != null && value.toString().trim().length() > 0;
+	}
+
+	private boolean parseBoolean(String option, boolean defaultValue) {
+
+		Object value = options.get(option);
+
+		if (value == null || value.toString().trim().length() == 0) {
+			return defaultValue;
+		}
+
+		return Boolean.parseBoolean(value.toString().trim());
+
+	}
+
+	private int parseInt(String option, int defaultValue)
+			throws ConfigurationException {
+
+		Object value = options.get(option);
+
+		if (value == null || value.toString().trim().length() == 0) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Option [" + option
+					+ "] is not a valid number: " + value, e);
+		}
+
+	}
+
+	private int parsePositiveInt(String option, int defaultValue)
+			throws ConfigurationException {
+
+		int value = parseInt(option, defaultValue);
+
+		if (value < 1) {
+			throw new ConfigurationException("Option [" + option
+					+ "] must be greater than 0: " + value);
+		}
+
+		return value;
+
+	}
+
 	private List<String> parseCommaList(String commaList) {
 
 		List<String> result = new ArrayList<String>();
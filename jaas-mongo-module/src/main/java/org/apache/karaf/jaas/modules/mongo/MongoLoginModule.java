@@ -24,6 +24,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
@@ -33,9 +37,15 @@ import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.security.auth.login.LoginException;
 
-import org.apache.karaf.jaas.boot.principal.GroupPrincipal;
 import org.apache.karaf.jaas.boot.principal.UserPrincipal;
 import org.apache.karaf.jaas.modules.AbstractKarafLoginModule;
+import org.apache.karaf.jaas.modules.mongo.internal.NegativeLookupCache;
+import org.apache.karaf.jaas.modules.mongo.internal.PasswordHasherCalibrator;
+import org.apache.karaf.jaas.modules.mongo.internal.PasswordVerifier;
+import org.apache.karaf.jaas.modules.mongo.internal.RoleDictionary;
+import org.apache.karaf.jaas.modules.mongo.internal.UserDetailServiceRegistry;
+import org.apache.karaf.jaas.modules.mongo.internal.UserInfoCache;
+import org.apache.karaf.jaas.modules.mongo.internal.VerifiedCredentialMemo;
 
 /**
  * 
@@ -53,18 +63,12 @@ public class MongoLoginModule extends AbstractKarafLoginModule {
 	private final static Logger logger = LoggerFactory
 			.getLogger(MongoLoginModule.class);
 
-	private MongoConfigurationBuilder configBuilder;
-
 	@Override
 	public void initialize(Subject subject, CallbackHandler callbackHandler,
 			Map<String, ?> sharedState, Map<String, ?> options) {
 
 		super.initialize(subject, callbackHandler, options);
 
-		// build the database configuration from options
-		configBuilder = new MongoConfigurationBuilder(this.bundleContext,
-				options);
-
 	}
 
 	@Override
@@ -104,53 +108,40 @@ public class MongoLoginModule extends AbstractKarafLoginModule {
 		 * 
 		 **************************************************************************/
 
-		// TODO check if mongo classes are available on the classpath
-
-		MongoConfiguration config;
+		// the service is only built on the first login with these options
+		UserDetailService userSource;
 		try {
-			config = configBuilder.build();
+			userSource = UserDetailServiceRegistry.getService(
+					this.bundleContext, options);
 		} catch (ConfigurationException e) {
 			throw new LoginException("Failed to configure login module: "
 					+ e.getMessage());
 		}
 
-		UserDetailService userSource = null;
-		try {
-			userSource = config.getUserDetailServiceImplementationClass()
-					.newInstance();
-		} catch (InstantiationException | IllegalAccessException e) {
-			throw new LoginException(
-					"Failed to load custom user detail service. "
-							+ e.getMessage());
-		}
-
-		userSource.setConfiguration(config);
+		MongoConfiguration config = userSource.getConfiguration();
 
-		/**************************************************************************
-		 * 
-		 * get username and password from mongo collection
-		 * 
-		 **************************************************************************/
+		// a user that authenticated recently does not need to hit the database
+		UserInfoCache cache = null;
 		UserInfo userInfo = null;
 
-		try {
-			userInfo = userSource.getUserInfo(user);
-		} catch (Exception e) {
-			logger.error("Failed to get user from mongodb.", e);
-			throw new LoginException("Failed to retrieve user [" + user
-					+ "] from mongo database." + e.getMessage());
+		if (config.isUserCacheEnabled()) {
+			cache = UserInfoCache.getInstance(config);
+			userInfo = cache.get(user, providedPwd);
 		}
 
-		// verify user exists
 		if (userInfo == null) {
-			throw new LoginException("User [" + user + "] does not exist.");
-		}
 
-		// TODO add password encryption
-		// verify password matches
-		if (!checkPassword(providedPwd, userInfo.getPassword())) {
-			throw new LoginException("User [" + user
-					+ "] password does not match.");
+			// a user modified while it is read must not be cached
+			long generation = cache != null ? cache.getGeneration() : 0;
+
+			userInfo = authenticate(userSource, providedPwd);
+
+			if (cache != null) {
+				cache.put(user, providedPwd, userInfo, generation);
+			}
+
+		} else if (debug) {
+			logger.debug("User [{}] authenticated from cache.", user);
 		}
 
 		/**************************************************************************
@@ -162,9 +153,10 @@ public class MongoLoginModule extends AbstractKarafLoginModule {
 		// add the user principal to the security context
 		principals.add(createUserPrincipal(userInfo));
 
-		// populate roles
+		// populate roles, the principals are shared by all users of a role
+		RoleDictionary roles = RoleDictionary.getInstance();
 		for (String role : userInfo.getGroups()) {
-			principals.add(new GroupPrincipal(role));
+			principals.add(roles.getPrincipal(role));
 		}
 
 		// release mongo resources, could do this when querying initial user and
@@ -191,6 +183,187 @@ public class MongoLoginModule extends AbstractKarafLoginModule {
 		return true;
 	}
 
+	/**
+	 * Retrieves the user from the mongo database and verifies the supplied
+	 * password.
+	 * 
+	 * @param userSource
+	 *            the user detail service of this login module
+	 * @param providedPwd
+	 *            the password supplied by the user
+	 * 
+	 * @return the authenticated user
+	 * @throws LoginException
+	 *             if the user does not exist or the password does not match
+	 */
+	private UserInfo authenticate(UserDetailService userSource,
+			String providedPwd) throws LoginException {
+
+		MongoConfiguration config = userSource.getConfiguration();
+
+		/**************************************************************************
+		 * 
+		 * get username and password from mongo collection
+		 * 
+		 **************************************************************************/
+		NegativeLookupCache unknownUsers = null;
+
+		if (config.isNegativeCacheEnabled()) {
+			unknownUsers = NegativeLookupCache.getInstance(config);
+			if (unknownUsers.isUnknown(user)) {
+				throw new LoginException("User [" + user + "] does not exist.");
+			}
+		}
+
+		UserInfo userInfo;
+		try {
+			userInfo = userSource.getUserInfo(user);
+		} catch (Exception e) {
+			logger.error("Failed to get user from mongodb.", e);
+			throw new LoginException("Failed to retrieve user [" + user
+					+ "] from mongo database." + e.getMessage());
+		}
+
+		// verify user exists
+		if (userInfo == null) {
+			if (unknownUsers != null) {
+				unknownUsers.addUnknown(user);
+			}
+			throw new LoginException("User [" + user + "] does not exist.");
+		}
+
+		// verify password matches
+		if (!verifyPassword(config, providedPwd, userInfo.getPassword())) {
+			throw new LoginException("User [" + user
+					+ "] password does not match.");
+		}
+
+		if (config.isPasswordRehash()) {
+			rehashIfRequired(config, providedPwd, userInfo);
+		}
+
+		return userInfo;
+	}
+
+	/**
+	 * Replaces a stored hash whose cost is below the configured cost. The hash
+	 * is computed and stored in the background, the login does not wait for
+	 * it and a failure only delays the rehash to a later login. Only the hash
+	 * is written and only if it did not change in the meantime.
+	 */
+	private void rehashIfRequired(MongoConfiguration config,
+			String providedPwd, UserInfo userInfo) {
+
+		if (!(config.getPasswordHasher() instanceof AdjustablePasswordHasher)) {
+			return;
+		}
+
+		AdjustablePasswordHasher hasher = (AdjustablePasswordHasher) config
+				.getPasswordHasher();
+		final String storedPwd = userInfo.getPassword();
+
+		if (!hasher.isHash(storedPwd)
+				|| !isCostBelow(config, hasher, storedPwd)) {
+			return;
+		}
+
+		// the write runs on the pool of the async service
+		final AsyncUserDetailService userSource;
+		try {
+			userSource = UserDetailServiceRegistry.getAsyncService(
+					this.bundleContext, options);
+		} catch (ConfigurationException e) {
+			return;
+		}
+
+		final String username = user;
+
+		PasswordVerifier.getInstance(config).hashAsync(hasher, providedPwd)
+				.thenCompose(new Function<String, CompletionStage<Boolean>>() {
+					@Override
+					public CompletionStage<Boolean> apply(String hash) {
+						return userSource.updatePasswordHashAsync(username,
+								storedPwd, hash);
+					}
+				}).whenComplete(new BiConsumer<Boolean, Throwable>() {
+					@Override
+					public void accept(Boolean updated, Throwable e) {
+						if (e != null) {
+							logger.warn("Failed to rehash password of user ["
+									+ username + "].", e);
+						} else if (updated) {
+							logger.debug("Rehashed password of user [{}].",
+									username);
+						}
+					}
+				});
+
+	}
+
+	/**
+	 * A calibrated cost differs a little between machines and restarts, so a
+	 * hash is only upgraded if its cost is below the calibration tolerance.
+	 * Otherwise every restart would rehash all users a little higher.
+	 */
+	private static boolean isCostBelow(MongoConfiguration config,
+			AdjustablePasswordHasher hasher, String storedPwd) {
+
+		int cost = hasher.getCost();
+		if (config.isPasswordCostCalibrated()) {
+			cost = (int) (cost * PasswordHasherCalibrator.TOLERANCE);
+		}
+
+		return hasher.getCost(storedPwd) < cost;
+
+	}
+
+	/**
+	 * Verifies a hashed password on the shared {@link PasswordVerifier} pool,
+	 * any other stored password is compared as plain text. A verification
+	 * remembered by the {@link VerifiedCredentialMemo} skips the hash
+	 * computation.
+	 * 
+	 * @throws LoginException
+	 *             if too many logins are waiting for a verification
+	 */
+	private boolean verifyPassword(MongoConfiguration config,
+			String providedPwd, String storedPwd) throws LoginException {
+
+		PasswordHasher hasher = config.getPasswordHasher();
+
+		if (hasher == null || !hasher.isHash(storedPwd)) {
+			return checkPassword(providedPwd, storedPwd);
+		}
+
+		// a password verified recently against the same hash
+		VerifiedCredentialMemo memo = null;
+		if (config.isPasswordMemoEnabled()) {
+			memo = VerifiedCredentialMemo.getInstance(config);
+			if (memo.isVerified(user, providedPwd, storedPwd)) {
+				return true;
+			}
+		}
+
+		try {
+			boolean verified = PasswordVerifier.getInstance(config).verify(
+					hasher, providedPwd, storedPwd);
+			if (verified && memo != null) {
+				memo.put(user, providedPwd, storedPwd);
+			}
+			return verified;
+		} catch (RejectedExecutionException e) {
+			logger.warn("Too many pending password verifications, rejected [{}].",
+					user);
+			throw new LoginException("Too many concurrent logins, rejected ["
+					+ user + "].");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LoginException("Interrupted verifying password of ["
+					+ user + "].");
+		}
+
+	}
+
 	/**
 	 * @param userInfo
 	 *            the user info to be used to construct the
@@ -206,6 +379,8 @@ public class MongoLoginModule extends AbstractKarafLoginModule {
 			p.setProperties(userInfo.getProperties());
 		}
 
+		p.setRoles(userInfo.getGroups());
+
 		return p;
 	}
 
@@ -0,0 +1,73 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 
+ * A page of a listing too large to be read at once. The next page is
+ * requested with the cursor of this page, the cursor is opaque to the caller.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class Page<T> implements Iterable<T> {
+
+	private final List<T> items;
+
+	private final String nextCursor;
+
+	/**
+	 * @param items
+	 *            the items of this page
+	 * @param nextCursor
+	 *            the cursor of the next page or <code>null</code> if this is
+	 *            the last page
+	 */
+	public Page(List<T> items, String nextCursor) {
+		this.items = Collections.unmodifiableList(items);
+		this.nextCursor = nextCursor;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return the cursor of the next page or <code>null</code> if this is the
+	 *         last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean isLast() {
+		return nextCursor == null;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return items.iterator();
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+/**
+ *
+ * Hashes the passwords stored in the users collection and verifies the
+ * passwords supplied on login against them. A custom implementation, for
+ * example one using bcrypt or scrypt, can be configured with
+ * {@link MongoConfiguration#PASSWORD_HASHER} and must have a public default
+ * constructor. Implementations must be thread safe.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public interface PasswordHasher {
+
+	/**
+	 * @param password
+	 *            the plain text password
+	 * 
+	 * @return the encoded hash including everything required to verify a
+	 *         password against it, such as the salt and the cost
+	 */
+	public String hash(String password);
+
+	/**
+	 * @param storedHash
+	 *            the value stored in the users collection
+	 * 
+	 * @return true if the value was created by this hasher, any other value
+	 *         is treated as a plain text password
+	 */
+	public boolean isHash(String storedHash);
+
+	/**
+	 * @param password
+	 *            the password supplied on login
+	 * @param storedHash
+	 *            a value for which {@link #isHash(String)} is true
+	 * 
+	 * @return true if the password matches the hash
+	 */
+	public boolean verify(String password, String storedHash);
+
+}
@@ -19,12 +19,19 @@
  */
 package org.apache.karaf.jaas.modules.mongo;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  *
  * The {@link UserDetailService} is used by the MongoLoginModule to retrieve the
- * user information.
+ * user information. A single instance is created for each distinct login
+ * module configuration and shared by all logins, implementations must
+ * therefore be thread safe.
  * 
  * @author Niels Bertram
  *
@@ -34,8 +41,8 @@ public interface UserDetailService {
 	public MongoConfiguration getConfiguration();
 
 	/**
-	 * This method is called by the {@link MongoLoginModule} immediately after
-	 * instantiation of the {@link UserDetailService}.
+	 * This method is called once immediately after instantiation of the
+	 * {@link UserDetailService}.
 	 * 
 	 * @param configuration
 	 *            the mongo database configuration
@@ -51,12 +58,285 @@ public interface UserDetailService {
 	 */
 	public UserInfo getUserInfo(String username) throws Exception;
 
+	/**
+	 * @return the names of all users, held in memory at once
+	 * @throws Exception
+	 */
 	public List<String> getUserNames() throws Exception;
 
+	/**
+	 * Returns a page of user names in ascending order. A listing resumes
+	 * after the last name of the previous page, so the cost of a page does not
+	 * depend on how far into the listing it is.
+	 * 
+	 * The default implementation filters {@link #getUserNames()}, custom
+	 * services should override it with a query.
+	 * 
+	 * @param after
+	 *            the last user name of the previous page or <code>null</code>
+	 *            for the first page
+	 * @param limit
+	 *            the maximum number of names returned
+	 * 
+	 * @return the user names following <code>after</code>, fewer than the
+	 *         limit if the listing is complete
+	 * @throws IllegalArgumentException
+	 *             if the limit is less than 1
+	 * @throws Exception
+	 */
+	public default List<String> getUserNames(String after, int limit)
+			throws Exception {
+
+		if (limit < 1) {
+			throw new IllegalArgumentException(
+					"The limit must be at least 1 but was [" + limit + "].");
+		}
+
+		List<String> page = new ArrayList<String>();
+
+		for (String username : new TreeSet<String>(getUserNames())) {
+			if (page.size() >= limit) {
+				break;
+			}
+			if (after == null || username.compareTo(after) > 0) {
+				page.add(username);
+			}
+		}
+
+		return page;
+
+	}
+
+	/**
+	 * Iterates all user names in ascending order. The default implementation
+	 * iterates {@link #getUserNames()}, custom services should override it to
+	 * not hold all names in memory.
+	 * 
+	 * @return an iterator of the user names, the mongo database is read as the
+	 *         iteration proceeds
+	 * @throws Exception
+	 */
+	public default Iterator<String> iterateUserNames() throws Exception {
+		return new TreeSet<String>(getUserNames()).iterator();
+	}
+
 	public UserInfo addUser(UserInfo user) throws Exception;
 
+	/**
+	 * Adds or updates many users at once, used to import users in bulk. An
+	 * existing user gets the password of the supplied user and is added to
+	 * its groups.
+	 * 
+	 * The default implementation adds one user after the other, custom
+	 * services should override it with bulk writes.
+	 * 
+	 * @param users
+	 *            the users to add
+	 * @throws UserWriteException
+	 *             if some of the users could not be added, the others have
+	 *             been added
+	 * @throws Exception
+	 */
+	public default void addUsers(List<UserInfo> users) throws Exception {
+
+		Map<String, String> failures = new LinkedHashMap<String, String>();
+		Exception failure = null;
+
+		for (UserInfo user : users) {
+			try {
+				addUser(user);
+			} catch (Exception e) {
+				failures.put(user.getName(), e.getMessage());
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw new UserWriteException(failures, failure);
+		}
+
+	}
+
 	public UserInfo updateUser(UserInfo user) throws Exception;
 
+	/**
+	 * Replaces the password hash of a user only if it is still the expected
+	 * hash, nothing else of the user is written. Used to upgrade the cost of a
+	 * stored hash without racing concurrent changes of the user.
+	 * 
+	 * Not supported by default, the stored hash is left as is.
+	 * 
+	 * @param username
+	 *            the user identifier
+	 * @param expectedHash
+	 *            the hash the password was verified against
+	 * @param newHash
+	 *            the hash to store
+	 * 
+	 * @return false if the user does not exist any more, its hash changed in
+	 *         the meantime or the service does not support it
+	 * @throws Exception
+	 */
+	public default boolean updatePasswordHash(String username,
+			String expectedHash, String newHash) throws Exception {
+		return false;
+	}
+
 	public void deleteUser(String username) throws Exception;
 
+	/**
+	 * Nests a group in another group, the members of the child group hold the
+	 * roles of the parent group as well. Not supported by default.
+	 * 
+	 * @param parent
+	 *            the group to nest into
+	 * @param child
+	 *            the group to nest
+	 * @throws Exception
+	 */
+	public default void addNestedGroup(String parent, String child)
+			throws Exception {
+		throw new UnsupportedOperationException(
+				"Nested groups are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Removes a nested group from a group. Not supported by default.
+	 * 
+	 * @param parent
+	 *            the group the child is nested in
+	 * @param child
+	 *            the nested group
+	 * @throws Exception
+	 */
+	public default void removeNestedGroup(String parent, String child)
+			throws Exception {
+		throw new UnsupportedOperationException(
+				"Nested groups are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Lists the users holding a role one page at a time.
+	 * 
+	 * The default implementation lists all users and reads the roles of each
+	 * of them, custom services should override it with a query of the role
+	 * members.
+	 * 
+	 * @param role
+	 *            the role name
+	 * @param cursor
+	 *            the cursor of the previous page or <code>null</code> for the
+	 *            first page
+	 * @param limit
+	 *            the maximum number of user names returned
+	 * 
+	 * @return the user names holding the role, empty if the role does not
+	 *         exist
+	 * @throws IllegalArgumentException
+	 *             if the limit is less than 1
+	 * @throws Exception
+	 */
+	public default Page<String> listUsersInRole(String role, String cursor,
+			int limit) throws Exception {
+
+		if (limit < 1) {
+			throw new IllegalArgumentException(
+					"The limit must be at least 1 but was [" + limit + "].");
+		}
+
+		List<String> page = new ArrayList<String>();
+		String after = cursor;
+
+		while (true) {
+			List<String> names = getUserNames(after, limit);
+			for (String username : names) {
+				if (page.size() >= limit) {
+					return new Page<String>(page, after);
+				}
+				after = username;
+				if (getRoles(username).contains(role)) {
+					page.add(username);
+				}
+			}
+			if (names.size() < limit) {
+				return new Page<String>(page, null);
+			}
+		}
+
+	}
+
+	/**
+	 * Lists the roles of a user without reading any other user attribute.
+	 * 
+	 * The default implementation reads the whole {@link UserInfo}, custom
+	 * services should override it with a projected query.
+	 * 
+	 * @param username
+	 *            the user identifier
+	 * 
+	 * @return the role names, empty if the user does not exist
+	 * @throws Exception
+	 */
+	public default List<String> getRoles(String username) throws Exception {
+		UserInfo userInfo = getUserInfo(username);
+		return userInfo != null ? userInfo.getGroups() : new ArrayList<String>();
+	}
+
+	/**
+	 * Adds a single role to a user.
+	 * 
+	 * The default implementation reads and updates the whole
+	 * {@link UserInfo}, custom services should override it with a single
+	 * update.
+	 * 
+	 * @param username
+	 *            the user identifier
+	 * @param role
+	 *            the role to add
+	 * 
+	 * @return false if the user does not exist
+	 * @throws Exception
+	 */
+	public default boolean addRole(String username, String role)
+			throws Exception {
+		UserInfo userInfo = getUserInfo(username);
+		if (userInfo == null) {
+			return false;
+		}
+		if (!userInfo.getGroups().contains(role)) {
+			userInfo.addGroup(role);
+			updateUser(userInfo);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a single role from a user.
+	 * 
+	 * The default implementation reads and updates the whole
+	 * {@link UserInfo}, custom services should override it with a single
+	 * update.
+	 * 
+	 * @param username
+	 *            the user identifier
+	 * @param role
+	 *            the role to remove
+	 * 
+	 * @return false if the user does not exist
+	 * @throws Exception
+	 */
+	public default boolean removeRole(String username, String role)
+			throws Exception {
+		UserInfo userInfo = getUserInfo(username);
+		if (userInfo == null) {
+			return false;
+		}
+		if (userInfo.getGroups().remove(role)) {
+			updateUser(userInfo);
+		}
+		return true;
+	}
+
 }
@@ -0,0 +1,512 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+/**
+ * 
+ * Imports users and their group memberships in bulk. The users are read from
+ * a stream line by line and written in batches with
+ * {@link UserDetailService#addUsers(List)}, several batches at once. Only the
+ * batches in flight are held in memory, so the number of users imported is
+ * not limited.
+ * 
+ * Two formats are supported, one user per line:
+ * <ul>
+ * <li>NDJSON:
+ * <code>{"username": "jane", "password": "secret", "roles": ["admin", "user"]}</code>
+ * , a stored hash may be supplied as <code>passwordHash</code></li>
+ * <li>CSV: <code>jane,secret,admin;user</code>, the roles are separated by
+ * semicolons, fields may be quoted and a header line starting with
+ * <code>username</code> is skipped</li>
+ * </ul>
+ * 
+ * Passwords that are not hashed yet are hashed with the configured
+ * {@link PasswordHasher}.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class UserImporter {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(UserImporter.class);
+
+	public enum Format {
+		NDJSON, CSV
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private final UserDetailService service;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	/**
+	 * @param service
+	 *            the service the users are written with
+	 */
+	public UserImporter(UserDetailService service) {
+		this.service = service;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the number of users written in one bulk write
+	 */
+	public UserImporter withBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"The batch size must be greater than 0: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param parallelism
+	 *            the number of batches written at the same time
+	 */
+	public UserImporter withParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"The parallelism must be greater than 0: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Imports all users of the stream, lines that cannot be parsed and
+	 * batches that fail are reported in the result rather than aborting the
+	 * import.
+	 * 
+	 * @param reader
+	 *            the users, one per line
+	 * @param format
+	 *            the format of the lines
+	 * 
+	 * @return the number of imported users and the failures
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	public Result importUsers(Reader reader, Format format) throws IOException {
+
+		Result result = new Result();
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MongoJaasUserImporter-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		// bounds the batches held in memory
+		Semaphore inFlight = new Semaphore(parallelism);
+
+		try {
+
+			BufferedReader in = new BufferedReader(reader);
+			List<UserInfo> batch = new ArrayList<UserInfo>(batchSize);
+			int lineNumber = 0;
+			int firstLine = 0;
+			String line;
+
+			while ((line = in.readLine()) != null) {
+
+				lineNumber++;
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+
+				UserInfo user;
+				try {
+					user = format == Format.CSV ? parseCsv(line)
+							: parseJson(line);
+				} catch (IllegalArgumentException e) {
+					result.addFailure(lineNumber, lineNumber, 1,
+							e.getMessage());
+					continue;
+				}
+
+				// the csv header
+				if (user == null) {
+					continue;
+				}
+
+				if (batch.isEmpty()) {
+					firstLine = lineNumber;
+				}
+				batch.add(user);
+
+				if (batch.size() >= batchSize) {
+					submit(executor, inFlight, batch, firstLine, lineNumber,
+							result);
+					batch = new ArrayList<UserInfo>(batchSize);
+				}
+
+			}
+
+			if (!batch.isEmpty()) {
+				submit(executor, inFlight, batch, firstLine, lineNumber,
+						result);
+			}
+
+			// waits for the last batches
+			inFlight.acquire(parallelism);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The import was interrupted.");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		result.finish();
+
+		log.info("Imported {} users in {}ms, {} failed", result.getImported(),
+				result.getElapsedMillis(), result.getFailed());
+
+		return result;
+
+	}
+
+	private void submit(ExecutorService executor, final Semaphore inFlight,
+			final List<UserInfo> batch, final int firstLine,
+			final int lastLine, final Result result)
+			throws InterruptedException {
+
+		inFlight.acquire();
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(batch, firstLine, lastLine, result);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+
+	}
+
+	private void write(List<UserInfo> batch, int firstLine, int lastLine,
+			Result result) {
+
+		MongoConfiguration configuration = service.getConfiguration();
+
+		try {
+
+			// hashing is the expensive part of an import, it runs in parallel
+			PasswordHasher hasher = configuration.getPasswordHasher();
+			if (hasher != null) {
+				for (UserInfo user : batch) {
+					if (!hasher.isHash(user.getPassword())) {
+						user.setPassword(hasher.hash(user.getPassword()));
+					}
+				}
+			}
+
+			service.addUsers(batch);
+			result.addImported(batch.size());
+
+		} catch (UserWriteException e) {
+
+			// the other users of the batch were written
+			int failed = e.getFailures().size();
+			Map.Entry<String, String> first = e.getFailures().entrySet()
+					.iterator().next();
+			result.addImported(batch.size() - failed);
+			result.addFailure(firstLine, lastLine, failed, "user ["
+					+ first.getKey() + "] " + first.getValue());
+
+		} catch (Exception e) {
+
+			result.addFailure(firstLine, lastLine, batch.size(),
+					e.getMessage());
+
+		} finally {
+
+			for (UserInfo user : batch) {
+				MongoBackingEngine.invalidate(configuration, user.getName());
+			}
+
+		}
+
+	}
+
+	static UserInfo parseJson(String line) {
+
+		Object parsed;
+		try {
+			parsed = JSON.parse(line);
+		} catch (JSONParseException e) {
+			throw new IllegalArgumentException("Malformed JSON: "
+					+ e.getMessage());
+		}
+
+		if (!(parsed instanceof DBObject)) {
+			throw new IllegalArgumentException("Not a JSON object.");
+		}
+
+		DBObject user = (DBObject) parsed;
+
+		Object password = user.get("password");
+		if (password == null) {
+			password = user.get("passwordHash");
+		}
+
+		UserInfo userInfo = createUser(user.get("username"), password);
+
+		Object roles = user.get("roles");
+		if (roles instanceof List) {
+			for (Object role : (List<?>) roles) {
+				userInfo.addGroup(role.toString());
+			}
+		}
+
+		return userInfo;
+
+	}
+
+	/**
+	 * @return the user or <code>null</code> for a header line
+	 */
+	static UserInfo parseCsv(String line) {
+
+		List<String> fields = splitCsv(line);
+
+		if ("username".equalsIgnoreCase(fields.get(0).trim())) {
+			return null;
+		}
+
+		UserInfo userInfo = createUser(fields.get(0).trim(),
+				fields.size() > 1 ? fields.get(1) : null);
+
+		if (fields.size() > 2) {
+			for (String role : fields.get(2).split(";")) {
+				if (!role.trim().isEmpty()) {
+					userInfo.addGroup(role.trim());
+				}
+			}
+		}
+
+		return userInfo;
+
+	}
+
+	private static UserInfo createUser(Object username, Object password) {
+
+		if (username == null || username.toString().isEmpty()) {
+			throw new IllegalArgumentException("The username is missing.");
+		}
+
+		if (password == null || password.toString().isEmpty()) {
+			throw new IllegalArgumentException("The password of user ["
+					+ username + "] is missing.");
+		}
+
+		return new UserInfo(username.toString(), password.toString());
+
+	}
+
+	/**
+	 * Splits a CSV line, a field enclosed in double quotes may contain commas
+	 * and escaped <code>""</code> quotes.
+	 */
+	static List<String> splitCsv(String line) {
+
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length()
+						&& line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+
+		if (quoted) {
+			throw new IllegalArgumentException("Unterminated quote.");
+		}
+
+		fields.add(field.toString());
+		return fields;
+
+	}
+
+	/**
+	 * The outcome of an import.
+	 */
+	public static class Result {
+
+		private final long started = System.nanoTime();
+
+		private final AtomicLong imported = new AtomicLong();
+
+		private final AtomicLong failed = new AtomicLong();
+
+		private final List<Failure> failures = Collections
+				.synchronizedList(new ArrayList<Failure>());
+
+		private volatile long elapsedNanos;
+
+		void addImported(int users) {
+			imported.addAndGet(users);
+		}
+
+		void addFailure(int firstLine, int lastLine, int users, String message) {
+			failed.addAndGet(users);
+			failures.add(new Failure(firstLine, lastLine, users, message));
+			log.warn("Failed to import {} users of lines {} to {}: {}", users,
+					firstLine, lastLine, message);
+		}
+
+		void finish() {
+			elapsedNanos = System.nanoTime() - started;
+		}
+
+		public long getImported() {
+			return imported.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * @return the failed lines and batches
+		 */
+		public List<Failure> getFailures() {
+			synchronized (failures) {
+				return new ArrayList<Failure>(failures);
+			}
+		}
+
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of users imported per second
+		 */
+		public double getThroughput() {
+			return elapsedNanos > 0 ? imported.get() * 1e9 / elapsedNanos : 0;
+		}
+
+	}
+
+	/**
+	 * A line that could not be parsed or a batch that could not be written,
+	 * fully or in part.
+	 */
+	public static class Failure {
+
+		private final int firstLine;
+
+		private final int lastLine;
+
+		private final int users;
+
+		private final String message;
+
+		Failure(int firstLine, int lastLine, int users, String message) {
+			this.firstLine = firstLine;
+			this.lastLine = lastLine;
+			this.users = users;
+			this.message = message;
+		}
+
+		public int getFirstLine() {
+			return firstLine;
+		}
+
+		public int getLastLine() {
+			return lastLine;
+		}
+
+		/**
+		 * @return the number of users that were not imported
+		 */
+		public int getUsers() {
+			return users;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return "lines " + firstLine + "-" + lastLine + ": " + users
+					+ " users failed, " + message;
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 
+ * Exception thrown if some users of a bulk write could not be written, all
+ * other users were written. A user also fails if it could not be added to
+ * one of its groups.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class UserWriteException extends Exception {
+
+	private static final long serialVersionUID = 4712298451837720187L;
+
+	private final Map<String, String> failures;
+
+	/**
+	 * @param failures
+	 *            the error message of each user that failed, by username
+	 * @param cause
+	 *            the first error of the write
+	 */
+	public UserWriteException(Map<String, String> failures, Throwable cause) {
+		super(failures.size() + " users could not be written, "
+				+ failures.values().iterator().next(), cause);
+		this.failures = Collections
+				.unmodifiableMap(new LinkedHashMap<String, String>(failures));
+	}
+
+	/**
+	 * @return the error message of each user that failed, by username
+	 */
+	public Map<String, String> getFailures() {
+		return failures;
+	}
+
+}
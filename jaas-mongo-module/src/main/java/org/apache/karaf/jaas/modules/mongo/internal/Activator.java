@@ -0,0 +1,54 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ *
+ * Releases the resources shared by all login modules of this bundle when the
+ * bundle stops. Without it the scheduler thread and the mongo clients would
+ * leak on every bundle refresh.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class Activator implements BundleActivator {
+
+	@Override
+	public void start(BundleContext context) throws Exception {
+	}
+
+	@Override
+	public void stop(BundleContext context) throws Exception {
+		ExpiryScheduler.getInstance().shutdown();
+		UserDetailServiceRegistry.clear();
+		UserInfoCache.clearAll();
+		NegativeLookupCache.clearAll();
+		VerifiedCredentialMemo.clearAll();
+		PasswordVerifier.shutdownAll();
+		PasswordHasherCalibrator.clear();
+		IndexBootstrapper.clear();
+		RoleDictionary.clear();
+		MongoClientRegistry.getInstance().closeAll();
+	}
+
+}
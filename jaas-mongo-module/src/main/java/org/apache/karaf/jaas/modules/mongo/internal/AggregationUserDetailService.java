@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+/**
+ *
+ * A {@link UserDetailService} that resolves the user and its groups in a
+ * single aggregation round trip to the mongo database using a
+ * <code>$lookup</code> stage. The inner pipeline of the join matches the
+ * groups listing the user as a member and projects each group to its role
+ * fields, so the member lists of large groups are never returned. The join
+ * is an <code>$expr</code> match that cannot use the <code>members</code>
+ * index, it suits a groups collection of a moderate size.
+ *
+ * Requires MongoDB 3.6 for <code>let</code> and <code>pipeline</code> in
+ * <code>$lookup</code>. The mongo java driver 2.x does not connect to
+ * MongoDB 5.1 or newer, so the supported servers are 3.6 to 5.0.
+ *
+ * To use it configure the login module with
+ * <code>mongo.source.implementation.class = org.apache.karaf.jaas.modules.mongo.internal.AggregationUserDetailService</code>
+ *
+ * @author Niels Bertram
+ *
+ */
+public class AggregationUserDetailService extends DefaultUserDetailService {
+
+	/**
+	 * The temporary field the group documents are joined into, chosen to not
+	 * collide with any configured user attribute.
+	 */
+	static final String GROUPS_FIELD = "__groups";
+
+	private static final AggregationOptions CURSOR_OPTIONS = AggregationOptions
+			.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build();
+
+	public AggregationUserDetailService() {
+	}
+
+	public AggregationUserDetailService(MongoConfiguration configuration) {
+		super(configuration);
+	}
+
+	@Override
+	public UserInfo getUserInfo(String username) throws Exception {
+
+		MongoConfiguration configuration = getConfiguration();
+
+		// nothing to join if the roles are part of the user document
+		if (configuration.isUserRolesEmbedded()) {
+			return super.getUserInfo(username);
+		}
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DBCollection users = getDB(lease).getCollection(
+					configuration.getUserCollectionName());
+
+			List<DBObject> pipeline = createPipeline(username);
+
+			ReadPreference readPreference = configuration.getReadPreference();
+
+			UserInfo userInfo = aggregate(users, pipeline, readPreference);
+
+			// the user may not be replicated to the secondary yet
+			if (userInfo == null && isPrimaryFallback(readPreference)) {
+				userInfo = aggregate(users, pipeline, ReadPreference.primary());
+			}
+
+			return userInfo;
+
+		}
+
+	}
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * 
+	 * @return the pipeline matching the user and joining its groups
+	 */
+	List<DBObject> createPipeline(String username) {
+
+		MongoConfiguration configuration = getConfiguration();
+
+		List<DBObject> pipeline = new ArrayList<DBObject>();
+
+		pipeline.add(new BasicDBObject("$match", new BasicDBObject(
+				"username", username)));
+
+		pipeline.add(new BasicDBObject("$limit", 1));
+
+		// only the role fields of a group are joined, not its members
+		DBObject isMember = new BasicDBObject("$in", Arrays.asList(
+				"$$username",
+				new BasicDBObject("$ifNull", Arrays.asList("$members",
+						Collections.emptyList()))));
+
+		pipeline.add(new BasicDBObject("$lookup", BasicDBObjectBuilder
+				.start()
+				.add("from", configuration.getGroupCollectionName())
+				.add("let", new BasicDBObject("username", "$username"))
+				.add("pipeline",
+						Arrays.asList(new BasicDBObject("$match",
+								new BasicDBObject("$expr", isMember)),
+								new BasicDBObject("$project",
+										createGroupProjection().get())))
+				.add("as", GROUPS_FIELD).get()));
+
+		pipeline.add(new BasicDBObject("$project", createUserProjection()
+				.add(GROUPS_FIELD, 1).get()));
+
+		return pipeline;
+
+	}
+
+	private UserInfo aggregate(DBCollection users, List<DBObject> pipeline,
+			ReadPreference readPreference) {
+
+		Cursor cursor = users.aggregate(pipeline, CURSOR_OPTIONS,
+				readPreference);
+
+		try {
+
+			// if nothing comes back just return empty handed
+			if (!cursor.hasNext()) {
+				return null;
+			}
+
+			DBObject user = cursor.next();
+
+			UserInfo userInfo = createUserInfo(user);
+
+			Object groups = user.get(GROUPS_FIELD);
+			if (groups instanceof List) {
+				Set<String> roles = new LinkedHashSet<String>();
+				for (Object group : (List<?>) groups) {
+					if (group instanceof DBObject) {
+						addRoles(roles, (DBObject) group);
+					}
+				}
+				userInfo.getGroups().addAll(roles);
+			}
+
+			return userInfo;
+
+		} finally {
+			cursor.close();
+		}
+
+	}
+
+}
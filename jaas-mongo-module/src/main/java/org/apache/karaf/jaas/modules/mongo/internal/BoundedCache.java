@@ -0,0 +1,575 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * A concurrent cache bounded by a maximum weight. Entries expire a fixed time
+ * after they were written, expired entries are never returned and are removed
+ * by the shared {@link ExpiryScheduler} using a {@link TimerWheel}.
+ *
+ * Eviction follows the W-TinyLFU policy. New entries enter a small admission
+ * window (1% of the weight), entries leaving the window compete with the
+ * least recently used entry of the main space and only the one that was seen
+ * more often according to a {@link FrequencySketch} is kept. The main space is
+ * split into a probation and a protected segment, an entry is protected once
+ * it was read again. A scan of distinct keys therefore cannot push out the
+ * frequently used entries.
+ *
+ * Reads do not block. The access order and frequencies are updated under a
+ * lock that a read only tries to acquire, under contention some accesses are
+ * not recorded which does not affect correctness.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class BoundedCache<K, V> {
+
+	/**
+	 * Calculates the weight of an entry, the weight of an entry must not
+	 * change while it is cached.
+	 */
+	public interface Weigher<K, V> {
+		int weigh(K key, V value);
+	}
+
+	private static final byte WINDOW = 0;
+
+	private static final byte PROBATION = 1;
+
+	private static final byte PROTECTED = 2;
+
+	private static final byte DEAD = 3;
+
+	private static final long CLEANUP_INTERVAL = 1000;
+
+	private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+
+	private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+
+	private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+
+	private final FrequencySketch sketch;
+
+	private final TimerWheel wheel;
+
+	private final Weigher<? super K, ? super V> weigher;
+
+	private final long maximumWeight;
+
+	private final long windowMaximum;
+
+	private final long protectedMaximum;
+
+	private final long timeToLiveMillis;
+
+	private long windowWeight;
+
+	private long protectedWeight;
+
+	private long totalWeight;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * The scheduler only holds a weak reference to the task.
+	 */
+	private final Runnable cleaner = new Runnable() {
+		@Override
+		public void run() {
+			cleanUp();
+		}
+	};
+
+	/**
+	 * Creates a cache where each entry weighs one.
+	 *
+	 * @param maximumSize
+	 *            the maximum number of entries
+	 * @param timeToLive
+	 *            the time an entry lives after it was written, zero or less
+	 *            for no expiry
+	 * @param unit
+	 *            the unit of the time-to-live
+	 */
+	public BoundedCache(long maximumSize, long timeToLive, TimeUnit unit) {
+		this(maximumSize, timeToLive, unit, null);
+	}
+
+	/**
+	 * @param maximumWeight
+	 *            the maximum total weight of all entries
+	 * @param timeToLive
+	 *            the time an entry lives after it was written, zero or less
+	 *            for no expiry
+	 * @param unit
+	 *            the unit of the time-to-live
+	 * @param weigher
+	 *            calculates the weight of an entry, <code>null</code> if each
+	 *            entry weighs one
+	 */
+	public BoundedCache(long maximumWeight, long timeToLive, TimeUnit unit,
+			Weigher<? super K, ? super V> weigher) {
+
+		if (maximumWeight < 0) {
+			throw new IllegalArgumentException(
+					"The maximum weight must not be negative.");
+		}
+
+		this.maximumWeight = maximumWeight;
+		this.windowMaximum = Math.max(1, maximumWeight / 100);
+		this.protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5;
+		this.timeToLiveMillis = unit.toMillis(timeToLive);
+		this.weigher = weigher;
+		this.sketch = new FrequencySketch(maximumWeight);
+		this.wheel = new TimerWheel(ExpiringMap.currentTimeMillis());
+
+		if (timeToLiveMillis > 0) {
+			ExpiryScheduler.getInstance().schedule(cleaner, CLEANUP_INTERVAL);
+		}
+
+	}
+
+	/**
+	 * @param key
+	 *            the key to look up
+	 *
+	 * @return the cached value or <code>null</code> if there is none or it
+	 *         expired
+	 */
+	public V get(Object key) {
+
+		Node<K, V> node = data.get(key);
+
+		if (node == null || isExpired(node, ExpiringMap.currentTimeMillis())) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+
+		if (evictionLock.tryLock()) {
+			try {
+				sketch.increment(node.key);
+				if (node.queue != DEAD) {
+					onAccess(node);
+				}
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+
+		return node.value;
+
+	}
+
+	/**
+	 * Adds or replaces the value of the key, this may evict other entries. A
+	 * value that weighs more than the maximum weight is not cached.
+	 *
+	 * @param key
+	 *            the key of the entry
+	 * @param value
+	 *            the value of the entry
+	 */
+	public void put(K key, V value) {
+
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+
+		int weight = weigher == null ? 1 : weigher.weigh(key, value);
+
+		if (weight < 0) {
+			throw new IllegalArgumentException(
+					"The weight of an entry must not be negative.");
+		}
+
+		if (weight > maximumWeight) {
+			remove(key);
+			return;
+		}
+
+		long now = ExpiringMap.currentTimeMillis();
+
+		evictionLock.lock();
+		try {
+
+			expire(now);
+
+			sketch.increment(key);
+
+			Node<K, V> node = data.get(key);
+
+			if (node == null) {
+				node = new Node<K, V>(key, value, weight, now);
+				data.put(key, node);
+				window.addLast(node);
+				node.queue = WINDOW;
+				windowWeight += weight;
+				totalWeight += weight;
+			} else {
+				int delta = weight - node.weight;
+				node.value = value;
+				node.weight = weight;
+				node.writeTime = now;
+				totalWeight += delta;
+				if (node.queue == WINDOW) {
+					windowWeight += delta;
+				} else if (node.queue == PROTECTED) {
+					protectedWeight += delta;
+				}
+				onAccess(node);
+			}
+
+			if (timeToLiveMillis > 0) {
+				wheel.schedule(node, now + timeToLiveMillis);
+			}
+
+			evict();
+
+		} finally {
+			evictionLock.unlock();
+		}
+
+	}
+
+	/**
+	 * @param key
+	 *            the key of the entry to remove
+	 */
+	public void remove(Object key) {
+
+		evictionLock.lock();
+		try {
+			Node<K, V> node = data.remove(key);
+			if (node != null) {
+				discard(node);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+
+	}
+
+	public void clear() {
+
+		evictionLock.lock();
+		try {
+			for (Node<K, V> node : data.values()) {
+				discard(node);
+			}
+			data.clear();
+		} finally {
+			evictionLock.unlock();
+		}
+
+	}
+
+	/**
+	 * Removes all expired entries.
+	 */
+	public void cleanUp() {
+
+		evictionLock.lock();
+		try {
+			expire(ExpiringMap.currentTimeMillis());
+		} finally {
+			evictionLock.unlock();
+		}
+
+	}
+
+	/**
+	 * @return the number of entries, including expired entries that are not
+	 *         removed yet
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * @return the total weight of all entries
+	 */
+	public long weightedSize() {
+		evictionLock.lock();
+		try {
+			return totalWeight;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/**
+	 * @return the number of lookups that found a value
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that did not find a value
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of entries evicted because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private boolean isExpired(Node<K, V> node, long now) {
+		return timeToLiveMillis > 0
+				&& now - node.writeTime >= timeToLiveMillis;
+	}
+
+	/**
+	 * Must be called with the eviction lock held.
+	 */
+	private void expire(long now) {
+
+		if (timeToLiveMillis <= 0) {
+			return;
+		}
+
+		for (TimerWheel.Node due : wheel.advance(now)) {
+			@SuppressWarnings("unchecked")
+			Node<K, V> node = (Node<K, V>) due;
+			data.remove(node.key, node);
+			discard(node);
+		}
+
+	}
+
+	/**
+	 * Must be called with the eviction lock held.
+	 */
+	private void onAccess(Node<K, V> node) {
+
+		switch (node.queue) {
+		case WINDOW:
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			probation.unlink(node);
+			protectedQueue.addLast(node);
+			node.queue = PROTECTED;
+			protectedWeight += node.weight;
+			demoteProtected();
+			break;
+		case PROTECTED:
+			protectedQueue.moveToLast(node);
+			break;
+		default:
+			break;
+		}
+
+	}
+
+	/**
+	 * Must be called with the eviction lock held.
+	 */
+	private void evict() {
+
+		// entries leaving the admission window become candidates of the main
+		// space
+		while (windowWeight > windowMaximum) {
+			Node<K, V> node = window.peekFirst();
+			window.unlink(node);
+			windowWeight -= node.weight;
+			probation.addLast(node);
+			node.queue = PROBATION;
+		}
+
+		while (totalWeight > maximumWeight) {
+
+			// the most recently admitted entry competes with the least
+			// recently used one
+			Node<K, V> candidate = probation.peekLast();
+			Node<K, V> victim = probation.peekFirst();
+
+			if (candidate == null) {
+				victim = protectedQueue.peekFirst();
+				evict(victim != null ? victim : window.peekFirst());
+				continue;
+			}
+
+			if (victim == candidate) {
+				victim = protectedQueue.peekFirst();
+			}
+
+			if (victim == null
+					|| sketch.frequency(candidate.key) <= sketch
+							.frequency(victim.key)) {
+				evict(candidate);
+			} else {
+				evict(victim);
+			}
+
+		}
+
+	}
+
+	private void evict(Node<K, V> node) {
+		data.remove(node.key, node);
+		discard(node);
+		evictions.incrementAndGet();
+	}
+
+	private void demoteProtected() {
+		while (protectedWeight > protectedMaximum) {
+			Node<K, V> node = protectedQueue.peekFirst();
+			protectedQueue.unlink(node);
+			protectedWeight -= node.weight;
+			probation.addLast(node);
+			node.queue = PROBATION;
+		}
+	}
+
+	/**
+	 * Must be called with the eviction lock held.
+	 */
+	private void discard(Node<K, V> node) {
+
+		switch (node.queue) {
+		case WINDOW:
+			window.unlink(node);
+			windowWeight -= node.weight;
+			break;
+		case PROBATION:
+			probation.unlink(node);
+			break;
+		case PROTECTED:
+			protectedQueue.unlink(node);
+			protectedWeight -= node.weight;
+			break;
+		default:
+			return;
+		}
+
+		totalWeight -= node.weight;
+		node.queue = DEAD;
+		wheel.cancel(node);
+
+	}
+
+	/**
+	 * A cache entry, it is linked into one of the access queues and, if the
+	 * entry expires, into the timer wheel.
+	 */
+	private static final class Node<K, V> extends TimerWheel.Node {
+
+		private final K key;
+
+		private volatile V value;
+
+		private volatile long writeTime;
+
+		private int weight;
+
+		private byte queue;
+
+		private Node<K, V> accessPrev;
+
+		private Node<K, V> accessNext;
+
+		Node(K key, V value, int weight, long writeTime) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.writeTime = writeTime;
+		}
+
+	}
+
+	/**
+	 * A doubly linked list of entries in access order, the least recently
+	 * used entry first.
+	 */
+	private static final class AccessQueue<K, V> {
+
+		private Node<K, V> head;
+
+		private Node<K, V> tail;
+
+		Node<K, V> peekFirst() {
+			return head;
+		}
+
+		Node<K, V> peekLast() {
+			return tail;
+		}
+
+		void addLast(Node<K, V> node) {
+			node.accessPrev = tail;
+			node.accessNext = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.accessNext = node;
+			}
+			tail = node;
+		}
+
+		void unlink(Node<K, V> node) {
+			if (node.accessPrev == null) {
+				head = node.accessNext;
+			} else {
+				node.accessPrev.accessNext = node.accessNext;
+			}
+			if (node.accessNext == null) {
+				tail = node.accessPrev;
+			} else {
+				node.accessNext.accessPrev = node.accessPrev;
+			}
+			node.accessPrev = null;
+			node.accessNext = null;
+		}
+
+		void moveToLast(Node<K, V> node) {
+			if (node != tail) {
+				unlink(node);
+				addLast(node);
+			}
+		}
+
+	}
+
+}
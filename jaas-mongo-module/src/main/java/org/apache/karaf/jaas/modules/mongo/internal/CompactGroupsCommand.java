@@ -0,0 +1,60 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+
+/**
+ *
+ * Removes the group members that no longer exist as users, see
+ * {@link OrphanMemberCompactor}.
+ *
+ * @author Niels Bertram
+ *
+ */
+@Command(scope = "jaas-mongo", name = "compact-groups", description = "Removes the group members that no longer exist as users.")
+public class CompactGroupsCommand extends MongoCommandSupport {
+
+	@Option(name = "-b", aliases = { "--batch-size" }, description = "The number of groups read and members checked at a time.", required = false, multiValued = false)
+	private int batchSize = 1000;
+
+	@Override
+	protected Object doExecute() throws Exception {
+
+		UserDetailService service = getUserDetailService();
+
+		if (!(service instanceof DefaultUserDetailService)) {
+			System.err.println("The groups of a custom user detail service ["
+					+ service.getClass().getName() + "] cannot be compacted.");
+			return null;
+		}
+
+		long removed = new OrphanMemberCompactor(
+				(DefaultUserDetailService) service, batchSize).compact();
+
+		System.out.println("Removed " + removed + " orphaned group members.");
+
+		return null;
+
+	}
+
+}
@@ -24,22 +24,37 @@ import org.slf4j.LoggerFactory;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.Page;
 import org.apache.karaf.jaas.modules.mongo.UserDetailService;
 import org.apache.karaf.jaas.modules.mongo.UserInfo;
+import org.apache.karaf.jaas.modules.mongo.UserWriteException;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 
 /**
@@ -52,21 +67,12 @@ public class DefaultUserDetailService implements UserDetailService {
 
 	protected transient Logger log = LoggerFactory.getLogger(getClass());
 
-	private static ExpiringMap<String, MongoClient> createdClients = new ExpiringMap<String, MongoClient>();
-
-	static {
-
-		createdClients
-				.addExpirationListener(new MongoClientExpirationListener());
-
-		createdClients.getExpirer().startExpiringIfNotStarted();
-
-	}
-
 	private MongoConfiguration configuration;
 
-	private static DBObject ROLE_PROJECTION = BasicDBObjectBuilder.start()
-			.add("_id", 0).add("name", 1).add("members", 1).get();
+	/**
+	 * The time the hint of a covering index last failed.
+	 */
+	private volatile long hintFailed;
 
 	public DefaultUserDetailService() {
 	}
@@ -88,7 +94,27 @@ public class DefaultUserDetailService implements UserDetailService {
 	@Override
 	public UserInfo getUserInfo(String username) throws Exception {
 
-		DB db = getDB();
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+
+			ReadPreference readPreference = configuration.getReadPreference();
+
+			UserInfo userInfo = findUserInfo(db, username, readPreference);
+
+			// the user may not be replicated to the secondary yet
+			if (userInfo == null && isPrimaryFallback(readPreference)) {
+				userInfo = findUserInfo(db, username, ReadPreference.primary());
+			}
+
+			return userInfo;
+
+		}
+
+	}
+
+	private UserInfo findUserInfo(DB db, String username,
+			ReadPreference readPreference) {
 
 		DBCollection users = db.getCollection(configuration
 				.getUserCollectionName());
@@ -96,6 +122,168 @@ public class DefaultUserDetailService implements UserDetailService {
 		// populate user
 		DBObject userQuery = new BasicDBObject("username", username);
 
+		DBObject user;
+
+		if (IndexBootstrapper.isUserLookupCoverable(configuration)) {
+			user = findOneHinted(users, userQuery, createUserProjection().get(),
+					IndexBootstrapper.COVERING_USER_INDEX, readPreference);
+		} else {
+			user = users.findOne(userQuery, createUserProjection().get(),
+					readPreference);
+		}
+
+		// if nothing comes back just return empty handed
+		if (user == null) {
+			return null;
+		}
+
+		UserInfo userInfo = createUserInfo(user);
+
+		// populate group
+		DBCollection groups = db.getCollection(configuration
+				.getGroupCollectionName());
+
+		DBObject groupQuery;
+
+		if (configuration.isUserRolesEmbedded()) {
+
+			// roles are already populated from the user document
+			if (!configuration.isGroupsNested()
+					|| userInfo.getGroups().isEmpty()) {
+				return userInfo;
+			}
+
+			// only the roles inherited from enclosing groups are missing
+			groupQuery = new BasicDBObject("name", new BasicDBObject("$in",
+					toList(userInfo.getGroups())));
+
+		} else {
+			groupQuery = new BasicDBObject("members", username);
+		}
+
+		Set<String> roles = new LinkedHashSet<String>(userInfo.getGroups());
+
+		List<DBObject> memberOf = find(groups.find(groupQuery,
+				createGroupProjection().get()), readPreference);
+
+		for (DBObject group : memberOf) {
+			addRoles(roles, group);
+		}
+
+		userInfo.getGroups().clear();
+		userInfo.getGroups().addAll(roles);
+
+		return userInfo;
+
+	}
+
+	private DBObject findOneHinted(DBCollection collection, DBObject query,
+			DBObject projection, DBObject index, ReadPreference readPreference) {
+		List<DBObject> found = findHinted(collection, query, projection, index,
+				1, readPreference);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/**
+	 * Runs the query hinted to a covering index. The server rejects the hint
+	 * of an index that does not exist (yet), the query then runs without the
+	 * hint and is not hinted again before the indexes are bootstrapped again.
+	 */
+	private List<DBObject> findHinted(DBCollection collection, DBObject query,
+			DBObject projection, DBObject index, int limit,
+			ReadPreference readPreference) {
+
+		long sinceFailure = System.currentTimeMillis() - hintFailed;
+
+		if (sinceFailure >= IndexBootstrapper.RETRY_INTERVAL) {
+			try {
+				return find(collection.find(query, projection).hint(index)
+						.limit(limit), readPreference);
+			} catch (MongoException e) {
+				hintFailed = System.currentTimeMillis();
+				log.warn(
+						"Failed to use index {} of collection [{}], the lookup is not covered: {}",
+						index, collection.getName(), e.getMessage());
+			}
+		}
+
+		return find(collection.find(query, projection).limit(limit),
+				readPreference);
+
+	}
+
+	private static List<DBObject> find(DBCursor cursor,
+			ReadPreference readPreference) {
+
+		List<DBObject> found = new ArrayList<DBObject>();
+
+		cursor.setReadPreference(readPreference);
+		try {
+			while (cursor.hasNext()) {
+				found.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return found;
+
+	}
+
+	/**
+	 * @return true if a user that was not found with the supplied read
+	 *         preference must be looked up on the primary again
+	 */
+	protected boolean isPrimaryFallback(ReadPreference readPreference) {
+		return configuration.isReadPrimaryFallback()
+				&& !ReadPreference.primary().equals(readPreference);
+	}
+
+	/**
+	 * @return a projection of the group document fields required to resolve
+	 *         the roles of a member
+	 */
+	protected BasicDBObjectBuilder createGroupProjection() {
+
+		BasicDBObjectBuilder groupProjectionBuilder = BasicDBObjectBuilder
+				.start().add("_id", 0).add("name", 1);
+
+		if (configuration.isGroupsNested()) {
+			groupProjectionBuilder.add(GroupHierarchy.EFFECTIVE_ROLES_FIELD, 1);
+		}
+
+		return groupProjectionBuilder;
+	}
+
+	/**
+	 * Adds the roles held by the members of a group, with nested groups these
+	 * include the roles of all groups it is nested in.
+	 * 
+	 * @param roles
+	 *            the roles to add to
+	 * @param group
+	 *            the group document as projected by
+	 *            {@link #createGroupProjection()}
+	 */
+	protected void addRoles(Set<String> roles, DBObject group) {
+
+		roles.add((String) group.get("name"));
+
+		Object effectiveRoles = group.get(GroupHierarchy.EFFECTIVE_ROLES_FIELD);
+		if (configuration.isGroupsNested() && effectiveRoles instanceof List) {
+			for (Object role : (List<?>) effectiveRoles) {
+				roles.add((String) role);
+			}
+		}
+
+	}
+
+	/**
+	 * @return a projection of the user document fields required to populate
+	 *         the {@link UserInfo}
+	 */
+	protected BasicDBObjectBuilder createUserProjection() {
+
 		BasicDBObjectBuilder userProjectionBuilder = BasicDBObjectBuilder
 				.start().add("_id", 0).add("username", 1)
 				.add("passwordHash", 1);
@@ -105,12 +293,23 @@ public class DefaultUserDetailService implements UserDetailService {
 			userProjectionBuilder.add(prop, 1);
 		}
 
-		DBObject user = users.findOne(userQuery, userProjectionBuilder.get());
-		// if nothing comes back just return empty handed
-		if (user == null) {
-			return null;
+		if (configuration.isUserRolesEmbedded()) {
+			userProjectionBuilder.add(configuration.getUserRolesAttribute(), 1);
 		}
 
+		return userProjectionBuilder;
+	}
+
+	/**
+	 * @param user
+	 *            the user document as projected by
+	 *            {@link #createUserProjection()}
+	 * 
+	 * @return the user info, with groups only if they are embedded in the
+	 *         user document
+	 */
+	protected UserInfo createUserInfo(DBObject user) {
+
 		UserInfo userInfo = new UserInfo().withName(
 				(String) user.get("username")).withPassword(
 				(String) user.get("passwordHash"));
@@ -125,171 +324,697 @@ public class DefaultUserDetailService implements UserDetailService {
 
 		}
 
-		// populate group
-		DBCollection groups = db.getCollection(configuration
-				.getGroupCollectionName());
+		if (configuration.isUserRolesEmbedded()) {
+			Object roles = user.get(configuration.getUserRolesAttribute());
+			if (roles instanceof List) {
+				for (Object role : (List<?>) roles) {
+					userInfo.addGroup((String) role);
+				}
+			}
+		}
+
+		return userInfo;
+	}
 
-		DBObject groupQuery = new BasicDBObject("members", username);
+	public java.util.List<String> getUserNames() throws Exception {
 
-		DBCursor gc = groups.find(groupQuery, BasicDBObjectBuilder.start()
-				.append("_id", 0).append("name", 1).get());
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
 
-		while (gc.hasNext()) {
-			DBObject group = gc.next();
-			userInfo.addGroup((String) group.get("name"));
-		}
-		gc.close();
+			List<String> result = new LinkedList<String>();
 
-		return userInfo;
+			DBCollection users = getDB(lease).getCollection(
+					configuration.getUserCollectionName());
+
+			DBObject userProjection = new BasicDBObjectBuilder().add("_id", 0)
+					.add("username", 1).get();
+
+			DBCursor uc = users.find(null, userProjection);
+			uc.setReadPreference(configuration.getReadPreference());
+			while (uc.hasNext()) {
+				DBObject group = uc.next();
+				result.add((String) group.get("username"));
+			}
+			uc.close();
+
+			return result;
+
+		}
 
 	}
 
-	public java.util.List<String> getUserNames() throws Exception {
+	@Override
+	public List<String> getUserNames(String after, int limit)
+			throws Exception {
+
+		// a limit of 0 would read all users in one page
+		if (limit < 1) {
+			throw new IllegalArgumentException(
+					"The limit must be at least 1 but was [" + limit + "].");
+		}
 
-		List<String> result = new LinkedList<String>();
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
 
-		DBCollection users = getDB().getCollection(
-				configuration.getUserCollectionName());
+			List<String> result = new ArrayList<String>(Math.min(limit,
+					configuration.getUserListBatchSize()));
 
-		DBObject userProjection = new BasicDBObjectBuilder().add("_id", 0)
-				.add("username", 1).get();
+			DBCollection users = getDB(lease).getCollection(
+					configuration.getUserCollectionName());
+
+			DBObject query = after == null ? new BasicDBObject()
+					: new BasicDBObject("username", new BasicDBObject("$gt",
+							after));
+
+			DBObject userProjection = new BasicDBObjectBuilder().add("_id", 0)
+					.add("username", 1).get();
+
+			// walks the username index from the last name of the previous page
+			DBCursor uc = users.find(query, userProjection)
+					.sort(new BasicDBObject("username", 1)).limit(limit)
+					.batchSize(configuration.getUserListBatchSize());
+			uc.setReadPreference(configuration.getReadPreference());
+			try {
+				while (uc.hasNext()) {
+					result.add((String) uc.next().get("username"));
+				}
+			} finally {
+				uc.close();
+			}
+
+			return result;
 
-		DBCursor uc = users.find(null, userProjection);
-		while (uc.hasNext()) {
-			DBObject group = uc.next();
-			result.add((String) group.get("username"));
 		}
-		uc.close();
 
-		return result;
+	}
+
+	@Override
+	public Iterator<String> iterateUserNames() throws Exception {
+		return new UserNameIterator(this, configuration.getUserListBatchSize());
 	}
 
 	@Override
 	public UserInfo addUser(UserInfo user) throws Exception {
 
-		DB db = getDB();
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
 
-		DBCollection users = db.getCollection(configuration
-				.getUserCollectionName());
+			DB db = getDB(lease);
 
-		DBCollection roles = db.getCollection(configuration
-				.getGroupCollectionName());
+			DBCollection users = db.getCollection(configuration
+					.getUserCollectionName());
 
-		DBObject storedUser = users.findOne(new BasicDBObject().append(
-				"username", user.getName()));
+			// creates the user unless it exists, an existing password is kept
+			BasicDBObject update = new BasicDBObject("$setOnInsert",
+					new BasicDBObject("passwordHash", user.getPassword()));
 
-		if (storedUser == null) {
+			if (configuration.isUserRolesEmbedded()) {
+				// keep the embedded roles in line with the groups collection
+				update.append("$addToSet", new BasicDBObject(
+						configuration.getUserRolesAttribute(),
+						new BasicDBObject("$each", toList(user.getGroups()))));
+			}
 
-			users.insert(BasicDBObjectBuilder.start("username", user.getName())
-					.append("passwordHash", user.getPassword()).get());
+			users.update(new BasicDBObject("username", user.getName()), update,
+					true, false);
+
+			addMemberships(db, user.getName(), user.getGroups());
+
+			return user;
 
-		} else {
-			// will not do anything here
 		}
 
-		for (String role : user.getGroups()) {
+	}
 
-			DBObject roleQuery = new BasicDBObject("name", role);
+	/**
+	 * Adds the user to the members of all its groups in a single bulk write.
+	 * Each group is created if it does not exist, the members are never read
+	 * so the cost does not depend on the size of a group.
+	 */
+	private void addMemberships(DB db, String username, List<String> roles) {
 
-			// roles are unique by name
-			DBObject roleData = roles.findOne(roleQuery, ROLE_PROJECTION);
+		if (roles.isEmpty()) {
+			return;
+		}
 
-			if (roleData == null) {
-				// add role with user as first member
-				BasicDBList members = new BasicDBList();
-				members.add(user.getName());
-				roleData = BasicDBObjectBuilder.start().add("name", role)
-						.add("members", members).get();
+		BulkWriteOperation writes = db.getCollection(
+				configuration.getGroupCollectionName())
+				.initializeUnorderedBulkOperation();
 
-				roles.insert(roleData);
+		for (String role : new LinkedHashSet<String>(roles)) {
+			writes.find(new BasicDBObject("name", role))
+					.upsert()
+					.updateOne(
+							new BasicDBObject("$addToSet", new BasicDBObject(
+									"members", username)));
+		}
 
-			} else {
+		writes.execute();
+
+	}
+
+	@Override
+	public void addUsers(List<UserInfo> users) throws Exception {
 
-				// add user to group if not already in the role's member list
-				Object mo = roleData.get("members");
-				if (mo == null) {
+		if (users.isEmpty()) {
+			return;
+		}
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
 
-					// TODO what here?
-					BasicDBObject updateObject = new BasicDBObject().append(
-							"$push",
-							new BasicDBObject("members", user.getName()));
+			DB db = getDB(lease);
 
-					roles.update(roleQuery, updateObject);
+			BulkWriteOperation userWrites = db.getCollection(
+					configuration.getUserCollectionName())
+					.initializeUnorderedBulkOperation();
 
-				} else if (mo != null && mo instanceof List) {
+			for (UserInfo user : users) {
 
-					// if user is in group already we dont need to do anything
-					List<?> existingMembers = (List<?>) mo;
+				BasicDBObject update = new BasicDBObject("$set",
+						new BasicDBObject("passwordHash", user.getPassword()));
 
-					if (!existingMembers.contains(user.getName())) {
-						// push this user to the members list
-						BasicDBObject updateObject = new BasicDBObject()
-								.append("$push", new BasicDBObject("members",
-										user.getName()));
+				if (configuration.isUserRolesEmbedded()) {
+					update.append("$addToSet", new BasicDBObject(
+							configuration.getUserRolesAttribute(),
+							new BasicDBObject("$each", toList(user.getGroups()))));
+				}
 
-						roles.update(roleQuery, updateObject);
+				userWrites.find(new BasicDBObject("username", user.getName()))
+						.upsert().updateOne(update);
+
+			}
 
+			// the error of each user that failed, by username
+			Map<String, String> failures = new LinkedHashMap<String, String>();
+
+			BulkWriteException userFailure = null;
+			try {
+				userWrites.execute();
+			} catch (BulkWriteException e) {
+				userFailure = e;
+				// the indices are those of the users
+				for (BulkWriteError error : e.getWriteErrors()) {
+					failures.put(users.get(error.getIndex()).getName(),
+							error.getMessage());
+				}
+				if (e.getWriteErrors().isEmpty()) {
+					for (UserInfo user : users) {
+						failures.put(user.getName(), e.getMessage());
 					}
+				}
+			}
 
-				} else {
-					log.warn(
-							"The members collection of group [{}] is not a list but of type [{}].",
-							role, mo.getClass().getName());
+			// the members of each group, without the users that failed
+			Map<String, BasicDBList> memberships = new LinkedHashMap<String, BasicDBList>();
+			for (UserInfo user : users) {
+				if (failures.containsKey(user.getName())) {
+					continue;
+				}
+				for (String role : user.getGroups()) {
+					BasicDBList members = memberships.get(role);
+					if (members == null) {
+						members = new BasicDBList();
+						memberships.put(role, members);
+					}
+					members.add(user.getName());
+				}
+			}
+
+			BulkWriteException groupFailure = null;
+
+			if (!memberships.isEmpty()) {
+
+				BulkWriteOperation groupWrites = db.getCollection(
+						configuration.getGroupCollectionName())
+						.initializeUnorderedBulkOperation();
+
+				List<String> groupNames = new ArrayList<String>(
+						memberships.keySet());
+				for (String groupName : groupNames) {
+					groupWrites.find(new BasicDBObject("name", groupName))
+							.upsert()
+							.updateOne(new BasicDBObject("$addToSet",
+									new BasicDBObject("members",
+											new BasicDBObject("$each",
+													memberships.get(groupName)))));
+				}
+
+				try {
+					groupWrites.execute();
+				} catch (BulkWriteException e) {
+					groupFailure = e;
+					// the indices are those of the groups, their members fail
+					Map<String, String> failedGroups = new LinkedHashMap<String, String>();
+					for (BulkWriteError error : e.getWriteErrors()) {
+						failedGroups.put(groupNames.get(error.getIndex()),
+								error.getMessage());
+					}
+					if (e.getWriteErrors().isEmpty()) {
+						for (String groupName : groupNames) {
+							failedGroups.put(groupName, e.getMessage());
+						}
+					}
+					for (Map.Entry<String, String> failedGroup : failedGroups
+							.entrySet()) {
+						for (Object member : memberships.get(failedGroup
+								.getKey())) {
+							if (!failures.containsKey(member)) {
+								failures.put((String) member,
+										"Failed to add to group ["
+												+ failedGroup.getKey() + "]: "
+												+ failedGroup.getValue());
+							}
+						}
+					}
 				}
 
 			}
 
+			if (!failures.isEmpty()) {
+				UserWriteException failure = new UserWriteException(failures,
+						userFailure != null ? userFailure : groupFailure);
+				if (userFailure != null && groupFailure != null) {
+					failure.addSuppressed(groupFailure);
+				}
+				throw failure;
+			}
+
 		}
 
-		return user;
 	}
 
 	@Override
 	public UserInfo updateUser(UserInfo user) throws Exception {
-		// FIXME review this
-		return addUser(user);
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			// ensures the user exists and is a member of all its groups
+			addUser(user);
+
+			DB db = getDB(lease);
+
+			BasicDBList groups = toList(user.getGroups());
+
+			// remove the user from all groups it no longer belongs to
+			DBCollection roles = db.getCollection(configuration
+					.getGroupCollectionName());
+
+			roles.update(
+					new BasicDBObject("members", user.getName()).append("name",
+							new BasicDBObject("$nin", groups)),
+					new BasicDBObject("$pull", new BasicDBObject("members", user
+							.getName())), false, true);
+
+			BasicDBObject changes = new BasicDBObject();
+
+			if (user.getPassword() != null) {
+				changes.append("passwordHash", user.getPassword());
+			}
+
+			if (configuration.isUserRolesEmbedded()) {
+				changes.append(configuration.getUserRolesAttribute(), groups);
+			}
+
+			if (!changes.isEmpty()) {
+
+				DBCollection users = db.getCollection(configuration
+						.getUserCollectionName());
+
+				users.update(new BasicDBObject("username", user.getName()),
+						new BasicDBObject("$set", changes));
+
+			}
+
+			return user;
+
+		}
+
+	}
+
+	@Override
+	public boolean updatePasswordHash(String username, String expectedHash,
+			String newHash) throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DBCollection users = getDB(lease).getCollection(
+					configuration.getUserCollectionName());
+
+			// never recreates a deleted user or overwrites a changed password
+			return users.update(
+					new BasicDBObject("username", username).append(
+							"passwordHash", expectedHash),
+					new BasicDBObject("$set", new BasicDBObject("passwordHash",
+							newHash))).getN() > 0;
+
+		}
+
 	}
 
 	@Override
 	public void deleteUser(String username) throws Exception {
 
-		DBCollection users = getDB().getCollection(
-				configuration.getUserCollectionName());
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+
+			DBCollection users = db.getCollection(configuration
+					.getUserCollectionName());
+
+			DBObject userQuery = new BasicDBObject("username", username);
+			users.remove(userQuery);
+
+			// a single multi update removes the user from all its groups
+			DBCollection roles = db.getCollection(configuration
+					.getGroupCollectionName());
+
+			roles.update(new BasicDBObject("members", username),
+					new BasicDBObject("$pull", new BasicDBObject("members",
+							username)), false, true);
+
+		}
+
+	}
+
+	@Override
+	public List<String> getRoles(String username) throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+			ReadPreference readPreference = configuration.getReadPreference();
+			Set<String> roles = new LinkedHashSet<String>();
+
+			DBObject groupQuery;
+
+			if (configuration.isUserRolesEmbedded()) {
+
+				String rolesAttribute = configuration.getUserRolesAttribute();
+
+				DBObject user = db.getCollection(
+						configuration.getUserCollectionName()).findOne(
+						new BasicDBObject("username", username),
+						BasicDBObjectBuilder.start().add("_id", 0)
+								.add(rolesAttribute, 1).get(), readPreference);
+
+				if (user != null && user.get(rolesAttribute) instanceof List) {
+					for (Object role : (List<?>) user.get(rolesAttribute)) {
+						roles.add((String) role);
+					}
+				}
+
+				if (!configuration.isGroupsNested() || roles.isEmpty()) {
+					return new ArrayList<String>(roles);
+				}
+
+				// only the roles inherited from enclosing groups are missing
+				groupQuery = new BasicDBObject("name", new BasicDBObject(
+						"$in", new ArrayList<String>(roles)));
+
+			} else {
+				groupQuery = new BasicDBObject("members", username);
+			}
+
+			DBCursor gc = db.getCollection(
+					configuration.getGroupCollectionName()).find(groupQuery,
+					createGroupProjection().get());
+			gc.setReadPreference(readPreference);
+			try {
+				while (gc.hasNext()) {
+					addRoles(roles, gc.next());
+				}
+			} finally {
+				gc.close();
+			}
+
+			return new ArrayList<String>(roles);
+
+		}
+
+	}
+
+	/**
+	 * Reads the members of the group with a <code>$slice</code> projection,
+	 * the cursor is the offset into the members. Members are appended to the
+	 * group, a member removed while paging shifts the following members by
+	 * one. Embedded roles are paged by user name instead. With nested groups
+	 * the members of all groups holding the role are merged by an aggregation
+	 * and paged by user name as well.
+	 */
+	@Override
+	public Page<String> listUsersInRole(String role, String cursor, int limit)
+			throws Exception {
+
+		if (limit < 1) {
+			throw new IllegalArgumentException(
+					"The limit must be at least 1 but was [" + limit + "].");
+		}
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+			ReadPreference readPreference = configuration.getReadPreference();
+
+			if (configuration.isUserRolesEmbedded()) {
+
+				DBObject query = new BasicDBObject(
+						configuration.getUserRolesAttribute(), role);
+				if (cursor != null) {
+					query.put("username", new BasicDBObject("$gt", cursor));
+				}
+
+				List<String> names = new ArrayList<String>();
+				DBCursor uc = db
+						.getCollection(configuration.getUserCollectionName())
+						.find(query,
+								BasicDBObjectBuilder.start().add("_id", 0)
+										.add("username", 1).get())
+						.sort(new BasicDBObject("username", 1)).limit(limit);
+				uc.setReadPreference(readPreference);
+				try {
+					while (uc.hasNext()) {
+						names.add((String) uc.next().get("username"));
+					}
+				} finally {
+					uc.close();
+				}
+
+				return new Page<String>(names,
+						names.size() < limit ? null : names.get(names.size() - 1));
+
+			}
+
+			if (configuration.isGroupsNested()) {
+				List<String> names = listNestedMembers(
+						db.getCollection(configuration.getGroupCollectionName()),
+						role, cursor, limit, readPreference);
+				return new Page<String>(names,
+						names.size() < limit ? null : names.get(names.size() - 1));
+			}
+
+			int offset;
+			try {
+				offset = cursor == null ? 0 : Integer.parseInt(cursor);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid cursor [" + cursor
+						+ "].");
+			}
+
+			DBObject group = db.getCollection(
+					configuration.getGroupCollectionName()).findOne(
+					new BasicDBObject("name", role),
+					BasicDBObjectBuilder
+							.start()
+							.add("_id", 0)
+							.add("members",
+									new BasicDBObject("$slice", Arrays.asList(
+											offset, limit))).get(),
+					readPreference);
+
+			List<String> names = new ArrayList<String>();
+			if (group != null && group.get("members") instanceof List) {
+				for (Object member : (List<?>) group.get("members")) {
+					names.add((String) member);
+				}
+			}
+
+			return new Page<String>(names, names.size() < limit ? null
+					: String.valueOf(offset + names.size()));
+
+		}
+
+	}
+
+	/**
+	 * A user holding the role through several groups is listed once.
+	 */
+	private List<String> listNestedMembers(DBCollection groups, String role,
+			String after, int limit, ReadPreference readPreference) {
+
+		List<DBObject> pipeline = new ArrayList<DBObject>();
+
+		// a group never nested in another has no effective roles yet
+		pipeline.add(new BasicDBObject("$match", new BasicDBObject("$or",
+				Arrays.asList(new BasicDBObject("name", role),
+						new BasicDBObject(GroupHierarchy.EFFECTIVE_ROLES_FIELD,
+								role)))));
+		pipeline.add(new BasicDBObject("$project", BasicDBObjectBuilder
+				.start().add("_id", 0).add("members", 1).get()));
+		pipeline.add(new BasicDBObject("$unwind", "$members"));
+		if (after != null) {
+			pipeline.add(new BasicDBObject("$match", new BasicDBObject(
+					"members", new BasicDBObject("$gt", after))));
+		}
+		pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id",
+				"$members")));
+		pipeline.add(new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+		pipeline.add(new BasicDBObject("$limit", limit));
+
+		List<String> names = new ArrayList<String>();
+		Cursor mc = groups.aggregate(pipeline, AggregationOptions.builder()
+				.outputMode(AggregationOptions.OutputMode.CURSOR).build(),
+				readPreference);
+		try {
+			while (mc.hasNext()) {
+				names.add((String) mc.next().get("_id"));
+			}
+		} finally {
+			mc.close();
+		}
+
+		return names;
+
+	}
+
+	@Override
+	public boolean addRole(String username, String role) throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+
+			if (!updateEmbeddedRoles(db, username, new BasicDBObject(
+					"$addToSet", new BasicDBObject(
+							configuration.getUserRolesAttribute(), role)))) {
+				return false;
+			}
+
+			db.getCollection(configuration.getGroupCollectionName()).update(
+					new BasicDBObject("name", role),
+					new BasicDBObject("$addToSet", new BasicDBObject(
+							"members", username)), true, false);
+
+			return true;
+
+		}
+
+	}
+
+	@Override
+	public boolean removeRole(String username, String role) throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+
+			DB db = getDB(lease);
+
+			if (!updateEmbeddedRoles(db, username, new BasicDBObject("$pull",
+					new BasicDBObject(configuration.getUserRolesAttribute(),
+							role)))) {
+				return false;
+			}
+
+			db.getCollection(configuration.getGroupCollectionName()).update(
+					new BasicDBObject("name", role),
+					new BasicDBObject("$pull", new BasicDBObject("members",
+							username)));
+
+			return true;
+
+		}
+
+	}
 
+	/**
+	 * Applies the update to the embedded roles of the user, if the roles are
+	 * not embedded only checks that the user exists by reading its id from
+	 * the username index.
+	 * 
+	 * @return false if the user does not exist
+	 */
+	private boolean updateEmbeddedRoles(DB db, String username,
+			DBObject update) {
+
+		DBCollection users = db.getCollection(configuration
+				.getUserCollectionName());
 		DBObject userQuery = new BasicDBObject("username", username);
-		users.remove(userQuery);
 
-		// / FIXME also remove from all role definitions
+		if (configuration.isUserRolesEmbedded()) {
+			return users.update(userQuery, update).getN() > 0;
+		}
+
+		return users.findOne(userQuery, new BasicDBObject("_id", 1)) != null;
 
 	}
 
-	private DB getDB() throws NumberFormatException, UnknownHostException {
-		return getClient().getDB(configuration.getDatabaseName());
+	@Override
+	public void addNestedGroup(String parent, String child) throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+			new GroupHierarchy(getDB(lease).getCollection(
+					configuration.getGroupCollectionName())).addNestedGroup(
+					parent, child);
+		}
+
+	}
+
+	@Override
+	public void removeNestedGroup(String parent, String child)
+			throws Exception {
+
+		try (MongoClientRegistry.Lease lease = acquireClient()) {
+			new GroupHierarchy(getDB(lease).getCollection(
+					configuration.getGroupCollectionName()))
+					.removeNestedGroup(parent, child);
+		}
+
+	}
+
+	static BasicDBList toList(List<String> values) {
+		BasicDBList list = new BasicDBList();
+		list.addAll(values);
+		return list;
 	}
 
 	/**
-	 * Needed to ensure we do not continuously creating mongo clients.
-	 * MongoClient itself is thread safe.
+	 * @param lease
+	 *            the lease of the client to use
 	 * 
-	 * TODO check if synchronsied is really needed
+	 * @return the configured database of the leased client, its indexes are
+	 *         ensured in the background on first use
+	 */
+	protected DB getDB(MongoClientRegistry.Lease lease) {
+		IndexBootstrapper.bootstrap(configuration, this);
+		return lease.getClient().getDB(configuration.getDatabaseName());
+	}
+
+	/**
+	 * Needed to ensure we do not continuously creating mongo clients.
+	 * MongoClient itself is thread safe and shared by all services connecting
+	 * to the same mongo servers. The lease must be closed once the client is
+	 * no longer used.
 	 * 
-	 * @param url
-	 * @return
+	 * @return a lease of the client for the configured mongo servers
 	 * @throws NumberFormatException
 	 * @throws UnknownHostException
 	 */
-	protected synchronized MongoClient getClient()
+	protected MongoClientRegistry.Lease acquireClient()
 			throws NumberFormatException, UnknownHostException {
 
-		String hash = calculateDBHash();
-
-		if (createdClients.containsKey(hash)) {
-			return createdClients.get(hash);
-		} else {
-			MongoClient client = createClient();
-			createdClients.put(hash, client);
-			return client;
-		}
+		return MongoClientRegistry.getInstance().acquire(calculateDBHash(),
+				new MongoClientRegistry.ClientFactory() {
+					@Override
+					public MongoClient createClient()
+							throws UnknownHostException {
+						return DefaultUserDetailService.this.createClient();
+					}
+				});
 
 	}
 
@@ -309,12 +1034,14 @@ public class DefaultUserDetailService implements UserDetailService {
 				servers.add(new ServerAddress(host, Integer.parseInt(port)));
 			}
 		}
-		return new MongoClient(servers);
+		return new MongoClient(servers, configuration.getClientOptions());
 
 	}
 
 	private String calculateDBHash() {
-		return "/" + this.configuration.getDatasourceURL() + "/";
+		// clients with different options must not be shared
+		return "/" + this.configuration.getDatasourceURL() + "/"
+				+ this.configuration.getClientOptions() + "/";
 		// TODO for future password or cert creds we need hashing too
 	}
 }
@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.jaas.modules.mongo.AsyncUserDetailService;
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+
+/**
+ *
+ * Adapts a blocking {@link UserDetailService} to the
+ * {@link AsyncUserDetailService} contract. The blocking calls run on a pool of
+ * at most {@link MongoConfiguration#getAsyncThreads()} threads, so that no
+ * more threads wait on the mongo database than there are pooled connections.
+ * Once {@link MongoConfiguration#getAsyncQueueSize()} calls are waiting for a
+ * thread further calls fail right away with a
+ * {@link RejectedExecutionException} instead of queuing up without bounds.
+ * 
+ * The threads are daemon threads and are released after a minute without
+ * work.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class ExecutorAsyncUserDetailService implements AsyncUserDetailService {
+
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	private final UserDetailService service;
+
+	private final ThreadPoolExecutor executor;
+
+	public ExecutorAsyncUserDetailService(UserDetailService service) {
+
+		this.service = service;
+
+		MongoConfiguration configuration = service.getConfiguration();
+
+		final String prefix = "MongoUserDetailService-"
+				+ poolCount.incrementAndGet() + "-";
+
+		this.executor = new ThreadPoolExecutor(
+				configuration.getAsyncThreads(),
+				configuration.getAsyncThreads(), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(
+						configuration.getAsyncQueueSize()),
+				new ThreadFactory() {
+					private final AtomicInteger threadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, prefix
+								+ threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+
+	}
+
+	/**
+	 * @return the blocking service this service delegates to
+	 */
+	public UserDetailService getService() {
+		return service;
+	}
+
+	@Override
+	public MongoConfiguration getConfiguration() {
+		return service.getConfiguration();
+	}
+
+	@Override
+	public CompletableFuture<UserInfo> getUserInfoAsync(final String username) {
+		return submit(new Callable<UserInfo>() {
+			@Override
+			public UserInfo call() throws Exception {
+				return service.getUserInfo(username);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<String>> getUserNamesAsync() {
+		return submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				return service.getUserNames();
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<String>> getRolesAsync(final String username) {
+		return submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				return service.getRoles(username);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<UserInfo> addUserAsync(final UserInfo user) {
+		return submit(new Callable<UserInfo>() {
+			@Override
+			public UserInfo call() throws Exception {
+				return service.addUser(user);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<UserInfo> updateUserAsync(final UserInfo user) {
+		return submit(new Callable<UserInfo>() {
+			@Override
+			public UserInfo call() throws Exception {
+				return service.updateUser(user);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteUserAsync(final String username) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				service.deleteUser(username);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> updatePasswordHashAsync(
+			final String username, final String expectedHash,
+			final String newHash) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return service.updatePasswordHash(username, expectedHash,
+						newHash);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of calls waiting for a thread
+	 */
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops the threads, calls that did not start yet are failed.
+	 */
+	public void shutdown() {
+		for (Runnable pending : executor.shutdownNow()) {
+			if (pending instanceof Task) {
+				((Task<?>) pending).future
+						.completeExceptionally(new RejectedExecutionException(
+								"The user detail service was shut down."));
+			}
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> call) {
+
+		CompletableFuture<T> future = new CompletableFuture<T>();
+
+		try {
+			executor.execute(new Task<T>(call, future));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+
+		return future;
+
+	}
+
+	private static final class Task<T> implements Runnable {
+
+		private final Callable<T> call;
+
+		private final CompletableFuture<T> future;
+
+		Task(Callable<T> call, CompletableFuture<T> future) {
+			this.call = call;
+			this.future = future;
+		}
+
+		@Override
+		public void run() {
+			try {
+				future.complete(call.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+
+	}
+
+}
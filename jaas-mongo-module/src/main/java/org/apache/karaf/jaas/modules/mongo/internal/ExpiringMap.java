@@ -20,30 +20,29 @@
 package org.apache.karaf.jaas.modules.mongo.internal;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.security.auth.spi.LoginModule;
-
-import com.mongodb.MongoClient;
-
 /**
  * 
  * NOTE: borrowed from the 1.x branch of the Apache MINA project to add a very
  * simple cache to the mongo login module without creating other external
- * dependencies. This is required to ensure the MongoClient is propery closed as
- * the JAAS framework does not have any proper mechanism to deal with
- * {@link LoginModule} resources. Failure to close the {@link MongoClient} will
- * result in thread leakage for the mongo cursor cleaner thread. The
- * {@link MongoClient} cached object itself is thread safe.
+ * dependencies.
  * 
- * A map with expiration. This class contains a worker thread that will
- * periodically check this class in order to determine if any objects should be
- * removed based on the provided time-to-live value.
+ * A map with expiration. Entries are removed once they have not been accessed
+ * for the time-to-live or, if {@link #setExpireAfterWrite(boolean)} is set,
+ * once the time-to-live has passed since they were written. Expiry is driven
+ * by a {@link TimerWheel}, the shared {@link ExpiryScheduler} periodically
+ * advances the wheel and only visits the entries that are due, the cost of a
+ * sweep does not depend on the size of the map.
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  * 
@@ -64,12 +63,18 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 	 */
 	public static final int DEFAULT_EXPIRATION_INTERVAL = 1;
 
-	private static volatile int expirerCount = 1;
-
 	private final ConcurrentHashMap<K, ExpiringObject> delegate;
 
 	private final CopyOnWriteArrayList<ExpirationListener<V>> expirationListeners;
 
+	private final Lock wheelLock = new ReentrantLock();
+
+	private TimerWheel wheel = new TimerWheel(currentTimeMillis());
+
+	private volatile long timeToLiveMillis;
+
+	private volatile boolean expireAfterWrite = false;
+
 	private final Expirer expirer;
 
 	/**
@@ -103,25 +108,54 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 	 *            (seconds)
 	 */
 	public ExpiringMap(int timeToLive, int expirationInterval) {
+		this(timeToLive, expirationInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Creates a new instance of ExpiringMap using the supplied values and a
+	 * {@link ConcurrentHashMap} for the internal data structure.
+	 *
+	 * @param timeToLive
+	 *            The time-to-live value
+	 * @param expirationInterval
+	 *            The time between checks to see if a value should be removed
+	 * @param unit
+	 *            The unit of the supplied values
+	 */
+	public ExpiringMap(long timeToLive, long expirationInterval, TimeUnit unit) {
 		this(new ConcurrentHashMap<K, ExpiringObject>(),
-				new CopyOnWriteArrayList<ExpirationListener<V>>(), timeToLive,
-				expirationInterval);
+				new CopyOnWriteArrayList<ExpirationListener<V>>(), unit
+						.toMillis(timeToLive), unit
+						.toMillis(expirationInterval));
 	}
 
 	private ExpiringMap(ConcurrentHashMap<K, ExpiringObject> delegate,
 			CopyOnWriteArrayList<ExpirationListener<V>> expirationListeners,
-			int timeToLive, int expirationInterval) {
+			long timeToLiveMillis, long expirationIntervalMillis) {
 		this.delegate = delegate;
 		this.expirationListeners = expirationListeners;
+		this.timeToLiveMillis = timeToLiveMillis;
 
 		this.expirer = new Expirer();
-		expirer.setTimeToLive(timeToLive);
-		expirer.setExpirationInterval(expirationInterval);
+		expirer.setExpirationIntervalMillis(expirationIntervalMillis);
 	}
 
 	public V put(K key, V value) {
-		ExpiringObject answer = delegate.put(key, new ExpiringObject(key,
-				value, System.currentTimeMillis()));
+		ExpiringObject object = new ExpiringObject(key, value,
+				currentTimeMillis());
+		ExpiringObject answer;
+
+		wheelLock.lock();
+		try {
+			answer = delegate.put(key, object);
+			if (answer != null) {
+				wheel.cancel(answer);
+			}
+			schedule(object);
+		} finally {
+			wheelLock.unlock();
+		}
+
 		if (answer == null) {
 			return null;
 		}
@@ -133,7 +167,10 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		ExpiringObject object = delegate.get(key);
 
 		if (object != null) {
-			object.setLastAccessTime(System.currentTimeMillis());
+			if (!expireAfterWrite) {
+				// the wheel checks the access time once the entry is due
+				object.setLastAccessTime(currentTimeMillis());
+			}
 
 			return object.getValue();
 		}
@@ -142,7 +179,18 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 	}
 
 	public V remove(Object key) {
-		ExpiringObject answer = delegate.remove(key);
+		ExpiringObject answer;
+
+		wheelLock.lock();
+		try {
+			answer = delegate.remove(key);
+			if (answer != null) {
+				wheel.cancel(answer);
+			}
+		} finally {
+			wheelLock.unlock();
+		}
+
 		if (answer == null) {
 			return null;
 		}
@@ -155,7 +203,12 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 	}
 
 	public boolean containsValue(Object value) {
-		return delegate.containsValue(value);
+		for (ExpiringObject object : delegate.values()) {
+			if (object.getValue().equals(value)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public int size() {
@@ -167,7 +220,13 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 	}
 
 	public void clear() {
-		delegate.clear();
+		wheelLock.lock();
+		try {
+			delegate.clear();
+			wheel = new TimerWheel(currentTimeMillis());
+		} finally {
+			wheelLock.unlock();
+		}
 	}
 
 	@Override
@@ -214,35 +273,115 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		return expirer.getExpirationInterval();
 	}
 
+	/**
+	 * @return The time-to-live (seconds)
+	 */
 	public int getTimeToLive() {
-		return expirer.getTimeToLive();
+		return (int) (timeToLiveMillis / 1000);
 	}
 
 	public void setExpirationInterval(int expirationInterval) {
 		expirer.setExpirationInterval(expirationInterval);
 	}
 
+	/**
+	 * Update the value for the time-to-live, entries that are already in the
+	 * map are checked against the new value once they are due.
+	 *
+	 * @param timeToLive
+	 *            The time-to-live (seconds)
+	 */
 	public void setTimeToLive(int timeToLive) {
-		expirer.setTimeToLive(timeToLive);
+		setTimeToLive(timeToLive, TimeUnit.SECONDS);
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		// make sure the expiration deamon thread is dumped when the map is
-		// garbage collected
-		if (expirer.isRunning()) {
-			expirer.stopExpiring();
+	public void setTimeToLive(long timeToLive, TimeUnit unit) {
+		this.timeToLiveMillis = unit.toMillis(timeToLive);
+	}
+
+	public boolean isExpireAfterWrite() {
+		return expireAfterWrite;
+	}
+
+	/**
+	 * @param expireAfterWrite
+	 *            if <code>true</code> entries expire once the time-to-live
+	 *            has passed since they were written regardless of how often
+	 *            they are accessed, the default is to expire entries that
+	 *            were not accessed for the time-to-live
+	 */
+	public void setExpireAfterWrite(boolean expireAfterWrite) {
+		this.expireAfterWrite = expireAfterWrite;
+	}
+
+	/**
+	 * Must be called with the wheel lock held.
+	 */
+	private void schedule(ExpiringObject object) {
+		long ttl = timeToLiveMillis;
+		if (ttl > 0) {
+			wheel.schedule(object, object.getLastAccessTime() + ttl);
 		}
 	}
 
-	private class ExpiringObject {
-		private K key;
+	/**
+	 * Advances the timer wheel and removes all entries that are due.
+	 */
+	void processExpires() {
+		long timeNow = currentTimeMillis();
 
-		private V value;
+		List<TimerWheel.Node> due;
 
-		private long lastAccessTime;
+		wheelLock.lock();
+		try {
+			due = wheel.advance(timeNow);
+		} finally {
+			wheelLock.unlock();
+		}
+
+		for (TimerWheel.Node node : due) {
+
+			@SuppressWarnings("unchecked")
+			ExpiringObject o = (ExpiringObject) node;
+
+			long ttl = timeToLiveMillis;
+			if (ttl <= 0) {
+				continue;
+			}
 
-		private final ReadWriteLock lastAccessTimeLock = new ReentrantReadWriteLock();
+			long timeIdle = timeNow - o.getLastAccessTime();
+
+			if (timeIdle < ttl) {
+				// accessed since it was scheduled, check again later
+				wheelLock.lock();
+				try {
+					if (delegate.get(o.getKey()) == o) {
+						schedule(o);
+					}
+				} finally {
+					wheelLock.unlock();
+				}
+				continue;
+			}
+
+			if (delegate.remove(o.getKey(), o)) {
+				for (ExpirationListener<V> listener : expirationListeners) {
+					listener.expired(o.getValue());
+				}
+			}
+		}
+	}
+
+	static long currentTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private class ExpiringObject extends TimerWheel.Node {
+		private final K key;
+
+		private final V value;
+
+		private volatile long lastAccessTime;
 
 		ExpiringObject(K key, V value, long lastAccessTime) {
 			if (value == null) {
@@ -256,23 +395,11 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		}
 
 		public long getLastAccessTime() {
-			lastAccessTimeLock.readLock().lock();
-
-			try {
-				return lastAccessTime;
-			} finally {
-				lastAccessTimeLock.readLock().unlock();
-			}
+			return lastAccessTime;
 		}
 
 		public void setLastAccessTime(long lastAccessTime) {
-			lastAccessTimeLock.writeLock().lock();
-
-			try {
-				this.lastAccessTime = lastAccessTime;
-			} finally {
-				lastAccessTimeLock.writeLock().unlock();
-			}
+			this.lastAccessTime = lastAccessTime;
 		}
 
 		public K getKey() {
@@ -282,88 +409,38 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		public V getValue() {
 			return value;
 		}
-
-		@Override
-		public boolean equals(Object obj) {
-			return value.equals(obj);
-		}
-
-		@Override
-		public int hashCode() {
-			return value.hashCode();
-		}
 	}
 
 	/**
-	 * A Thread that monitors an {@link ExpiringMap} and will remove elements
-	 * that have passed the threshold.
+	 * Monitors an {@link ExpiringMap} and will remove elements that have
+	 * passed the threshold. The expirer does not own a thread, it is driven by
+	 * the shared {@link ExpiryScheduler}.
 	 *
 	 */
 	public class Expirer implements Runnable {
 
 		private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
 
-		private long timeToLiveMillis;
-
 		private long expirationIntervalMillis;
 
-		private boolean running = false;
-
-		private final Thread expirerThread;
-
-		/**
-		 * Creates a new instance of Expirer.
-		 *
-		 */
-		public Expirer() {
-			expirerThread = new Thread(this, "MongoClientCacheCleaner-"
-					+ expirerCount++);
-			expirerThread.setDaemon(true);
-		}
+		private ExpiryScheduler.Registration registration;
 
 		public void run() {
-			while (running) {
-				processExpires();
-
-				try {
-					Thread.sleep(expirationIntervalMillis);
-				} catch (InterruptedException e) {
-				}
-			}
-		}
-
-		private void processExpires() {
-			long timeNow = System.currentTimeMillis();
-
-			for (ExpiringObject o : delegate.values()) {
-
-				if (timeToLiveMillis <= 0) {
-					continue;
-				}
-
-				long timeIdle = timeNow - o.getLastAccessTime();
-
-				if (timeIdle >= timeToLiveMillis) {
-					delegate.remove(o.getKey());
-
-					for (ExpirationListener<V> listener : expirationListeners) {
-						listener.expired(o.getValue());
-					}
-				}
-			}
+			processExpires();
 		}
 
 		/**
-		 * Kick off this thread which will look for old objects and remove them.
+		 * Register with the scheduler which will look for old objects and
+		 * remove them.
 		 *
 		 */
 		public void startExpiring() {
 			stateLock.writeLock().lock();
 
 			try {
-				if (!running) {
-					running = true;
-					expirerThread.start();
+				if (!isScheduled()) {
+					registration = ExpiryScheduler.getInstance().schedule(this,
+							expirationIntervalMillis);
 				}
 			} finally {
 				stateLock.writeLock().unlock();
@@ -371,39 +448,32 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		}
 
 		/**
-		 * If this thread has not started, then start it. Otherwise just return;
+		 * If this expirer has not started, then start it. Otherwise just
+		 * return;
 		 */
 		public void startExpiringIfNotStarted() {
 			stateLock.readLock().lock();
 			try {
-				if (running) {
+				if (isScheduled()) {
 					return;
 				}
 			} finally {
 				stateLock.readLock().unlock();
 			}
 
-			stateLock.writeLock().lock();
-			try {
-				if (!running) {
-					running = true;
-					expirerThread.start();
-				}
-			} finally {
-				stateLock.writeLock().unlock();
-			}
+			startExpiring();
 		}
 
 		/**
-		 * Stop the thread from monitoring the map.
+		 * Stop monitoring the map.
 		 */
 		public void stopExpiring() {
 			stateLock.writeLock().lock();
 
 			try {
-				if (running) {
-					running = false;
-					expirerThread.interrupt();
+				if (registration != null) {
+					registration.cancel();
+					registration = null;
 				}
 			} finally {
 				stateLock.writeLock().unlock();
@@ -411,54 +481,23 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 		}
 
 		/**
-		 * Checks to see if the thread is running
+		 * Checks to see if the expirer is running, it stops when the scheduler
+		 * is shut down.
 		 *
-		 * @return If the thread is running, true. Otherwise false.
+		 * @return If the expirer is running, true. Otherwise false.
 		 */
 		public boolean isRunning() {
 			stateLock.readLock().lock();
 
 			try {
-				return running;
+				return isScheduled();
 			} finally {
 				stateLock.readLock().unlock();
 			}
 		}
 
 		/**
-		 * Returns the Time-to-live value.
-		 *
-		 * @return The time-to-live (seconds)
-		 */
-		public int getTimeToLive() {
-			stateLock.readLock().lock();
-
-			try {
-				return (int) timeToLiveMillis / 1000;
-			} finally {
-				stateLock.readLock().unlock();
-			}
-		}
-
-		/**
-		 * Update the value for the time-to-live
-		 *
-		 * @param timeToLive
-		 *            The time-to-live (seconds)
-		 */
-		public void setTimeToLive(long timeToLive) {
-			stateLock.writeLock().lock();
-
-			try {
-				this.timeToLiveMillis = timeToLive * 1000;
-			} finally {
-				stateLock.writeLock().unlock();
-			}
-		}
-
-		/**
-		 * Get the interval in which an object will live in the map before it is
-		 * removed.
+		 * Get the interval in which the map is checked for expired objects.
 		 *
 		 * @return The time in seconds.
 		 */
@@ -466,27 +505,45 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 			stateLock.readLock().lock();
 
 			try {
-				return (int) expirationIntervalMillis / 1000;
+				return (int) (expirationIntervalMillis / 1000);
 			} finally {
 				stateLock.readLock().unlock();
 			}
 		}
 
 		/**
-		 * Set the interval in which an object will live in the map before it is
-		 * removed.
+		 * Set the interval in which the map is checked for expired objects.
 		 *
 		 * @param expirationInterval
 		 *            The time in seconds
 		 */
 		public void setExpirationInterval(long expirationInterval) {
+			setExpirationIntervalMillis(expirationInterval * 1000);
+		}
+
+		/**
+		 * Set the interval in which the map is checked for expired objects.
+		 *
+		 * @param expirationIntervalMillis
+		 *            The time in milliseconds
+		 */
+		public void setExpirationIntervalMillis(long expirationIntervalMillis) {
 			stateLock.writeLock().lock();
 
 			try {
-				this.expirationIntervalMillis = expirationInterval * 1000;
+				this.expirationIntervalMillis = expirationIntervalMillis;
+				if (isScheduled()) {
+					registration.cancel();
+					registration = ExpiryScheduler.getInstance().schedule(this,
+							expirationIntervalMillis);
+				}
 			} finally {
 				stateLock.writeLock().unlock();
 			}
 		}
+
+		private boolean isScheduled() {
+			return registration != null && !registration.isCancelled();
+		}
 	}
 }
@@ -0,0 +1,213 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * A single daemon thread that drives the expiry of all {@link ExpiringMap}s
+ * and the idle {@link MongoClientRegistry} clients of this bundle. The thread
+ * wakes up once per {@link #TICK} and runs the tasks that are due, so the
+ * number of threads and wakeups does not grow with the number of caches.
+ *
+ * Tasks are only weakly referenced, a task that is garbage collected is
+ * dropped without having to be cancelled. The thread is started on the first
+ * registration and stopped by {@link #shutdown()} when the bundle stops.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class ExpiryScheduler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ExpiryScheduler.class);
+
+	/**
+	 * The resolution of the scheduler (milliseconds).
+	 */
+	public static final long TICK = 100;
+
+	private static final ExpiryScheduler instance = new ExpiryScheduler();
+
+	private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+	private ScheduledExecutorService executor;
+
+	ExpiryScheduler() {
+	}
+
+	public static ExpiryScheduler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Runs the task periodically until the registration is cancelled, the
+	 * task is garbage collected or the scheduler is shut down.
+	 *
+	 * @param task
+	 *            the task to run, must be strongly referenced by the caller
+	 * @param intervalMillis
+	 *            the time between two runs, rounded up to the next tick
+	 *
+	 * @return the registration of the task
+	 */
+	public Registration schedule(Runnable task, long intervalMillis) {
+
+		Registration registration = new Registration(task, intervalMillis);
+		registrations.add(registration);
+		startIfNotStarted();
+		return registration;
+
+	}
+
+	/**
+	 * Cancels all tasks and stops the scheduler thread. A subsequent
+	 * registration starts a new thread.
+	 */
+	public void shutdown() {
+
+		ScheduledExecutorService stopped;
+
+		synchronized (this) {
+			stopped = executor;
+			executor = null;
+		}
+
+		for (Registration registration : registrations) {
+			registration.cancel();
+		}
+
+		if (stopped != null) {
+			stopped.shutdownNow();
+			try {
+				stopped.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * @return the number of active registrations
+	 */
+	public int size() {
+		return registrations.size();
+	}
+
+	/**
+	 * Runs all tasks that are due and drops those that are gone.
+	 */
+	void tick() {
+
+		long now = ExpiringMap.currentTimeMillis();
+
+		for (Registration registration : registrations) {
+
+			Runnable task = registration.task.get();
+
+			if (task == null || registration.cancelled) {
+				registrations.remove(registration);
+				continue;
+			}
+
+			if (now - registration.nextRun < 0) {
+				continue;
+			}
+
+			registration.nextRun = now + registration.intervalMillis;
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.warn("Expiry task failed", e);
+			}
+
+		}
+
+	}
+
+	private synchronized void startIfNotStarted() {
+
+		if (executor != null) {
+			return;
+		}
+
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MongoJaasExpiryScheduler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * A task registered with the scheduler.
+	 */
+	public static final class Registration {
+
+		private final WeakReference<Runnable> task;
+
+		private final long intervalMillis;
+
+		private volatile long nextRun;
+
+		private volatile boolean cancelled = false;
+
+		private Registration(Runnable task, long intervalMillis) {
+			this.task = new WeakReference<Runnable>(task);
+			this.intervalMillis = Math.max(intervalMillis, TICK);
+			this.nextRun = ExpiringMap.currentTimeMillis() + this.intervalMillis;
+		}
+
+		/**
+		 * Stops running the task, it is removed on the next tick.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+}
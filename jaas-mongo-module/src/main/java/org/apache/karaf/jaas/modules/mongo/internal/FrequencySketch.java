@@ -0,0 +1,170 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+/**
+ *
+ * NOTE: borrowed from the FrequencySketch of the Caffeine project, Copyright
+ * Ben Manes, licensed under the Apache License, Version 2.0, to add an
+ * admission policy to the cache without creating other external
+ * dependencies. The seeds, the counter indexing and the reset scheme are
+ * Caffeine's.
+ *
+ * A probabilistic estimate of how often a key was seen recently, used by the
+ * admission policy of {@link BoundedCache}. The sketch is a count-min sketch
+ * of four bit counters packed into a long array, each key maps to four
+ * counters and its frequency is the smallest of them.
+ *
+ * Once the number of recorded increments reaches ten times the expected
+ * number of keys all counters are halved, so the sketch reflects recent
+ * popularity rather than the all time count.
+ *
+ * The sketch is not thread safe, the owner is expected to guard it with a
+ * lock.
+ *
+ * @author Ben Manes (ben.manes@gmail.com)
+ * 
+ *         The original version of this class can be found on the <a href=
+ *         "https://github.com/ben-manes/caffeine/blob/master/caffeine/src/main/java/com/github/benmanes/caffeine/cache/FrequencySketch.java"
+ *         >GitHub Caffeine project</a>
+ * 
+ */
+public class FrequencySketch {
+
+	private static final long[] SEED = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private final long[] table;
+
+	private final int tableMask;
+
+	private final int sampleSize;
+
+	private int size;
+
+	/**
+	 * @param expectedSize
+	 *            the number of keys the sketch has to tell apart
+	 */
+	public FrequencySketch(long expectedSize) {
+
+		int maximum = (int) Math.min(Math.max(expectedSize, 1),
+				MAXIMUM_CAPACITY);
+
+		this.table = new long[ceilingPowerOfTwo(maximum)];
+		this.tableMask = table.length - 1;
+		this.sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+
+	}
+
+	/**
+	 * @param key
+	 *            the key to look up
+	 *
+	 * @return the estimated number of occurrences of the key, at most 15
+	 */
+	public int frequency(Object key) {
+
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+
+		return frequency;
+
+	}
+
+	/**
+	 * Records an occurrence of the key.
+	 *
+	 * @param key
+	 *            the key that was seen
+	 */
+	public void increment(Object key) {
+
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+
+		if (added && ++size == sampleSize) {
+			reset();
+		}
+
+	}
+
+	private boolean incrementAt(int index, int counter) {
+
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << offset;
+			return true;
+		}
+		return false;
+
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void reset() {
+
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size - (odd >>> 2)) >>> 1;
+
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEED[i]) * SEED[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		return x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1;
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ *
+ * Maintains the transitive closure of nested groups. A group lists the groups
+ * nested in it in {@link #SUBGROUPS_FIELD}, the members of a nested group hold
+ * the roles of all groups it is nested in. Each group keeps the precomputed
+ * set of roles its members hold in {@link #EFFECTIVE_ROLES_FIELD}: its own
+ * name and the names of all groups it is nested in, directly or not. A login
+ * therefore resolves all roles with the same single lookup of the groups of
+ * the user.
+ *
+ * The groups nested in a group, directly or not, are exactly the groups whose
+ * effective roles contain its name. Nesting a group adds the effective roles
+ * of the parent to all of them in a single multi update. Removing a nested
+ * group recomputes the effective roles of the groups nested in it only, as a
+ * group may still inherit a role through another path.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class GroupHierarchy {
+
+	/**
+	 * The names of the groups nested in a group.
+	 */
+	public static final String SUBGROUPS_FIELD = "subgroups";
+
+	/**
+	 * The roles held by the members of a group.
+	 */
+	public static final String EFFECTIVE_ROLES_FIELD = "effectiveRoles";
+
+	private final DBCollection groups;
+
+	/**
+	 * @param groups
+	 *            the groups collection
+	 */
+	public GroupHierarchy(DBCollection groups) {
+		this.groups = groups;
+	}
+
+	/**
+	 * Nests a group in another group, both are created if they do not exist.
+	 *
+	 * @param parent
+	 *            the group to nest into
+	 * @param child
+	 *            the group whose members gain the roles of the parent
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the parent is already nested in the child
+	 */
+	public void addNestedGroup(String parent, String child) {
+
+		Set<String> parentRoles = getEffectiveRoles(parent);
+
+		if (parentRoles.contains(child)) {
+			throw new IllegalArgumentException("Group [" + parent
+					+ "] is nested in group [" + child + "] already.");
+		}
+
+		// a group always holds its own role
+		ensureGroup(child);
+		groups.update(new BasicDBObject("name", parent), new BasicDBObject(
+				"$addToSet", new BasicDBObject(SUBGROUPS_FIELD, child)
+						.append(EFFECTIVE_ROLES_FIELD, parent)), true, false);
+
+		BasicDBList added = new BasicDBList();
+		added.addAll(parentRoles);
+
+		// the child and all groups nested in it gain the roles of the parent
+		groups.update(new BasicDBObject(EFFECTIVE_ROLES_FIELD, child),
+				new BasicDBObject("$addToSet", new BasicDBObject(
+						EFFECTIVE_ROLES_FIELD, new BasicDBObject("$each",
+								added))), false, true);
+
+	}
+
+	/**
+	 * Removes a nested group from a group.
+	 *
+	 * @param parent
+	 *            the group the child is nested in
+	 * @param child
+	 *            the nested group
+	 */
+	public void removeNestedGroup(String parent, String child) {
+
+		groups.update(new BasicDBObject("name", parent), new BasicDBObject(
+				"$pull", new BasicDBObject(SUBGROUPS_FIELD, child)));
+
+		// the child and the groups nested in it are affected
+		Map<String, DBObject> affected = new HashMap<String, DBObject>();
+		DBCursor cursor = groups.find(new BasicDBObject(
+				EFFECTIVE_ROLES_FIELD, child), BasicDBObjectBuilder.start()
+				.add("name", 1).add(SUBGROUPS_FIELD, 1).get());
+		try {
+			while (cursor.hasNext()) {
+				DBObject group = cursor.next();
+				affected.put((String) group.get("name"), group);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		Map<String, Set<String>> recomputed = new HashMap<String, Set<String>>();
+
+		for (String name : topologicalOrder(affected)) {
+
+			Set<String> roles = new LinkedHashSet<String>();
+			roles.add(name);
+
+			// unaffected parents keep their effective roles
+			for (DBObject parentGroup : findParents(name)) {
+				String parentName = (String) parentGroup.get("name");
+				Set<String> parentRoles = recomputed.get(parentName);
+				if (parentRoles == null) {
+					parentRoles = toSet(parentName,
+							parentGroup.get(EFFECTIVE_ROLES_FIELD));
+				}
+				roles.addAll(parentRoles);
+			}
+
+			recomputed.put(name, roles);
+
+			BasicDBList list = new BasicDBList();
+			list.addAll(roles);
+			groups.update(new BasicDBObject("name", name), new BasicDBObject(
+					"$set", new BasicDBObject(EFFECTIVE_ROLES_FIELD, list)));
+
+		}
+
+	}
+
+	/**
+	 * @return the roles held by the members of the group, at least its own
+	 */
+	Set<String> getEffectiveRoles(String name) {
+
+		DBObject group = groups.findOne(new BasicDBObject("name", name),
+				BasicDBObjectBuilder.start().add("_id", 0)
+						.add(EFFECTIVE_ROLES_FIELD, 1).get());
+
+		return toSet(name, group != null ? group.get(EFFECTIVE_ROLES_FIELD)
+				: null);
+
+	}
+
+	private void ensureGroup(String name) {
+		groups.update(new BasicDBObject("name", name), new BasicDBObject(
+				"$addToSet", new BasicDBObject(EFFECTIVE_ROLES_FIELD, name)),
+				true, false);
+	}
+
+	private List<DBObject> findParents(String name) {
+
+		List<DBObject> parents = new ArrayList<DBObject>();
+		DBCursor cursor = groups.find(new BasicDBObject(SUBGROUPS_FIELD, name),
+				BasicDBObjectBuilder.start().add("name", 1)
+						.add(EFFECTIVE_ROLES_FIELD, 1).get());
+		try {
+			while (cursor.hasNext()) {
+				parents.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+		return parents;
+
+	}
+
+	/**
+	 * Orders the affected groups so that a group follows all affected groups
+	 * it is nested in.
+	 */
+	static List<String> topologicalOrder(Map<String, DBObject> affected) {
+
+		Map<String, Integer> parentCount = new HashMap<String, Integer>();
+		for (String name : affected.keySet()) {
+			parentCount.put(name, 0);
+		}
+		for (DBObject group : affected.values()) {
+			for (String sub : toSet(null, group.get(SUBGROUPS_FIELD))) {
+				if (parentCount.containsKey(sub)) {
+					parentCount.put(sub, parentCount.get(sub) + 1);
+				}
+			}
+		}
+
+		Deque<String> ready = new ArrayDeque<String>();
+		for (Map.Entry<String, Integer> count : parentCount.entrySet()) {
+			if (count.getValue() == 0) {
+				ready.add(count.getKey());
+			}
+		}
+
+		List<String> order = new ArrayList<String>();
+		while (!ready.isEmpty()) {
+			String name = ready.poll();
+			order.add(name);
+			for (String sub : toSet(null,
+					affected.get(name).get(SUBGROUPS_FIELD))) {
+				Integer count = parentCount.get(sub);
+				if (count != null) {
+					parentCount.put(sub, count - 1);
+					if (count == 1) {
+						ready.add(sub);
+					}
+				}
+			}
+		}
+
+		return order;
+
+	}
+
+	private static Set<String> toSet(String name, Object values) {
+
+		Set<String> set = new LinkedHashSet<String>();
+		if (name != null) {
+			set.add(name);
+		}
+		if (values instanceof List) {
+			for (Object value : (List<?>) values) {
+				set.add((String) value);
+			}
+		}
+		return set;
+
+	}
+
+}
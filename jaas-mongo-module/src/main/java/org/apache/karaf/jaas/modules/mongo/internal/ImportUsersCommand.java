@@ -0,0 +1,92 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.apache.felix.gogo.commands.Argument;
+import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.apache.karaf.jaas.modules.mongo.UserImporter;
+
+/**
+ *
+ * Imports users and their roles from an NDJSON or CSV file into a mongo users
+ * store, see {@link UserImporter} for the file formats.
+ *
+ * @author Niels Bertram
+ *
+ */
+@Command(scope = "jaas-mongo", name = "import", description = "Imports users and their roles from an NDJSON or CSV file into a mongo users store.")
+public class ImportUsersCommand extends MongoCommandSupport {
+
+	@Argument(index = 0, name = "file", description = "The file to import, one user per line.", required = true, multiValued = false)
+	private String file;
+
+	@Option(name = "-f", aliases = { "--format" }, description = "ndjson or csv, by default derived from the file extension.", required = false, multiValued = false)
+	private String format;
+
+	@Option(name = "-b", aliases = { "--batch-size" }, description = "The number of users written in one bulk write.", required = false, multiValued = false)
+	private int batchSize = UserImporter.DEFAULT_BATCH_SIZE;
+
+	@Option(name = "-p", aliases = { "--parallelism" }, description = "The number of batches written at the same time.", required = false, multiValued = false)
+	private int parallelism = UserImporter.DEFAULT_PARALLELISM;
+
+	@Override
+	protected Object doExecute() throws Exception {
+
+		UserDetailService service = getUserDetailService();
+
+		UserImporter.Format importFormat;
+		if (format != null) {
+			importFormat = UserImporter.Format.valueOf(format.trim()
+					.toUpperCase());
+		} else {
+			importFormat = file.toLowerCase().endsWith(".csv") ? UserImporter.Format.CSV
+					: UserImporter.Format.NDJSON;
+		}
+
+		UserImporter importer = new UserImporter(service).withBatchSize(
+				batchSize).withParallelism(parallelism);
+
+		UserImporter.Result result;
+		try (Reader reader = new InputStreamReader(new FileInputStream(
+				new File(file)), "UTF-8")) {
+			result = importer.importUsers(reader, importFormat);
+		}
+
+		System.out.println(String.format(
+				"Imported %d users in %.1fs (%.0f users/s), %d failed.",
+				result.getImported(), result.getElapsedMillis() / 1000.0,
+				result.getThroughput(), result.getFailed()));
+
+		for (UserImporter.Failure failure : result.getFailures()) {
+			System.out.println("  " + failure);
+		}
+
+		return null;
+
+	}
+
+}
@@ -0,0 +1,433 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ *
+ * Ensures the indexes the login lookups depend on exist. Without them every
+ * login scans the users and groups collections. The indexes are created and
+ * the query plans verified once per mongo users store, the first time a login
+ * module or backing engine connects to it.
+ *
+ * The indexes are built on a background thread, the login that triggers the
+ * bootstrap does not wait for it. Failures are only logged, a user without
+ * the privilege to create indexes can still log in. A store whose indexes
+ * could not be created is bootstrapped again on first use after
+ * {@link #RETRY_INTERVAL} milliseconds, at most {@link #MAX_ATTEMPTS} times
+ * until the bundle restarts.
+ *
+ * If the user lookup is covered, a compound index of the user name and
+ * password hash is maintained as well, so the user is read from the index
+ * alone. Only the user lookup can be covered, the group lookup always fetches
+ * the groups as an index on the members array is multikey.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class IndexBootstrapper {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IndexBootstrapper.class);
+
+	/**
+	 * The time before a failed bootstrap is tried again, 60000
+	 */
+	public static final long RETRY_INTERVAL = 60000;
+
+	/**
+	 * The number of failed bootstraps after which a store is left alone until
+	 * the bundle restarts, 3
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+
+	static long retryInterval = RETRY_INTERVAL;
+
+	/**
+	 * The stores left alone, true if their indexes were created and false if
+	 * the bootstrap was given up.
+	 */
+	private static final ConcurrentHashMap<String, Boolean> bootstrapped = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The time each pending or failed bootstrap started, by store.
+	 */
+	private static final ConcurrentHashMap<String, Long> attempts = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * The number of failed bootstraps, by store. Only updated by the single
+	 * bootstrap thread.
+	 */
+	private static final ConcurrentHashMap<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+
+	private static ThreadPoolExecutor executor;
+
+	private IndexBootstrapper() {
+	}
+
+	/**
+	 * Creates and verifies the indexes of the mongo users store in the
+	 * background unless that has already been done or is under way.
+	 *
+	 * @param configuration
+	 *            the configuration of the mongo users store
+	 * @param service
+	 *            the service whose client is used to build the indexes
+	 *
+	 * @return the pending bootstrap or <code>null</code> if none was started
+	 */
+	public static Future<?> bootstrap(final MongoConfiguration configuration,
+			final DefaultUserDetailService service) {
+
+		if (!configuration.isIndexProvision() && !configuration.isIndexVerify()) {
+			return null;
+		}
+
+		final String key = StoreRegistry.calculateStoreKey(configuration);
+		if (bootstrapped.containsKey(key) || !tryStart(key)) {
+			return null;
+		}
+
+		try {
+			return getExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					boolean created = false;
+					try (MongoClientRegistry.Lease lease = service
+							.acquireClient()) {
+						created = bootstrap(configuration, lease.getClient()
+								.getDB(configuration.getDatabaseName()));
+					} catch (Exception e) {
+						log.warn("Failed to bootstrap the indexes of [{}]: {}",
+								key, e.getMessage());
+					}
+					if (created) {
+						bootstrapped.put(key, Boolean.TRUE);
+						attempts.remove(key);
+						failures.remove(key);
+					} else if (countFailure(key) >= MAX_ATTEMPTS) {
+						log.warn(
+								"Giving up on the indexes of [{}] after {} attempts until the bundle restarts",
+								key, MAX_ATTEMPTS);
+						bootstrapped.put(key, Boolean.FALSE);
+						attempts.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped while the bundle stops, tried again on next use
+			attempts.remove(key);
+			return null;
+		}
+
+	}
+
+	/**
+	 * Claims the bootstrap of a store, a failed bootstrap can be claimed again
+	 * once the retry interval passed.
+	 */
+	private static boolean tryStart(String key) {
+
+		long now = System.currentTimeMillis();
+
+		Long started = attempts.putIfAbsent(key, now);
+		if (started == null) {
+			return true;
+		}
+
+		return now - started >= retryInterval
+				&& attempts.replace(key, started, now);
+
+	}
+
+	/**
+	 * @return the number of failed bootstraps of the store including this one
+	 */
+	private static int countFailure(String key) {
+
+		Integer failed = failures.get(key);
+		int count = failed != null ? failed + 1 : 1;
+		failures.put(key, count);
+
+		return count;
+
+	}
+
+	/**
+	 * @return true if all indexes were created, the verification of the query
+	 *         plans is advisory and does not affect the result
+	 */
+	static boolean bootstrap(MongoConfiguration configuration, DB db) {
+
+		DBCollection users = db.getCollection(configuration
+				.getUserCollectionName());
+		DBCollection groups = db.getCollection(configuration
+				.getGroupCollectionName());
+
+		boolean created = true;
+
+		if (configuration.isIndexProvision()) {
+			created &= createIndex(users, new BasicDBObject("username", 1),
+					true);
+			created &= createIndex(groups, new BasicDBObject("members", 1),
+					false);
+			created &= createIndex(groups, new BasicDBObject("name", 1), true);
+			if (configuration.isUserRolesEmbedded()) {
+				// lists the users holding a role in name order
+				created &= createIndex(users, new BasicDBObject(
+						configuration.getUserRolesAttribute(), 1).append(
+						"username", 1), false);
+			}
+			if (configuration.isGroupsNested()) {
+				// finds the groups nested in and enclosing a group
+				created &= createIndex(groups, new BasicDBObject(
+						GroupHierarchy.EFFECTIVE_ROLES_FIELD, 1), false);
+				created &= createIndex(groups, new BasicDBObject(
+						GroupHierarchy.SUBGROUPS_FIELD, 1), false);
+			}
+			if (isUserLookupCoverable(configuration)) {
+				created &= createIndex(users, COVERING_USER_INDEX, false);
+			}
+		}
+
+		if (configuration.isIndexVerify()) {
+			verifyPlan(users, new BasicDBObject("username", ""));
+			verifyPlan(groups, new BasicDBObject("members", ""));
+			verifyPlan(groups, new BasicDBObject("name", ""));
+			if (isUserLookupCoverable(configuration)) {
+				verifyCovered(users, new BasicDBObject("username", ""),
+						COVERING_USER_INDEX);
+			}
+		}
+
+		return created;
+
+	}
+
+	/**
+	 * The keys of the index covering the user lookup. Additional attributes
+	 * are left out, their values could exceed the index key limit of 1024
+	 * bytes of MongoDB before 4.2 and get inserts of such users rejected.
+	 */
+	public static final DBObject COVERING_USER_INDEX = new BasicDBObject(
+			"username", 1).append("passwordHash", 1);
+
+	/**
+	 * @param configuration
+	 *            the configuration of the mongo users store
+	 *
+	 * @return true if the user lookup can be answered from
+	 *         {@link #COVERING_USER_INDEX}, which is not the case for
+	 *         embedded roles or additional attributes
+	 */
+	public static boolean isUserLookupCoverable(
+			MongoConfiguration configuration) {
+		return configuration.isUserLookupCovered()
+				&& !configuration.isUserRolesEmbedded()
+				&& configuration.getAdditionalAttributes().isEmpty();
+	}
+
+	/**
+	 * Stops the background thread and forgets which stores have been
+	 * bootstrapped, used when the bundle stops.
+	 */
+	public static void clear() {
+
+		ThreadPoolExecutor stopped;
+
+		synchronized (IndexBootstrapper.class) {
+			stopped = executor;
+			executor = null;
+		}
+
+		if (stopped != null) {
+			stopped.shutdownNow();
+		}
+
+		bootstrapped.clear();
+		attempts.clear();
+		failures.clear();
+
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "MongoIndexBootstrapper");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+
+	}
+
+	private static boolean createIndex(DBCollection collection, DBObject keys,
+			boolean unique) {
+
+		DBObject options = new BasicDBObject("background", true);
+		if (unique) {
+			options.put("unique", true);
+		}
+
+		try {
+			collection.createIndex(keys, options);
+			log.debug("Ensured index {} on collection [{}]", keys,
+					collection.getName());
+			return true;
+		} catch (MongoException e) {
+			log.warn("Failed to create index {} on collection [{}]: {}", keys,
+					collection.getName(), e.getMessage());
+			return false;
+		}
+
+	}
+
+	private static void verifyPlan(DBCollection collection, DBObject query) {
+
+		try {
+			DBObject explain = collection.find(query).explain();
+			if (!isIndexScan(explain)) {
+				log.warn(
+						"The query {} on collection [{}] does not use an index, every login will scan the collection. Query plan: {}",
+						query, collection.getName(), explain);
+			}
+		} catch (RuntimeException e) {
+			// also covers servers that answer explain unexpectedly
+			log.warn("Failed to explain the query {} on collection [{}]: {}",
+					query, collection.getName(), e.getMessage());
+		}
+
+	}
+
+	private static void verifyCovered(DBCollection collection,
+			DBObject query, DBObject index) {
+
+		// a covered query projects only indexed fields and no _id
+		DBObject projection = new BasicDBObject("_id", 0);
+		for (String field : index.keySet()) {
+			projection.put(field, 1);
+		}
+
+		try {
+			DBObject explain = collection.find(query, projection).hint(index)
+					.explain();
+			if (!isCovered(explain)) {
+				log.warn(
+						"The query {} on collection [{}] is not covered by the index {}. Query plan: {}",
+						query, collection.getName(), index, explain);
+			}
+		} catch (RuntimeException e) {
+			// also covers servers that answer explain unexpectedly
+			log.warn("Failed to explain the query {} on collection [{}]: {}",
+					query, collection.getName(), e.getMessage());
+		}
+
+	}
+
+	/**
+	 * @param explain
+	 *            the output of an explained query, either in the format of
+	 *            MongoDB 3.0 and newer or the legacy format
+	 *
+	 * @return true if the chosen plan scans an index
+	 */
+	static boolean isIndexScan(DBObject explain) {
+
+		Object planner = explain.get("queryPlanner");
+		if (planner instanceof DBObject) {
+			return hasStage(((DBObject) planner).get("winningPlan"), "IXSCAN");
+		}
+
+		Object cursor = explain.get("cursor");
+		return cursor instanceof String
+				&& ((String) cursor).startsWith("BtreeCursor");
+
+	}
+
+	/**
+	 * @param explain
+	 *            the output of an explained query, either in the format of
+	 *            MongoDB 3.0 and newer or the legacy format
+	 *
+	 * @return true if the chosen plan answers the query from the index alone
+	 */
+	static boolean isCovered(DBObject explain) {
+
+		Object planner = explain.get("queryPlanner");
+		if (planner instanceof DBObject) {
+			Object plan = ((DBObject) planner).get("winningPlan");
+			return hasStage(plan, "IXSCAN") && !hasStage(plan, "FETCH");
+		}
+
+		return isIndexScan(explain)
+				&& Boolean.TRUE.equals(explain.get("indexOnly"));
+
+	}
+
+	/**
+	 * @return true if the plan or any of its input stages is of the stage
+	 */
+	static boolean hasStage(Object plan, String stage) {
+
+		if (!(plan instanceof DBObject)) {
+			return false;
+		}
+
+		DBObject node = (DBObject) plan;
+		if (stage.equals(node.get("stage"))) {
+			return true;
+		}
+
+		// input stages are nested documents or lists of them
+		for (String field : node.keySet()) {
+			if (hasStage(node.get(field), stage)) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.spi.LoginModule;
+
+import com.mongodb.MongoClient;
+
+/**
+ *
+ * A registry of the {@link MongoClient}s used by the login modules. The JAAS
+ * framework does not have any proper mechanism to deal with
+ * {@link LoginModule} resources, so clients are shared between all users of
+ * the same mongo database and closed once they have not been used for a
+ * while. Failure to close the {@link MongoClient} will result in thread
+ * leakage for the mongo cursor cleaner thread.
+ *
+ * Each client is created exactly once per key and handed out as a reference
+ * counted {@link Lease}. An idle client is only closed if no lease is
+ * outstanding, a client can therefore never be closed while in use. Idle
+ * clients are looked for by the shared {@link ExpiryScheduler}.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class MongoClientRegistry {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MongoClientRegistry.class);
+
+	/**
+	 * The default value, 60
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 60;
+
+	/**
+	 * The time {@link #closeAll()} waits for outstanding leases (milliseconds)
+	 */
+	public static final long DRAIN_TIMEOUT = 5000;
+
+	private static final MongoClientRegistry instance = new MongoClientRegistry(
+			DEFAULT_IDLE_TIMEOUT);
+
+	private final ConcurrentHashMap<String, ClientHolder> clients = new ConcurrentHashMap<String, ClientHolder>();
+
+	private final long idleTimeoutMillis;
+
+	/**
+	 * The scheduler only holds a weak reference to the task.
+	 */
+	private final Runnable cleaner = new Runnable() {
+		@Override
+		public void run() {
+			closeIdleClients();
+		}
+	};
+
+	private volatile ExpiryScheduler.Registration cleanerRegistration;
+
+	/**
+	 * @param idleTimeout
+	 *            the time a client must be unused before it is closed
+	 *            (seconds)
+	 */
+	MongoClientRegistry(int idleTimeout) {
+		this.idleTimeoutMillis = idleTimeout * 1000L;
+	}
+
+	public static MongoClientRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Creates a client for the key if none exists and leases it to the
+	 * caller. The lease must be closed once the client is no longer used.
+	 *
+	 * @param key
+	 *            identifies the mongo servers and credentials of the client
+	 * @param factory
+	 *            creates the client if there is none for the key yet
+	 *
+	 * @return a lease of the client
+	 * @throws UnknownHostException
+	 *             if the client could not be created
+	 */
+	public Lease acquire(String key, ClientFactory factory)
+			throws UnknownHostException {
+
+		startCleanerIfNotStarted();
+
+		while (true) {
+
+			ClientHolder holder = clients.get(key);
+			if (holder == null) {
+				ClientHolder created = new ClientHolder();
+				holder = clients.putIfAbsent(key, created);
+				if (holder == null) {
+					holder = created;
+				}
+			}
+
+			if (holder.tryAcquire()) {
+				try {
+					return new Lease(holder, holder.getClient(factory));
+				} catch (UnknownHostException | RuntimeException e) {
+					holder.release();
+					throw e;
+				}
+			}
+
+			// lost the race against the cleaner, try with a new holder
+			clients.remove(key, holder);
+
+		}
+
+	}
+
+	/**
+	 * Closes all clients that have not been leased for longer than the idle
+	 * timeout.
+	 */
+	void closeIdleClients() {
+
+		long now = System.currentTimeMillis();
+
+		for (String key : clients.keySet()) {
+			ClientHolder holder = clients.get(key);
+			if (holder != null && holder.tryClose(now - idleTimeoutMillis)) {
+				clients.remove(key, holder);
+				holder.closeClient();
+				log.debug("Closed idle mongo client [{}]", key);
+			}
+		}
+
+	}
+
+	/**
+	 * Closes all clients, used when the bundle stops. Outstanding leases are
+	 * given up to {@link #DRAIN_TIMEOUT} to be returned before their clients
+	 * are closed regardless.
+	 */
+	public void closeAll() {
+
+		synchronized (this) {
+			if (cleanerRegistration != null) {
+				cleanerRegistration.cancel();
+				cleanerRegistration = null;
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+		for (String key : clients.keySet()) {
+			ClientHolder holder = clients.remove(key);
+			if (holder != null) {
+				if (!holder.drain(deadline)) {
+					log.warn("Closing mongo client [{}] with leases outstanding",
+							key);
+				}
+				holder.closeClient();
+			}
+		}
+
+	}
+
+	private void startCleanerIfNotStarted() {
+
+		ExpiryScheduler.Registration registration = cleanerRegistration;
+		if (registration != null && !registration.isCancelled()) {
+			return;
+		}
+
+		synchronized (this) {
+			registration = cleanerRegistration;
+			if (registration == null || registration.isCancelled()) {
+				cleanerRegistration = ExpiryScheduler.getInstance().schedule(
+						cleaner, 1000);
+			}
+		}
+
+	}
+
+	/**
+	 * Creates a {@link MongoClient} on first use of a key.
+	 */
+	public interface ClientFactory {
+		MongoClient createClient() throws UnknownHostException;
+	}
+
+	/**
+	 * A lease of a shared {@link MongoClient}. The client must not be used
+	 * after the lease is closed.
+	 */
+	public static final class Lease implements Closeable {
+
+		private final ClientHolder holder;
+
+		private final MongoClient client;
+
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Lease(ClientHolder holder, MongoClient client) {
+			this.holder = holder;
+			this.client = client;
+		}
+
+		public MongoClient getClient() {
+			return client;
+		}
+
+		/**
+		 * Returns the client to the registry, can be called more than once.
+		 */
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) {
+				holder.release();
+			}
+		}
+
+	}
+
+	private static class ClientHolder {
+
+		/**
+		 * The number of outstanding leases or -1 once the client is closed.
+		 */
+		private final AtomicInteger leases = new AtomicInteger();
+
+		private volatile long lastReleased = System.currentTimeMillis();
+
+		/**
+		 * Only set once a client is created, read without a lock by every
+		 * lease.
+		 */
+		private volatile MongoClient client;
+
+		/**
+		 * Set while {@link #drain(long)} waits for the last lease.
+		 */
+		private volatile boolean draining;
+
+		boolean tryAcquire() {
+			while (true) {
+				int current = leases.get();
+				if (current < 0) {
+					return false;
+				}
+				if (leases.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			lastReleased = System.currentTimeMillis();
+			if (leases.decrementAndGet() == 0 && draining) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		MongoClient getClient(ClientFactory factory)
+				throws UnknownHostException {
+			MongoClient current = client;
+			if (current != null) {
+				return current;
+			}
+			synchronized (this) {
+				if (client == null) {
+					client = factory.createClient();
+				}
+				return client;
+			}
+		}
+
+		/**
+		 * Waits until no lease is outstanding and marks the client closed.
+		 *
+		 * @param deadline
+		 *            the time to stop waiting at
+		 * @return <code>false</code> if leases were still outstanding at the
+		 *         deadline
+		 */
+		synchronized boolean drain(long deadline) {
+			draining = true;
+			try {
+				while (!leases.compareAndSet(0, -1)) {
+					if (leases.get() < 0) {
+						// already closed as idle
+						return true;
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						leases.set(-1);
+						return false;
+					}
+					wait(remaining);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				leases.set(-1);
+				return false;
+			}
+		}
+
+		boolean tryClose(long idleSince) {
+			return lastReleased <= idleSince && leases.compareAndSet(0, -1);
+		}
+
+		synchronized void closeClient() {
+			if (client != null) {
+				try {
+					client.close();
+				} catch (Exception e) {
+				}
+				client = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.jaas.modules.mongo.ConfigurationException;
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.apache.karaf.shell.console.OsgiCommandSupport;
+
+/**
+ *
+ * The base of the console commands working on a mongo users store. The store
+ * is described by the same options as the login module.
+ *
+ * @author Niels Bertram
+ *
+ */
+public abstract class MongoCommandSupport extends OsgiCommandSupport {
+
+	@Option(name = "-u", aliases = { "--url" }, description = "Comma separated list of mongo servers.", required = false, multiValued = false)
+	private String url;
+
+	@Option(name = "-d", aliases = { "--database" }, description = "The database holding the users and groups.", required = true, multiValued = false)
+	private String database;
+
+	@Option(name = "-o", aliases = { "--option" }, description = "Any other login module option as key=value, e.g. mongo.user.collection.name=users", required = false, multiValued = true)
+	private List<String> options = new ArrayList<String>();
+
+	/**
+	 * @return the user detail service of the mongo users store described by
+	 *         the command options
+	 * @throws ConfigurationException
+	 *             if the options are not valid
+	 */
+	protected UserDetailService getUserDetailService()
+			throws ConfigurationException {
+
+		Map<String, Object> jaasOptions = new HashMap<String, Object>();
+		for (String option : options) {
+			int split = option.indexOf('=');
+			if (split < 1) {
+				throw new ConfigurationException("Invalid option [" + option
+						+ "], expected key=value.");
+			}
+			jaasOptions.put(option.substring(0, split).trim(), option
+					.substring(split + 1).trim());
+		}
+		if (url != null) {
+			jaasOptions.put(MongoConfiguration.DATASOURCE, url);
+		}
+		jaasOptions.put(MongoConfiguration.DATABASE, database);
+
+		return UserDetailServiceRegistry.getService(getBundleContext(),
+				jaasOptions);
+
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+
+/**
+ *
+ * A short lived cache of usernames that do not exist in the mongo users store.
+ * Repeated logins with an unknown username are rejected without querying the
+ * database until the entry expires or the user is added.
+ *
+ * Entries expire a fixed time after they were added, a lookup does not extend
+ * their life.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class NegativeLookupCache implements StoreRegistry.StoreCache {
+
+	private static final StoreRegistry<NegativeLookupCache> caches = new StoreRegistry<NegativeLookupCache>();
+
+	/**
+	 * The resolution at which expired usernames are removed (milliseconds).
+	 */
+	private static final long EXPIRATION_INTERVAL = 100;
+
+	private final int maximumSize;
+
+	private final ExpiringMap<String, Boolean> unknownUsers;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	NegativeLookupCache(int timeToLive, int maximumSize) {
+		this.maximumSize = maximumSize;
+		this.unknownUsers = new ExpiringMap<String, Boolean>(
+				timeToLive * 1000L, EXPIRATION_INTERVAL, TimeUnit.MILLISECONDS);
+		this.unknownUsers.setExpireAfterWrite(true);
+		this.unknownUsers.getExpirer().startExpiringIfNotStarted();
+	}
+
+	/**
+	 * @param configuration
+	 *            the configuration of the login module
+	 *
+	 * @return the cache shared by all login modules with the same mongo users
+	 *         store and cache settings
+	 */
+	public static NegativeLookupCache getInstance(
+			MongoConfiguration configuration) {
+		return caches.getInstance(configuration,
+				configuration.getNegativeCacheTimeToLive() + "/"
+						+ configuration.getNegativeCacheSize(),
+				new StoreRegistry.CacheFactory<NegativeLookupCache>() {
+					@Override
+					public NegativeLookupCache createCache(
+							MongoConfiguration config) {
+						return new NegativeLookupCache(
+								config.getNegativeCacheTimeToLive(),
+								config.getNegativeCacheSize());
+					}
+				});
+	}
+
+	/**
+	 * Removes the username from all caches of the mongo users store described
+	 * by the supplied configuration.
+	 *
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 * @param username
+	 *            the user that was added
+	 */
+	public static void invalidate(MongoConfiguration configuration,
+			String username) {
+		caches.invalidate(configuration, username);
+	}
+
+	/**
+	 * Drops all caches, used when the bundle stops.
+	 */
+	public static void clearAll() {
+		caches.clearAll();
+	}
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 *
+	 * @return true if the user was recently looked up and did not exist
+	 */
+	public boolean isUnknown(String username) {
+
+		if (unknownUsers.containsKey(username)) {
+			hits.incrementAndGet();
+			return true;
+		}
+
+		misses.incrementAndGet();
+		return false;
+
+	}
+
+	/**
+	 * Records a username that does not exist. If the cache is full the
+	 * username is not added.
+	 *
+	 * @param username
+	 *            the user identifier that was not found
+	 */
+	public void addUnknown(String username) {
+
+		if (unknownUsers.size() >= maximumSize) {
+			return;
+		}
+
+		unknownUsers.put(username, Boolean.TRUE);
+
+	}
+
+	@Override
+	public void invalidate(String username) {
+		unknownUsers.remove(username);
+	}
+
+	@Override
+	public void clear() {
+		unknownUsers.clear();
+	}
+
+	public int size() {
+		return unknownUsers.size();
+	}
+
+	/**
+	 * @return the number of lookups answered from this cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to query the database
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+
+/**
+ *
+ * Removes the members of all groups that no longer exist as users. Before
+ * users were removed from their groups on delete, dead user names were left
+ * in the group members forever and kept growing the members index.
+ *
+ * The groups are walked in pages of the batch size ordered by their id and
+ * the members of each group are checked against the users collection in
+ * chunks of the same size. The members found missing are checked again
+ * right before they are pulled and the pull only applies if the group still
+ * holds them. A user added between this check and the pull is added back to
+ * the group once the pull is done, as a new user is always created before it
+ * becomes a member.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class OrphanMemberCompactor {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OrphanMemberCompactor.class);
+
+	private final DefaultUserDetailService service;
+
+	private final int batchSize;
+
+	/**
+	 * @param service
+	 *            the service connecting to the mongo users store
+	 * @param batchSize
+	 *            the number of groups read and members checked at a time
+	 */
+	public OrphanMemberCompactor(DefaultUserDetailService service,
+			int batchSize) {
+		this.service = service;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the number of members removed from all groups
+	 * @throws Exception
+	 *             if the mongo database cannot be accessed
+	 */
+	public long compact() throws Exception {
+
+		MongoConfiguration configuration = service.getConfiguration();
+		long removed = 0;
+		Object lastId = null;
+		int groupCount;
+
+		do {
+
+			try (MongoClientRegistry.Lease lease = service.acquireClient()) {
+
+				DB db = service.getDB(lease);
+				DBCollection groups = db.getCollection(configuration
+						.getGroupCollectionName());
+				DBCollection users = db.getCollection(configuration
+						.getUserCollectionName());
+
+				DBObject query = lastId == null ? new BasicDBObject()
+						: new BasicDBObject("_id", new BasicDBObject("$gt",
+								lastId));
+
+				DBCursor gc = groups
+						.find(query,
+								BasicDBObjectBuilder.start().add("name", 1)
+										.add("members", 1).get())
+						.sort(new BasicDBObject("_id", 1)).limit(batchSize);
+
+				groupCount = 0;
+				try {
+					while (gc.hasNext()) {
+						DBObject group = gc.next();
+						lastId = group.get("_id");
+						groupCount++;
+						removed += compact(groups, users, group);
+					}
+				} finally {
+					gc.close();
+				}
+
+			}
+
+		} while (groupCount == batchSize);
+
+		log.info("Removed {} orphaned members from the groups collection",
+				removed);
+
+		return removed;
+
+	}
+
+	private int compact(DBCollection groups, DBCollection users,
+			DBObject group) {
+
+		Object members = group.get("members");
+		if (!(members instanceof List)) {
+			return 0;
+		}
+
+		List<?> memberList = (List<?>) members;
+		int removed = 0;
+
+		for (int from = 0; from < memberList.size(); from += batchSize) {
+
+			List<?> chunk = memberList.subList(from,
+					Math.min(from + batchSize, memberList.size()));
+
+			List<Object> orphans = findMissing(users, chunk);
+			if (orphans.isEmpty()) {
+				continue;
+			}
+
+			// users may have been added since the chunk was checked
+			BasicDBList stillMissing = new BasicDBList();
+			stillMissing.addAll(findMissing(users, orphans));
+			if (stillMissing.isEmpty()) {
+				continue;
+			}
+
+			WriteResult result = groups.update(
+					BasicDBObjectBuilder
+							.start("_id", group.get("_id"))
+							.add("members",
+									new BasicDBObject("$in", stillMissing))
+							.get(),
+					new BasicDBObject("$pullAll", new BasicDBObject("members",
+							stillMissing)));
+			if (result.getN() == 0) {
+				continue;
+			}
+
+			// a user added after the second check is a member again
+			List<Object> added = new ArrayList<Object>(stillMissing);
+			added.removeAll(findMissing(users, stillMissing));
+			if (!added.isEmpty()) {
+				groups.update(new BasicDBObject("_id", group.get("_id")),
+						new BasicDBObject("$addToSet", new BasicDBObject(
+								"members", new BasicDBObject("$each", added))));
+			}
+
+			int pulled = stillMissing.size() - added.size();
+			removed += pulled;
+			log.debug("Removed {} orphaned members from group [{}]", pulled,
+					group.get("name"));
+
+		}
+
+		return removed;
+
+	}
+
+	/**
+	 * @return the names that do not exist in the users collection
+	 */
+	private static List<Object> findMissing(DBCollection users,
+			List<?> names) {
+
+		Set<Object> existing = new HashSet<Object>();
+		DBCursor uc = users.find(
+				new BasicDBObject("username", new BasicDBObject("$in",
+						new ArrayList<Object>(names))),
+				BasicDBObjectBuilder.start().add("_id", 0).add("username", 1)
+						.get());
+		try {
+			while (uc.hasNext()) {
+				existing.add(uc.next().get("username"));
+			}
+		} finally {
+			uc.close();
+		}
+
+		List<Object> missing = new ArrayList<Object>();
+		for (Object name : names) {
+			if (!existing.contains(name)) {
+				missing.add(name);
+			}
+		}
+		return missing;
+
+	}
+
+}
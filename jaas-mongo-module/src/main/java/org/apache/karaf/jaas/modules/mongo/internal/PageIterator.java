@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.karaf.jaas.modules.mongo.Page;
+
+/**
+ *
+ * Iterates a paged listing, the next page is only read once the previous one
+ * has been iterated so only a single page is held in memory.
+ *
+ * @author Niels Bertram
+ *
+ */
+public abstract class PageIterator<T> implements Iterator<T> {
+
+	private Iterator<T> page = Collections.<T> emptyList().iterator();
+
+	private String cursor;
+
+	private boolean complete;
+
+	/**
+	 * @param cursor
+	 *            the cursor of the page to read or <code>null</code> for the
+	 *            first page
+	 *
+	 * @return the page
+	 * @throws Exception
+	 *             if the page cannot be read
+	 */
+	protected abstract Page<T> fetch(String cursor) throws Exception;
+
+	@Override
+	public boolean hasNext() {
+
+		// an empty page may still be followed by further pages
+		while (!page.hasNext() && !complete) {
+
+			Page<T> next;
+			try {
+				next = fetch(cursor);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+
+			cursor = next.getNextCursor();
+			complete = next.isLast();
+			page = next.iterator();
+		}
+
+		return page.hasNext();
+
+	}
+
+	@Override
+	public T next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return page.next();
+
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
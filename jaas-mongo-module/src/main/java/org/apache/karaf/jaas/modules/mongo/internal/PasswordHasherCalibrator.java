@@ -0,0 +1,276 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.jaas.modules.mongo.AdjustablePasswordHasher;
+
+/**
+ *
+ * Finds the highest work factor of an {@link AdjustablePasswordHasher} whose
+ * hashes still compute within a latency budget on this machine. The hasher is
+ * benchmarked at its configured cost and scaled by the ratio of the budget to
+ * the measured time until the time fits the budget.
+ * 
+ * The result never exceeds the budget unless the hasher is already at its
+ * lowest cost. As measurements differ between machines and restarts, the
+ * calibrated cost is meant as a starting point an operator pins in the
+ * configuration.
+ * 
+ * A calibration takes a few multiples of the budget, so it runs on a
+ * background thread and never on the thread of a login. Until it finishes the
+ * configured cost is used. Results are kept for the life of the bundle and
+ * shared by all configurations with the same hasher, cost and budget.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class PasswordHasherCalibrator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PasswordHasherCalibrator.class);
+
+	private static final ConcurrentHashMap<String, AdjustablePasswordHasher> calibrated = new ConcurrentHashMap<String, AdjustablePasswordHasher>();
+
+	/**
+	 * The calibrations under way, by hasher, cost and budget.
+	 */
+	private static final ConcurrentHashMap<String, CompletableFuture<AdjustablePasswordHasher>> pending = new ConcurrentHashMap<String, CompletableFuture<AdjustablePasswordHasher>>();
+
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * A measurement within this fraction of the budget is good enough.
+	 */
+	public static final double TOLERANCE = 0.8;
+
+	private static final int MAXIMUM_ROUNDS = 6;
+
+	private static final int SAMPLES = 3;
+
+	private static final String PROBE = "calibration-probe";
+
+	private PasswordHasherCalibrator() {
+	}
+
+	/**
+	 * Calibrates the hasher on the background thread, a calibration already
+	 * finished or under way is shared.
+	 * 
+	 * @param hasher
+	 *            the hasher to calibrate
+	 * @param budgetMillis
+	 *            the time a single hash may take (milliseconds)
+	 * 
+	 * @return the calibration yielding a hasher with the highest cost found to
+	 *         fit the budget, or with the lowest cost the hasher supports if
+	 *         none fits, <code>null</code> if the bundle stops
+	 */
+	public static CompletableFuture<AdjustablePasswordHasher> calibrate(
+			final AdjustablePasswordHasher hasher, final long budgetMillis) {
+
+		final String key = hasher.getClass().getName() + "/"
+				+ hasher.getCost() + "/" + budgetMillis;
+
+		AdjustablePasswordHasher result = calibrated.get(key);
+		if (result != null) {
+			return CompletableFuture.completedFuture(result);
+		}
+
+		final CompletableFuture<AdjustablePasswordHasher> calibration = new CompletableFuture<AdjustablePasswordHasher>();
+
+		CompletableFuture<AdjustablePasswordHasher> existing = pending
+				.putIfAbsent(key, calibration);
+		if (existing != null) {
+			return existing;
+		}
+
+		try {
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// finished while this calibration was claimed
+						AdjustablePasswordHasher result = calibrated.get(key);
+						if (result == null) {
+							result = measure(hasher, budgetMillis);
+							calibrated.put(key, result);
+						}
+						calibration.complete(result);
+					} catch (Throwable e) {
+						log.warn("Failed to calibrate {}: {}", hasher
+								.getClass().getSimpleName(), e.getMessage());
+						calibration.completeExceptionally(e);
+					} finally {
+						pending.remove(key, calibration);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped while the bundle stops, started again on next use
+			pending.remove(key, calibration);
+			return null;
+		}
+
+		return calibration;
+
+	}
+
+	/**
+	 * Stops the background thread and drops all calibration results, used
+	 * when the bundle stops.
+	 */
+	public static void clear() {
+
+		ThreadPoolExecutor stopped;
+
+		synchronized (PasswordHasherCalibrator.class) {
+			stopped = executor;
+			executor = null;
+		}
+
+		if (stopped != null) {
+			stopped.shutdownNow();
+		}
+
+		pending.clear();
+		calibrated.clear();
+
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r,
+									"MongoPasswordHasherCalibrator");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+
+	}
+
+	private static AdjustablePasswordHasher measure(
+			AdjustablePasswordHasher hasher, long budgetMillis) {
+
+		long budget = budgetMillis * 1000000L;
+
+		// warm up the JIT and the crypto provider
+		hasher.hash(PROBE);
+
+		AdjustablePasswordHasher current = hasher;
+		long elapsed = time(current);
+
+		for (int round = 0; round < MAXIMUM_ROUNDS; round++) {
+
+			if (elapsed <= budget && elapsed >= budget * TOLERANCE) {
+				break;
+			}
+
+			// aim a little below the budget, limit each step as the
+			// measurement of a cheap hash is imprecise
+			double factor = budget * (1 + TOLERANCE) / 2 / Math.max(elapsed, 1);
+			factor = Math.max(1.0 / 16, Math.min(16, factor));
+
+			AdjustablePasswordHasher scaled = current.withScaledCost(factor);
+			if (scaled.getCost() == current.getCost()) {
+				// reached a limit of the hasher
+				break;
+			}
+
+			current = scaled;
+			elapsed = time(current);
+		}
+
+		// the rounds may run out above the budget, step down until it fits
+		boolean lowest = false;
+		for (int round = 0; elapsed > budget && round < MAXIMUM_ROUNDS; round++) {
+
+			double factor = Math.max(1.0 / 16, budget * TOLERANCE / elapsed);
+
+			AdjustablePasswordHasher scaled = current.withScaledCost(factor);
+			if (scaled.getCost() >= current.getCost()) {
+				lowest = true;
+				break;
+			}
+
+			current = scaled;
+			elapsed = time(current);
+		}
+
+		if (elapsed > budget && !lowest) {
+			// cap the result rather than exceed the budget
+			current = current.withScaledCost(0);
+			elapsed = time(current);
+		}
+
+		if (elapsed > budget) {
+			log.warn(
+					"Password hashes take {}ms at the lowest cost {} of {}, exceeding the budget of {}ms.",
+					elapsed / 1000000, current.getCost(), current.getClass()
+							.getSimpleName(), budgetMillis);
+		} else {
+			log.info(
+					"Calibrated {} to cost {}, a hash takes {}ms. Pin the cost in the configuration to use the same cost on all machines.",
+					current.getClass().getSimpleName(), current.getCost(),
+					elapsed / 1000000);
+		}
+
+		return current;
+
+	}
+
+	/**
+	 * @return the median time of a few hashes (nanoseconds)
+	 */
+	private static long time(AdjustablePasswordHasher hasher) {
+
+		long[] samples = new long[SAMPLES];
+
+		for (int i = 0; i < SAMPLES; i++) {
+			long started = System.nanoTime();
+			hasher.hash(PROBE);
+			samples[i] = System.nanoTime() - started;
+		}
+
+		Arrays.sort(samples);
+		return samples[SAMPLES / 2];
+
+	}
+
+}
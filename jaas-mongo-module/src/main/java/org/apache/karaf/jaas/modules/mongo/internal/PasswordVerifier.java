@@ -0,0 +1,332 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.PasswordHasher;
+
+/**
+ *
+ * Runs the password verifications of all logins on a bounded pool of
+ * threads, by default one per processor. Key derivation functions are
+ * deliberately expensive, verifying on the login threads would let a login
+ * burst occupy every request thread of the container. At most
+ * {@link MongoConfiguration#getPasswordQueueSize()} verifications wait for a
+ * thread, further logins are rejected right away.
+ * 
+ * The verifiers are shared by all login modules with the same pool settings
+ * and registered as <code>org.apache.karaf.jaas.modules.mongo:type=PasswordVerifier</code>
+ * MBean.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class PasswordVerifier implements PasswordVerifierMBean {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PasswordVerifier.class);
+
+	private static final ConcurrentHashMap<String, PasswordVerifier> verifiers = new ConcurrentHashMap<String, PasswordVerifier>();
+
+	private final ThreadPoolExecutor executor;
+
+	private final int queueCapacity;
+
+	private final AtomicLong verifications = new AtomicLong();
+
+	private final AtomicLong rejections = new AtomicLong();
+
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private final AtomicLong totalHashNanos = new AtomicLong();
+
+	private ObjectName objectName;
+
+	PasswordVerifier(final String name, int threads, int queueCapacity) {
+
+		this.queueCapacity = queueCapacity;
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), new ThreadFactory() {
+					private final AtomicInteger threadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MongoPasswordVerifier-"
+								+ name + "-" + threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+
+	}
+
+	/**
+	 * @param configuration
+	 *            the configuration of the login module
+	 * 
+	 * @return the verifier shared by all login modules with the same pool
+	 *         settings
+	 */
+	public static PasswordVerifier getInstance(MongoConfiguration configuration) {
+
+		String name = configuration.getPasswordThreads() + "x"
+				+ configuration.getPasswordQueueSize();
+
+		PasswordVerifier verifier = verifiers.get(name);
+		if (verifier == null) {
+			verifier = new PasswordVerifier(name,
+					configuration.getPasswordThreads(),
+					configuration.getPasswordQueueSize());
+			PasswordVerifier existing = verifiers.putIfAbsent(name, verifier);
+			if (existing != null) {
+				verifier.executor.shutdown();
+				verifier = existing;
+			} else {
+				verifier.register(name);
+			}
+		}
+		return verifier;
+
+	}
+
+	/**
+	 * Stops all verifiers, used when the bundle stops.
+	 */
+	public static void shutdownAll() {
+		for (PasswordVerifier verifier : verifiers.values()) {
+			verifier.unregister();
+			verifier.executor.shutdownNow();
+		}
+		verifiers.clear();
+	}
+
+	/**
+	 * Verifies the password on the verifier pool and waits for the result.
+	 * 
+	 * @param hasher
+	 *            the hasher that created the stored hash
+	 * @param password
+	 *            the password supplied on login
+	 * @param storedHash
+	 *            the hash stored in the users collection
+	 * 
+	 * @return true if the password matches the hash
+	 * @throws RejectedExecutionException
+	 *             if too many verifications are waiting for a thread
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting
+	 */
+	public boolean verify(final PasswordHasher hasher, final String password,
+			final String storedHash) throws InterruptedException {
+
+		final long submitted = System.nanoTime();
+
+		Future<Boolean> result;
+		try {
+			result = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					long started = System.nanoTime();
+					try {
+						return hasher.verify(password, storedHash);
+					} finally {
+						totalHashNanos.addAndGet(System.nanoTime() - started);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejections.incrementAndGet();
+			throw e;
+		}
+
+		try {
+			return result.get().booleanValue();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			record(System.nanoTime() - submitted);
+		}
+
+	}
+
+	/**
+	 * Hashes the password on the verifier pool without waiting for the
+	 * result.
+	 * 
+	 * @param hasher
+	 *            the hasher of the new hash
+	 * @param password
+	 *            the plain text password
+	 * 
+	 * @return the future hash, failed with a
+	 *         {@link RejectedExecutionException} if too many verifications are
+	 *         waiting for a thread
+	 */
+	public CompletableFuture<String> hashAsync(final PasswordHasher hasher,
+			final String password) {
+
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						result.complete(hasher.hash(password));
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejections.incrementAndGet();
+			result.completeExceptionally(e);
+		}
+
+		return result;
+
+	}
+
+	private void record(long latency) {
+
+		verifications.incrementAndGet();
+		totalLatencyNanos.addAndGet(latency);
+
+		long max = maxLatencyNanos.get();
+		while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+			max = maxLatencyNanos.get();
+		}
+
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	@Override
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getMaximumPoolSize() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Override
+	public long getVerifyCount() {
+		return verifications.get();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejections.get();
+	}
+
+	@Override
+	public double getMeanLatencyMillis() {
+		long count = verifications.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+	}
+
+	@Override
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getMeanHashMillis() {
+		long count = verifications.get();
+		return count == 0 ? 0 : totalHashNanos.get() / 1e6 / count;
+	}
+
+	@Override
+	public void resetStatistics() {
+		verifications.set(0);
+		rejections.set(0);
+		totalLatencyNanos.set(0);
+		maxLatencyNanos.set(0);
+		totalHashNanos.set(0);
+	}
+
+	private void register(String name) {
+		try {
+			ObjectName on = new ObjectName(
+					"org.apache.karaf.jaas.modules.mongo:type=PasswordVerifier,pool="
+							+ name);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(on)) {
+				server.registerMBean(this, on);
+				objectName = on;
+			}
+		} catch (JMException e) {
+			log.debug("Failed to register password verifier MBean.", e);
+		}
+	}
+
+	private void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						objectName);
+			} catch (JMException e) {
+				log.debug("Failed to unregister password verifier MBean.", e);
+			}
+			objectName = null;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+/**
+ *
+ * The statistics of a {@link PasswordVerifier} as exposed via JMX.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public interface PasswordVerifierMBean {
+
+	/**
+	 * @return the number of verifications waiting for a thread
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return the number of verifications that may wait for a thread
+	 */
+	int getQueueCapacity();
+
+	/**
+	 * @return the number of threads currently verifying a password
+	 */
+	int getActiveCount();
+
+	/**
+	 * @return the maximum number of threads verifying passwords
+	 */
+	int getMaximumPoolSize();
+
+	/**
+	 * @return the number of completed verifications
+	 */
+	long getVerifyCount();
+
+	/**
+	 * @return the number of verifications rejected because the queue was full
+	 */
+	long getRejectedCount();
+
+	/**
+	 * @return the mean time from submitting a verification to its result,
+	 *         including the time waiting for a thread (milliseconds)
+	 */
+	double getMeanLatencyMillis();
+
+	/**
+	 * @return the longest time from submitting a verification to its result
+	 *         (milliseconds)
+	 */
+	double getMaxLatencyMillis();
+
+	/**
+	 * @return the mean time spent hashing (milliseconds)
+	 */
+	double getMeanHashMillis();
+
+	/**
+	 * Resets the counters and latencies.
+	 */
+	void resetStatistics();
+
+}
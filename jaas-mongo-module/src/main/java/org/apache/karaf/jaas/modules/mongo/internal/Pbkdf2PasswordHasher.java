@@ -0,0 +1,195 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.karaf.jaas.modules.mongo.AdjustablePasswordHasher;
+
+/**
+ *
+ * An {@link AdjustablePasswordHasher} using PBKDF2 with HMAC-SHA256, a random 16 byte
+ * salt and a 32 byte key. Hashes are encoded as
+ * <code>$pbkdf2-sha256$&lt;iterations&gt;$&lt;salt&gt;$&lt;key&gt;</code>
+ * with base64 encoded salt and key, so that hashes of different iteration
+ * counts can be verified side by side. The cost is the number of iterations.
+ * 
+ * A stored hash of more than {@link #MAXIMUM_COST_FACTOR} times the
+ * configured iterations is rejected without computing it, so a tampered user
+ * document cannot tie up the verifier threads with a single login.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class Pbkdf2PasswordHasher implements AdjustablePasswordHasher {
+
+	static final String PREFIX = "$pbkdf2-sha256$";
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	private static final int SALT_LENGTH = 16;
+
+	private static final int KEY_LENGTH = 32;
+
+	/**
+	 * The default value, 100000
+	 */
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	/**
+	 * The fewest iterations a scaled hasher uses, 10000
+	 */
+	public static final int MINIMUM_ITERATIONS = 10000;
+
+	/**
+	 * The multiple of the configured iterations a stored hash may use, 10
+	 */
+	public static final int MAXIMUM_COST_FACTOR = 10;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private final int iterations;
+
+	public Pbkdf2PasswordHasher() {
+		this(DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param iterations
+	 *            the number of iterations of new hashes
+	 */
+	public Pbkdf2PasswordHasher(int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException(
+					"The number of iterations must be greater than 0.");
+		}
+		this.iterations = iterations;
+	}
+
+	@Override
+	public int getCost() {
+		return iterations;
+	}
+
+	@Override
+	public int getCost(String storedHash) {
+
+		if (!isHash(storedHash)) {
+			return -1;
+		}
+
+		String cost = storedHash.substring(PREFIX.length());
+		int end = cost.indexOf('$');
+
+		try {
+			return Integer.parseInt(end < 0 ? cost : cost.substring(0, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+
+	}
+
+	@Override
+	public Pbkdf2PasswordHasher withScaledCost(double factor) {
+
+		// the time of a hash grows linear with the iterations
+		long scaled = Math.round(iterations * factor);
+
+		return new Pbkdf2PasswordHasher((int) Math.max(MINIMUM_ITERATIONS,
+				Math.min(scaled, Integer.MAX_VALUE)));
+
+	}
+
+	@Override
+	public String hash(String password) {
+
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+
+		byte[] key = derive(password, salt, iterations, KEY_LENGTH);
+
+		Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+
+		return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+				+ encoder.encodeToString(key);
+
+	}
+
+	@Override
+	public boolean isHash(String storedHash) {
+		return storedHash != null && storedHash.startsWith(PREFIX);
+	}
+
+	@Override
+	public boolean verify(String password, String storedHash) {
+
+		String[] parts = storedHash.substring(PREFIX.length()).split("\\$");
+		if (parts.length != 3) {
+			return false;
+		}
+
+		try {
+			int storedIterations = Integer.parseInt(parts[0]);
+			byte[] salt = Base64.getDecoder().decode(parts[1]);
+			byte[] expected = Base64.getDecoder().decode(parts[2]);
+
+			if (storedIterations < 1 || expected.length == 0) {
+				return false;
+			}
+
+			if (storedIterations > (long) iterations * MAXIMUM_COST_FACTOR) {
+				return false;
+			}
+
+			byte[] actual = derive(password, salt, storedIterations,
+					expected.length);
+
+			return MessageDigest.isEqual(expected, actual);
+		} catch (IllegalArgumentException e) {
+			// covers malformed numbers and base64
+			return false;
+		}
+
+	}
+
+	private static byte[] derive(String password, byte[] salt, int iterations,
+			int length) {
+
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+				iterations, length * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+					.getEncoded();
+		} catch (GeneralSecurityException e) {
+			// every java 8 platform supports PBKDF2WithHmacSHA256
+			throw new IllegalStateException(e);
+		} finally {
+			spec.clearPassword();
+		}
+
+	}
+
+}
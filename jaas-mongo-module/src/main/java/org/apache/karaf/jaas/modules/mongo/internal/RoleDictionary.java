@@ -0,0 +1,170 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.jaas.boot.principal.GroupPrincipal;
+
+/**
+ *
+ * A process wide dictionary of role names. Each role name is interned once
+ * into a compact integer id, so the roles of a user can be held as a
+ * {@link BitSet} and checked in constant time. The dictionary also holds a
+ * single shared {@link GroupPrincipal} per role, rather than allocating a new
+ * one for every role of every login. The shared principals must not be
+ * modified.
+ *
+ * Ids are never reused by a dictionary. The dictionary holds at most
+ * {@link #MAX_ROLES} roles, further role names are not interned and get a
+ * principal of their own. When the bundle stops the dictionary is replaced
+ * by an empty one, principals of subjects that are still logged in keep
+ * resolving their role ids against the dictionary they were interned in.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class RoleDictionary {
+
+	/**
+	 * The maximum number of interned role names
+	 */
+	public static final int MAX_ROLES = 65536;
+
+	private static volatile RoleDictionary instance = new RoleDictionary(
+			MAX_ROLES);
+
+	private final ConcurrentHashMap<String, Role> roles = new ConcurrentHashMap<String, Role>();
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	private final int maxRoles;
+
+	RoleDictionary(int maxRoles) {
+		this.maxRoles = maxRoles;
+	}
+
+	public static RoleDictionary getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Replaces the dictionary by an empty one, used when the bundle stops.
+	 */
+	public static void clear() {
+		instance = new RoleDictionary(MAX_ROLES);
+	}
+
+	/**
+	 * @param name
+	 *            the role name
+	 *
+	 * @return the id of the role, assigned on first use, or -1 if the
+	 *         dictionary is full
+	 */
+	public int intern(String name) {
+		Role role = getRole(name);
+		return role != null ? role.id : -1;
+	}
+
+	/**
+	 * @param name
+	 *            the role name
+	 *
+	 * @return the id of the role or -1 if the role was never interned
+	 */
+	public int getId(String name) {
+		Role role = roles.get(name);
+		return role != null ? role.id : -1;
+	}
+
+	/**
+	 * @param name
+	 *            the role name
+	 *
+	 * @return the group principal shared by all users holding the role, it
+	 *         must not be modified, a new one if the dictionary is full
+	 */
+	public GroupPrincipal getPrincipal(String name) {
+		Role role = getRole(name);
+		return role != null ? role.principal : new GroupPrincipal(name);
+	}
+
+	/**
+	 * @param names
+	 *            the role names
+	 *
+	 * @return the ids of the roles as a bit set, without the roles that could
+	 *         not be interned
+	 */
+	public BitSet toBitSet(Collection<String> names) {
+
+		BitSet ids = new BitSet();
+		for (String name : names) {
+			int id = intern(name);
+			if (id >= 0) {
+				ids.set(id);
+			}
+		}
+		return ids;
+
+	}
+
+	/**
+	 * @return the number of interned roles
+	 */
+	public int size() {
+		return roles.size();
+	}
+
+	private Role getRole(String name) {
+
+		Role role = roles.get(name);
+		if (role == null) {
+			// the id is only taken by the role that wins the race
+			synchronized (this) {
+				role = roles.get(name);
+				if (role == null && nextId.get() < maxRoles) {
+					role = new Role(nextId.getAndIncrement(), name);
+					roles.put(name, role);
+				}
+			}
+		}
+		return role;
+
+	}
+
+	private static final class Role {
+
+		private final int id;
+
+		private final GroupPrincipal principal;
+
+		Role(int id, String name) {
+			this.id = id;
+			this.principal = new GroupPrincipal(name);
+		}
+
+	}
+
+}
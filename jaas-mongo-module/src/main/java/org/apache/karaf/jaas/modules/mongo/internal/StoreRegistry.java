@@ -0,0 +1,169 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+
+/**
+ *
+ * A registry of the caches of one kind held for each mongo users store. As
+ * the JAAS framework creates a new login module for every login, the caches
+ * are shared by all login modules configured against the same store with the
+ * same cache settings. A change of a user made through any of them is
+ * applied to every cache of the store.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class StoreRegistry<T extends StoreRegistry.StoreCache> {
+
+	/**
+	 * A cache of the users of one store.
+	 */
+	public interface StoreCache {
+
+		/**
+		 * Removes a single user from the cache.
+		 */
+		void invalidate(String username);
+
+		/**
+		 * Removes all users from the cache.
+		 */
+		void clear();
+
+	}
+
+	/**
+	 * Creates the cache of a store on first use.
+	 */
+	public interface CacheFactory<T> {
+		T createCache(MongoConfiguration configuration);
+	}
+
+	private final ConcurrentHashMap<String, Registration<T>> caches = new ConcurrentHashMap<String, Registration<T>>();
+
+	/**
+	 * @param configuration
+	 *            the configuration of the login module
+	 * @param settings
+	 *            the cache settings, caches of the same store with other
+	 *            settings are held apart
+	 * @param factory
+	 *            creates the cache if there is none yet
+	 *
+	 * @return the cache shared by all login modules with the same mongo users
+	 *         store and cache settings
+	 */
+	public T getInstance(MongoConfiguration configuration, String settings,
+			CacheFactory<T> factory) {
+
+		String storeKey = calculateStoreKey(configuration);
+		String key = storeKey + settings;
+
+		Registration<T> registration = caches.get(key);
+		if (registration == null) {
+			registration = new Registration<T>(storeKey,
+					factory.createCache(configuration));
+			Registration<T> existing = caches.putIfAbsent(key, registration);
+			if (existing != null) {
+				registration = existing;
+			}
+		}
+		return registration.cache;
+
+	}
+
+	/**
+	 * Removes the user from all caches of the mongo users store described by
+	 * the supplied configuration.
+	 *
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 * @param username
+	 *            the user that was modified
+	 */
+	public void invalidate(MongoConfiguration configuration, String username) {
+
+		String storeKey = calculateStoreKey(configuration);
+
+		for (Registration<T> registration : caches.values()) {
+			if (registration.storeKey.equals(storeKey)) {
+				registration.cache.invalidate(username);
+			}
+		}
+
+	}
+
+	/**
+	 * Removes all users from all caches of the mongo users store described by
+	 * the supplied configuration.
+	 *
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 */
+	public void invalidateAll(MongoConfiguration configuration) {
+
+		String storeKey = calculateStoreKey(configuration);
+
+		for (Registration<T> registration : caches.values()) {
+			if (registration.storeKey.equals(storeKey)) {
+				registration.cache.clear();
+			}
+		}
+
+	}
+
+	/**
+	 * Drops all caches, used when the bundle stops.
+	 */
+	public void clearAll() {
+		for (Registration<T> registration : caches.values()) {
+			registration.cache.clear();
+		}
+		caches.clear();
+	}
+
+	/**
+	 * @return the key identifying the mongo users store of a configuration
+	 */
+	static String calculateStoreKey(MongoConfiguration configuration) {
+		return "/" + configuration.getDatasourceURL() + "/"
+				+ configuration.getDatabaseName() + "/"
+				+ configuration.getUserCollectionName() + "/"
+				+ configuration.getGroupCollectionName() + "/";
+	}
+
+	private static class Registration<T> {
+
+		private final String storeKey;
+
+		private final T cache;
+
+		Registration(String storeKey, T cache) {
+			this.storeKey = storeKey;
+			this.cache = cache;
+		}
+
+	}
+
+}
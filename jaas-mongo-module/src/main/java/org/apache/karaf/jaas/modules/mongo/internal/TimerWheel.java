@@ -0,0 +1,240 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * A hierarchical timing wheel with millisecond granularity. Scheduling,
+ * cancelling and expiring a node is amortised O(1), advancing the wheel only
+ * visits the buckets whose time has passed rather than every scheduled node.
+ *
+ * Each level consists of 64 buckets. A bucket of the first level spans one
+ * millisecond, each further level spans 64 times the previous one (64ms, 4s,
+ * 4.4min and 4.7h). Deadlines beyond the last level are kept in a single
+ * overflow bucket. When the wheel advances past a bucket its nodes are either
+ * due or cascade down into a finer grained level.
+ *
+ * The wheel is not thread safe, the owner is expected to guard it with a lock.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class TimerWheel {
+
+	private static final int[] BUCKETS = { 64, 64, 64, 64, 64, 1 };
+
+	private static final int[] SHIFT = { 0, 6, 12, 18, 24, 30 };
+
+	private final Node[][] wheel;
+
+	private long time;
+
+	private int size;
+
+	/**
+	 * @param now
+	 *            the current time (milliseconds)
+	 */
+	public TimerWheel(long now) {
+
+		this.time = now;
+		this.wheel = new Node[BUCKETS.length][];
+
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Node[BUCKETS[i]];
+			for (int j = 0; j < wheel[i].length; j++) {
+				wheel[i][j] = new Sentinel();
+			}
+		}
+
+	}
+
+	/**
+	 * Schedules the node, a node that is already scheduled is moved to its new
+	 * deadline.
+	 *
+	 * @param node
+	 *            the node to schedule
+	 * @param deadline
+	 *            the time the node is due (milliseconds)
+	 */
+	public void schedule(Node node, long deadline) {
+
+		if (node.isScheduled()) {
+			unlink(node);
+		}
+
+		node.deadline = deadline;
+		link(findBucket(deadline), node);
+		size++;
+
+	}
+
+	/**
+	 * Removes the node from the wheel if it is scheduled.
+	 *
+	 * @param node
+	 *            the node to remove
+	 */
+	public void cancel(Node node) {
+
+		if (node.isScheduled()) {
+			unlink(node);
+		}
+
+	}
+
+	/**
+	 * Advances the wheel to the current time.
+	 *
+	 * @param now
+	 *            the current time (milliseconds)
+	 *
+	 * @return all nodes that are due, they are no longer scheduled
+	 */
+	public List<Node> advance(long now) {
+
+		List<Node> expired = new ArrayList<Node>();
+
+		long previous = time;
+		time = now;
+
+		for (int i = 0; i < SHIFT.length; i++) {
+			long previousTicks = previous >>> SHIFT[i];
+			long currentTicks = now >>> SHIFT[i];
+			if (currentTicks - previousTicks <= 0) {
+				break;
+			}
+			expire(i, previousTicks, currentTicks - previousTicks, expired);
+		}
+
+		return expired;
+
+	}
+
+	/**
+	 * @return the number of scheduled nodes
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void expire(int level, long previousTicks, long delta,
+			List<Node> expired) {
+
+		Node[] buckets = wheel[level];
+		int mask = buckets.length - 1;
+		int steps = (int) Math.min(1 + delta, buckets.length);
+		int start = (int) (previousTicks & mask);
+
+		for (int i = start; i < start + steps; i++) {
+
+			Node sentinel = buckets[i & mask];
+			Node node = sentinel.next;
+
+			// detach the bucket before rescheduling into it
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+
+			while (node != sentinel) {
+
+				Node next = node.next;
+				node.prev = null;
+				node.next = null;
+				size--;
+
+				if (node.deadline - time <= 0) {
+					expired.add(node);
+				} else {
+					schedule(node, node.deadline);
+				}
+
+				node = next;
+			}
+
+		}
+
+	}
+
+	private Node findBucket(long deadline) {
+
+		long duration = deadline - time;
+		int last = wheel.length - 1;
+
+		for (int i = 0; i < last; i++) {
+			if (duration < 1L << SHIFT[i + 1]) {
+				long ticks = deadline >>> SHIFT[i];
+				return wheel[i][(int) (ticks & (wheel[i].length - 1))];
+			}
+		}
+
+		return wheel[last][0];
+
+	}
+
+	private void link(Node sentinel, Node node) {
+		node.prev = sentinel.prev;
+		node.next = sentinel;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+	}
+
+	private void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		size--;
+	}
+
+	/**
+	 * An element of the wheel, extended by the owner to carry its data.
+	 */
+	public static class Node {
+
+		private Node prev;
+
+		private Node next;
+
+		private long deadline;
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isScheduled() {
+			return next != null;
+		}
+
+	}
+
+	private static final class Sentinel extends Node {
+
+		Sentinel() {
+			super.prev = this;
+			super.next = this;
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.karaf.jaas.modules.mongo.AsyncUserDetailService;
+import org.apache.karaf.jaas.modules.mongo.ConfigurationException;
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.osgi.framework.BundleContext;
+
+/**
+ *
+ * The JAAS framework creates a new login module for every login and hands it
+ * the same options every time. This registry builds the
+ * {@link MongoConfiguration} and the configured {@link UserDetailService} only
+ * once for each distinct set of options and hands out the same initialised
+ * service to all subsequent logins. The same applies to the
+ * {@link AsyncUserDetailService} adapting it.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class UserDetailServiceRegistry {
+
+	private static final ConcurrentHashMap<String, UserDetailService> services = new ConcurrentHashMap<String, UserDetailService>();
+
+	private static final ConcurrentHashMap<String, AsyncUserDetailService> asyncServices = new ConcurrentHashMap<String, AsyncUserDetailService>();
+
+	private UserDetailServiceRegistry() {
+	}
+
+	/**
+	 * @param bundleContext
+	 *            the bundle context used to load a custom user detail service
+	 * @param options
+	 *            the JAAS options of the login module
+	 *
+	 * @return the initialised user detail service for the supplied options,
+	 *         its configuration is available from
+	 *         {@link UserDetailService#getConfiguration()}
+	 * @throws ConfigurationException
+	 *             if the options are not valid or the service cannot be
+	 *             created
+	 */
+	public static UserDetailService getService(BundleContext bundleContext,
+			Map<String, ?> options) throws ConfigurationException {
+
+		String key = calculateOptionsKey(options);
+
+		UserDetailService service = services.get(key);
+		if (service == null) {
+			service = createService(bundleContext, options);
+			UserDetailService existing = services.putIfAbsent(key, service);
+			if (existing != null) {
+				service = existing;
+			}
+		}
+		return service;
+
+	}
+
+	/**
+	 * @param bundleContext
+	 *            the bundle context used to load a custom user detail service
+	 * @param options
+	 *            the JAAS options of the login module
+	 *
+	 * @return the configured user detail service if it is an
+	 *         {@link AsyncUserDetailService}, otherwise an adapter running the
+	 *         blocking service on a bounded pool of threads
+	 * @throws ConfigurationException
+	 *             if the options are not valid or the service cannot be
+	 *             created
+	 */
+	public static AsyncUserDetailService getAsyncService(
+			BundleContext bundleContext, Map<String, ?> options)
+			throws ConfigurationException {
+
+		String key = calculateOptionsKey(options);
+
+		AsyncUserDetailService asyncService = asyncServices.get(key);
+		if (asyncService == null) {
+
+			UserDetailService service = getService(bundleContext, options);
+
+			if (service instanceof AsyncUserDetailService) {
+				asyncService = (AsyncUserDetailService) service;
+			} else {
+				asyncService = new ExecutorAsyncUserDetailService(service);
+			}
+
+			AsyncUserDetailService existing = asyncServices.putIfAbsent(key,
+					asyncService);
+			if (existing != null) {
+				shutdown(asyncService);
+				asyncService = existing;
+			}
+		}
+		return asyncService;
+
+	}
+
+	/**
+	 * The backing engines build their own service for each engine. They share
+	 * one adapter for each store, read preference and pool size, the first
+	 * service registered for it is the one the adapter runs.
+	 *
+	 * @param service
+	 *            the initialised user detail service to adapt
+	 *
+	 * @return the service itself if it is an {@link AsyncUserDetailService},
+	 *         otherwise the shared adapter running it on a bounded pool of
+	 *         threads
+	 */
+	public static AsyncUserDetailService getAsyncService(
+			UserDetailService service) {
+
+		if (service instanceof AsyncUserDetailService) {
+			return (AsyncUserDetailService) service;
+		}
+
+		String key = calculateServiceKey(service);
+
+		AsyncUserDetailService asyncService = asyncServices.get(key);
+		if (asyncService == null) {
+			asyncService = new ExecutorAsyncUserDetailService(service);
+			AsyncUserDetailService existing = asyncServices.putIfAbsent(key,
+					asyncService);
+			if (existing != null) {
+				shutdown(asyncService);
+				asyncService = existing;
+			}
+		}
+		return asyncService;
+
+	}
+
+	/**
+	 * Drops all services, the next login will build them again.
+	 */
+	public static void clear() {
+		services.clear();
+		for (AsyncUserDetailService asyncService : asyncServices.values()) {
+			shutdown(asyncService);
+		}
+		asyncServices.clear();
+	}
+
+	private static void shutdown(AsyncUserDetailService asyncService) {
+		if (asyncService instanceof ExecutorAsyncUserDetailService) {
+			((ExecutorAsyncUserDetailService) asyncService).shutdown();
+		}
+	}
+
+	private static UserDetailService createService(
+			BundleContext bundleContext, Map<String, ?> options)
+			throws ConfigurationException {
+
+		MongoConfiguration config = new MongoConfigurationBuilder(
+				bundleContext, options).build();
+
+		UserDetailService service = null;
+		try {
+			service = config.getUserDetailServiceImplementationClass()
+					.newInstance();
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new ConfigurationException(
+					"Failed to load custom user detail service. "
+							+ e.getMessage(), e);
+		}
+
+		service.setConfiguration(config);
+
+		return service;
+	}
+
+	/**
+	 * Adapters of engine services are keyed apart from the options keys, which
+	 * always start with a brace.
+	 */
+	static String calculateServiceKey(UserDetailService service) {
+
+		MongoConfiguration config = service.getConfiguration();
+
+		return service.getClass().getName()
+				+ StoreRegistry.calculateStoreKey(config)
+				+ config.getReadPreference() + "/" + config.getAsyncThreads()
+				+ "/" + config.getAsyncQueueSize();
+	}
+
+	/**
+	 * Only the simple option values identify a configuration, objects such as
+	 * the bundle context are handed in by the container.
+	 */
+	static String calculateOptionsKey(Map<String, ?> options) {
+
+		Map<String, Object> sorted = new TreeMap<String, Object>();
+
+		for (Map.Entry<String, ?> option : options.entrySet()) {
+			Object value = option.getValue();
+			if (value instanceof String || value instanceof Number
+					|| value instanceof Boolean) {
+				sorted.put(option.getKey(), value);
+			}
+		}
+
+		return sorted.toString();
+	}
+
+}
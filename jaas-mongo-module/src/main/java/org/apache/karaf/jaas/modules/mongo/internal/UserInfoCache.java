@@ -0,0 +1,229 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+
+/**
+ *
+ * A cache of successfully authenticated users. As the JAAS framework creates a
+ * new login module for every login, the caches are held in a
+ * {@link StoreRegistry} and shared by all login modules configured against
+ * the same mongo users store.
+ *
+ * The supplied password is never held in memory, only a digest of it salted
+ * with a random value that is unique to each cache.
+ *
+ * The cache is bounded by {@link MongoConfiguration#getUserCacheSize()}, once
+ * full the users that log in least often are evicted first.
+ *
+ * Each invalidation advances the generation of the cache. A login takes the
+ * generation before it reads the user and the user is not cached if the
+ * generation moved on in the meantime, so a user that was modified while it
+ * was read is never cached with its outdated details.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class UserInfoCache implements StoreRegistry.StoreCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final StoreRegistry<UserInfoCache> caches = new StoreRegistry<UserInfoCache>();
+
+	private final byte[] salt = new byte[16];
+
+	private final BoundedCache<String, CachedUser> users;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	UserInfoCache(int timeToLive, int maximumSize) {
+		this.users = new BoundedCache<String, CachedUser>(maximumSize,
+				timeToLive, TimeUnit.SECONDS);
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * @param configuration
+	 *            the configuration of the login module
+	 *
+	 * @return the cache shared by all login modules with the same mongo users
+	 *         store and cache settings
+	 */
+	public static UserInfoCache getInstance(MongoConfiguration configuration) {
+		return caches.getInstance(configuration,
+				configuration.getUserCacheTimeToLive() + "/"
+						+ configuration.getUserCacheSize(),
+				new StoreRegistry.CacheFactory<UserInfoCache>() {
+					@Override
+					public UserInfoCache createCache(
+							MongoConfiguration config) {
+						return new UserInfoCache(
+								config.getUserCacheTimeToLive(),
+								config.getUserCacheSize());
+					}
+				});
+	}
+
+	/**
+	 * Removes the user from all caches that hold users of the mongo users
+	 * store described by the supplied configuration.
+	 *
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 * @param username
+	 *            the user that was modified
+	 */
+	public static void invalidate(MongoConfiguration configuration,
+			String username) {
+		caches.invalidate(configuration, username);
+	}
+
+	/**
+	 * Removes all users from all caches that hold users of the mongo users
+	 * store described by the supplied configuration, used if a change may
+	 * affect any number of users.
+	 * 
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 */
+	public static void invalidateAll(MongoConfiguration configuration) {
+		caches.invalidateAll(configuration);
+	}
+
+	/**
+	 * Drops all caches, used when the bundle stops.
+	 */
+	public static void clearAll() {
+		caches.clearAll();
+	}
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * @param password
+	 *            the password supplied by the user
+	 *
+	 * @return the cached user info or <code>null</code> if the user is not
+	 *         cached, expired or the password does not match the one used
+	 *         when the user was cached
+	 */
+	public UserInfo get(String username, String password) {
+
+		CachedUser cached = users.get(username);
+		if (cached == null) {
+			return null;
+		}
+
+		if (!MessageDigest.isEqual(cached.digest, digest(password))) {
+			return null;
+		}
+
+		return cached.userInfo;
+
+	}
+
+	/**
+	 * @return the generation of the cache, to be taken before the user is
+	 *         read from the mongo database
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Caches a successfully authenticated user. If the cache is full another
+	 * user may be evicted or the user may not be admitted at all.
+	 *
+	 * @param username
+	 *            the user identifier
+	 * @param password
+	 *            the password that authenticated the user
+	 * @param userInfo
+	 *            the user info retrieved from the mongo database
+	 * @param readGeneration
+	 *            the generation of the cache before the user was read, the
+	 *            user is not cached if the cache was invalidated since
+	 */
+	public void put(String username, String password, UserInfo userInfo,
+			long readGeneration) {
+
+		if (generation.get() != readGeneration) {
+			return;
+		}
+
+		users.put(username, new CachedUser(userInfo, digest(password)));
+
+		// an invalidation may have run between the check and the put
+		if (generation.get() != readGeneration) {
+			users.remove(username);
+		}
+
+	}
+
+	@Override
+	public void invalidate(String username) {
+		generation.incrementAndGet();
+		users.remove(username);
+	}
+
+	@Override
+	public void clear() {
+		generation.incrementAndGet();
+		users.clear();
+	}
+
+	public int size() {
+		return users.size();
+	}
+
+	private byte[] digest(String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(salt);
+			return md.digest(password.getBytes(UTF8));
+		} catch (NoSuchAlgorithmException e) {
+			// every java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class CachedUser {
+
+		private final UserInfo userInfo;
+
+		private final byte[] digest;
+
+		CachedUser(UserInfo userInfo, byte[] digest) {
+			this.userInfo = userInfo;
+			this.digest = digest;
+		}
+
+	}
+
+}
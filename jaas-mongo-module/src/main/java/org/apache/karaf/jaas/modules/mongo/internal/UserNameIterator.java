@@ -0,0 +1,108 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+
+/**
+ *
+ * Iterates the user names of a {@link UserDetailService} one page at a time.
+ * Each page is read by a separate keyset query resuming after the last name
+ * of the previous page, so only a single page is held in memory and no server
+ * side cursor is left open if the iteration is abandoned.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class UserNameIterator implements Iterator<String> {
+
+	private final UserDetailService service;
+
+	private final int pageSize;
+
+	private Iterator<String> page = Collections.<String> emptyList()
+			.iterator();
+
+	private String last;
+
+	private boolean complete;
+
+	/**
+	 * @param service
+	 *            the service to read the pages from
+	 * @param pageSize
+	 *            the number of names read at a time, at least 1
+	 */
+	public UserNameIterator(UserDetailService service, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException(
+					"The page size must be at least 1 but was [" + pageSize
+							+ "].");
+		}
+		this.service = service;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		if (!page.hasNext() && !complete) {
+
+			List<String> names;
+			try {
+				names = service.getUserNames(last, pageSize);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+
+			// a short page is the last one
+			complete = names.size() < pageSize;
+			page = names.iterator();
+		}
+
+		return page.hasNext();
+
+	}
+
+	@Override
+	public String next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		last = page.next();
+		return last;
+
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.AbstractSequentialList;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+import org.apache.karaf.jaas.modules.BackingEngine;
+
+/**
+ *
+ * A read only list of users that reads the user names from the mongo
+ * database as it is iterated, so that {@link BackingEngine#listUsers()} uses
+ * constant memory regardless of the number of users.
+ *
+ * Each iteration reads the users again. Positional access and
+ * {@link #size()} iterate the users up to the requested position and are
+ * therefore linear.
+ *
+ * @author Niels Bertram
+ *
+ */
+public class UserPrincipalList extends AbstractSequentialList<UserPrincipal> {
+
+	private final Iterable<String> usernames;
+
+	/**
+	 * @param usernames
+	 *            reads the user names from the mongo database on each
+	 *            iteration
+	 */
+	public UserPrincipalList(Iterable<String> usernames) {
+		this.usernames = usernames;
+	}
+
+	@Override
+	public ListIterator<UserPrincipal> listIterator(int index) {
+
+		ListIterator<UserPrincipal> iterator = new UserPrincipalIterator(
+				iterateUserNames());
+
+		for (int i = 0; i < index; i++) {
+			if (!iterator.hasNext()) {
+				throw new IndexOutOfBoundsException("Index: " + index);
+			}
+			iterator.next();
+		}
+
+		return iterator;
+
+	}
+
+	@Override
+	public int size() {
+
+		int size = 0;
+		for (Iterator<String> names = iterateUserNames(); names.hasNext(); names
+				.next()) {
+			size++;
+		}
+		return size;
+
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !iterateUserNames().hasNext();
+	}
+
+	private Iterator<String> iterateUserNames() {
+		return usernames.iterator();
+	}
+
+	/**
+	 * Only iterates forward, the names already passed are not kept.
+	 */
+	private static class UserPrincipalIterator implements
+			ListIterator<UserPrincipal> {
+
+		private final Iterator<String> names;
+
+		private int index;
+
+		UserPrincipalIterator(Iterator<String> names) {
+			this.names = names;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return names.hasNext();
+		}
+
+		@Override
+		public UserPrincipal next() {
+			if (!names.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			index++;
+			return new UserPrincipal(names.next());
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return false;
+		}
+
+		@Override
+		public UserPrincipal previous() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int nextIndex() {
+			return index;
+		}
+
+		@Override
+		public int previousIndex() {
+			return index - 1;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void set(UserPrincipal e) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void add(UserPrincipal e) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+
+/**
+ *
+ * A short lived memo of successful password verifications. A client that
+ * authenticates on every request repeats the expensive key derivation of the
+ * stored hash each time, the memo answers repeated verifications of the same
+ * password against the same stored hash in microseconds.
+ * 
+ * The supplied password is never held in memory, only a HMAC-SHA256 of the
+ * username and password under a random key that is unique to this process.
+ * An entry only matches the stored hash it was verified against, so it is
+ * void as soon as the password of the user changes.
+ * 
+ * @author Niels Bertram
+ *
+ */
+public class VerifiedCredentialMemo implements StoreRegistry.StoreCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final SecretKeySpec key;
+
+	static {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		key = new SecretKeySpec(secret, ALGORITHM);
+	}
+
+	private static final StoreRegistry<VerifiedCredentialMemo> memos = new StoreRegistry<VerifiedCredentialMemo>();
+
+	private final BoundedCache<String, Verification> verifications;
+
+	VerifiedCredentialMemo(int timeToLive, int maximumSize) {
+		this.verifications = new BoundedCache<String, Verification>(
+				maximumSize, timeToLive, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param configuration
+	 *            the configuration of the login module
+	 *
+	 * @return the memo shared by all login modules with the same mongo users
+	 *         store and memo settings
+	 */
+	public static VerifiedCredentialMemo getInstance(
+			MongoConfiguration configuration) {
+		return memos.getInstance(configuration,
+				configuration.getPasswordMemoTimeToLive() + "/"
+						+ configuration.getPasswordMemoSize(),
+				new StoreRegistry.CacheFactory<VerifiedCredentialMemo>() {
+					@Override
+					public VerifiedCredentialMemo createCache(
+							MongoConfiguration config) {
+						return new VerifiedCredentialMemo(
+								config.getPasswordMemoTimeToLive(),
+								config.getPasswordMemoSize());
+					}
+				});
+	}
+
+	/**
+	 * Removes the user from all memos of the mongo users store described by
+	 * the supplied configuration.
+	 *
+	 * @param configuration
+	 *            the configuration of the modified mongo users store
+	 * @param username
+	 *            the user that was modified
+	 */
+	public static void invalidate(MongoConfiguration configuration,
+			String username) {
+		memos.invalidate(configuration, username);
+	}
+
+	/**
+	 * Drops all memos, used when the bundle stops.
+	 */
+	public static void clearAll() {
+		memos.clearAll();
+	}
+
+	/**
+	 * @param username
+	 *            the user identifier
+	 * @param password
+	 *            the password supplied by the user
+	 * @param storedHash
+	 *            the hash currently stored for the user
+	 *
+	 * @return true if the password was recently verified against the stored
+	 *         hash
+	 */
+	public boolean isVerified(String username, String password,
+			String storedHash) {
+
+		Verification verification = verifications.get(username);
+
+		return verification != null
+				&& verification.storedHash.equals(storedHash)
+				&& MessageDigest.isEqual(verification.mac,
+						mac(username, password));
+
+	}
+
+	/**
+	 * Records a successful verification.
+	 *
+	 * @param username
+	 *            the user identifier
+	 * @param password
+	 *            the password that matched the stored hash
+	 * @param storedHash
+	 *            the hash the password was verified against
+	 */
+	public void put(String username, String password, String storedHash) {
+		verifications.put(username, new Verification(mac(username, password),
+				storedHash));
+	}
+
+	@Override
+	public void invalidate(String username) {
+		verifications.remove(username);
+	}
+
+	@Override
+	public void clear() {
+		verifications.clear();
+	}
+
+	public int size() {
+		return verifications.size();
+	}
+
+	private static byte[] mac(String username, String password) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			byte[] name = username.getBytes(UTF8);
+			// the length prefix separates username and password unambiguously
+			mac.update(ByteBuffer.allocate(4).putInt(name.length).array());
+			mac.update(name);
+			return mac.doFinal(password.getBytes(UTF8));
+		} catch (GeneralSecurityException e) {
+			// every java platform is required to support HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Verification {
+
+		private final byte[] mac;
+
+		private final String storedHash;
+
+		Verification(byte[] mac, String storedHash) {
+			this.mac = mac;
+			this.storedHash = storedHash;
+		}
+
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.apache.karaf.jaas.modules.mongo.internal.RoleDictionary;
+import org.junit.Test;
+
+public class ExtendedUserPrincipalTest {
+
+	@Test
+	public void testHasRole() {
+
+		ExtendedUserPrincipal user = new ExtendedUserPrincipal("jane");
+		user.setRoles(Arrays.asList("users", "admins"));
+
+		assertTrue(user.hasRole("users"));
+		assertTrue(user.hasRole("admins"));
+		assertFalse(user.hasRole("guests"));
+		assertFalse(user.hasRole("never-interned-role"));
+
+		// other users do not share the roles
+		ExtendedUserPrincipal other = new ExtendedUserPrincipal("john");
+		other.setRoles(Arrays.asList("guests"));
+		assertFalse(other.hasRole("users"));
+		assertFalse(user.hasRole("guests"));
+
+	}
+
+	@Test
+	public void testHasRoleAfterDictionaryCleared() {
+
+		RoleDictionary.clear();
+		ExtendedUserPrincipal user = new ExtendedUserPrincipal("jane");
+		user.setRoles(Arrays.asList("admins"));
+
+		// the new dictionary hands the id of admins to another role
+		RoleDictionary.clear();
+		RoleDictionary.getInstance().intern("guests");
+		RoleDictionary.getInstance().intern("admins");
+
+		assertTrue(user.hasRole("admins"));
+		assertFalse(user.hasRole("guests"));
+
+	}
+
+	@Test
+	public void testSharedPrincipals() {
+
+		RoleDictionary roles = RoleDictionary.getInstance();
+
+		assertSame(roles.getPrincipal("users"), roles.getPrincipal("users"));
+		assertEquals(roles.intern("users"), roles.getId("users"));
+		assertEquals(-1, roles.getId("never-interned-role"));
+
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.jaas.boot.principal.RolePrincipal;
+import org.apache.karaf.jaas.boot.principal.UserPrincipal;
+
+import org.apache.karaf.jaas.modules.mongo.internal.Activator;
+import org.apache.karaf.jaas.modules.mongo.internal.NegativeLookupCache;
+import org.apache.karaf.jaas.modules.mongo.internal.UserInfoCache;
+import org.apache.karaf.jaas.modules.mongo.internal.VerifiedCredentialMemo;
+import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+public class MongoBackingEngineTest {
+
+	@Rule
+	public MongoRule mongo = new MongoRule().port(27099);
+
+	private Map<String, Object> options;
+
+	private MongoBackingEngine engine;
+
+	private UserInfoCache cache;
+
+	private NegativeLookupCache unknownUsers;
+
+	private VerifiedCredentialMemo memo;
+
+	@Before
+	public void createEngine() throws Exception {
+
+		options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, mongo.getMongoHost() + ":"
+				+ mongo.getMongoPort());
+		options.put(MongoConfiguration.DATABASE, MongoRule.UNIT_TEST_DB);
+		options.put(MongoConfiguration.USER_CACHE_TTL, "60");
+		options.put(MongoConfiguration.NEGATIVE_CACHE_TTL, "60");
+		options.put(MongoConfiguration.PASSWORD_MEMO_TTL, "60");
+
+		// no index builds running in the background of the assertions
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+
+		engine = (MongoBackingEngine) new MongoBackingEngineFactory()
+				.build(options);
+
+		// the caches of the login modules using the same options
+		MongoConfiguration config = new MongoConfigurationBuilder(null,
+				options).build();
+		cache = UserInfoCache.getInstance(config);
+		unknownUsers = NegativeLookupCache.getInstance(config);
+		memo = VerifiedCredentialMemo.getInstance(config);
+
+	}
+
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
+	@Test
+	public void testAddUserInvalidatesCaches() {
+
+		cacheUser("berti", "old");
+		unknownUsers.addUnknown("fred");
+
+		engine.addUser("berti", "new");
+		engine.addUser("fred", "secret");
+
+		assertNull(cache.get("berti", "old"));
+		assertFalse(memo.isVerified("berti", "old", "old-hash"));
+		assertFalse(unknownUsers.isUnknown("fred"));
+
+	}
+
+	@Test
+	public void testDeleteUserInvalidatesCaches() {
+
+		engine.addUser("berti", "secret");
+		cacheUser("berti", "secret");
+
+		engine.deleteUser("berti");
+
+		assertNull(cache.get("berti", "secret"));
+		assertFalse(memo.isVerified("berti", "secret", "old-hash"));
+
+	}
+
+	@Test
+	public void testAddRoleInvalidatesCachedUser() {
+
+		engine.addUser("berti", "secret");
+		cacheUser("berti", "secret");
+
+		engine.addRole("berti", "admins");
+
+		// the next login reads the new role from the database
+		assertNull(cache.get("berti", "secret"));
+
+	}
+
+	@Test
+	public void testAddAndDeleteSingleRole() {
+
+		engine.addUser("berti", "secret");
+		engine.addRole("berti", "users");
+		engine.addRole("berti", "admins");
+
+		assertEquals(Arrays.asList("users", "admins"), getRoleNames("berti"));
+
+		engine.deleteRole("berti", "users");
+
+		assertEquals(Arrays.asList("admins"), getRoleNames("berti"));
+		assertEquals(0, engine.listUsersInRole("users", null, 10).getItems()
+				.size());
+
+	}
+
+	@Test
+	public void testAddRoleOfMissingUser() {
+
+		try {
+			engine.addRole("nobody", "admins");
+			fail("The role was added to a missing user");
+		} catch (RuntimeException e) {
+			assertEquals("User [nobody] does not exist.", e.getMessage());
+		}
+
+		// no group is created for the missing user
+		assertNull(mongo.getMongoClient().getDB(MongoRule.UNIT_TEST_DB)
+				.getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION)
+				.findOne(new BasicDBObject("name", "admins")));
+
+	}
+
+	@Test
+	public void testDeleteRoleOfMissingUser() {
+
+		try {
+			engine.deleteRole("nobody", "admins");
+			fail("The role was removed from a missing user");
+		} catch (RuntimeException e) {
+			assertEquals("User [nobody] does not exist.", e.getMessage());
+		}
+
+	}
+
+	@Test
+	public void testUserModifiedWhileReadIsNotCached() {
+
+		engine.addUser("berti", "secret");
+
+		// a login reads the user before the role is added
+		long generation = cache.getGeneration();
+		UserInfo userInfo = new UserInfo("berti", "secret");
+
+		engine.addRole("berti", "admins");
+
+		cache.put("berti", "secret", userInfo, generation);
+		assertNull(cache.get("berti", "secret"));
+
+		// the next login caches the current user
+		cache.put("berti", "secret", userInfo, cache.getGeneration());
+		assertNotNull(cache.get("berti", "secret"));
+
+	}
+
+	private List<String> getRoleNames(String username) {
+		List<String> names = new ArrayList<String>();
+		for (RolePrincipal role : engine.listRoles(new UserPrincipal(username))) {
+			names.add(role.getName());
+		}
+		return names;
+	}
+
+	private void cacheUser(String username, String password) {
+
+		cache.put(username, password, new UserInfo(username, "old-hash"),
+				cache.getGeneration());
+		memo.put(username, password, "old-hash");
+
+		assertNotNull(cache.get(username, password));
+		assertTrue(memo.isVerified(username, password, "old-hash"));
+
+	}
+
+}
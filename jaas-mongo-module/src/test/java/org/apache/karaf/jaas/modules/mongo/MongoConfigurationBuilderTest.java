@@ -0,0 +1,197 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.karaf.jaas.modules.mongo.internal.PasswordHasherCalibrator;
+import org.junit.After;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+
+public class MongoConfigurationBuilderTest {
+
+	@Test
+	public void testParsesClientOptions() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.CLIENT_CONNECTIONS_PER_HOST, "50");
+		options.put(MongoConfiguration.CLIENT_MIN_CONNECTIONS_PER_HOST, " 5 ");
+		options.put(MongoConfiguration.CLIENT_THREADS_ALLOWED_TO_BLOCK, "2");
+		options.put(MongoConfiguration.CLIENT_MAX_WAIT_TIME, "1500");
+		options.put(MongoConfiguration.CLIENT_CONNECT_TIMEOUT, "2000");
+		options.put(MongoConfiguration.CLIENT_SOCKET_TIMEOUT, "3000");
+		options.put(MongoConfiguration.CLIENT_SOCKET_KEEP_ALIVE, "true");
+		options.put(MongoConfiguration.CLIENT_MAX_CONNECTION_IDLE_TIME, "60000");
+		options.put(MongoConfiguration.CLIENT_MAX_CONNECTION_LIFE_TIME,
+				"600000");
+		options.put(MongoConfiguration.CLIENT_REQUIRED_REPLICA_SET_NAME,
+				"auth");
+
+		MongoClientOptions clientOptions = new MongoConfigurationBuilder(null,
+				options).build().getClientOptions();
+
+		assertEquals(50, clientOptions.getConnectionsPerHost());
+		assertEquals(5, clientOptions.getMinConnectionsPerHost());
+		assertEquals(2,
+				clientOptions.getThreadsAllowedToBlockForConnectionMultiplier());
+		assertEquals(1500, clientOptions.getMaxWaitTime());
+		assertEquals(2000, clientOptions.getConnectTimeout());
+		assertEquals(3000, clientOptions.getSocketTimeout());
+		assertTrue(clientOptions.isSocketKeepAlive());
+		assertEquals(60000, clientOptions.getMaxConnectionIdleTime());
+		assertEquals(600000, clientOptions.getMaxConnectionLifeTime());
+		assertEquals("auth", clientOptions.getRequiredReplicaSetName());
+
+	}
+
+	@Test
+	public void testDriverDefaultsWithoutClientOptions() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.CLIENT_SOCKET_TIMEOUT, " ");
+
+		assertEquals(MongoClientOptions.builder().build(),
+				new MongoConfigurationBuilder(null, options).build()
+						.getClientOptions());
+
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testRejectsClientOptionNotANumber() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.CLIENT_CONNECT_TIMEOUT, "2s");
+
+		new MongoConfigurationBuilder(null, options).build();
+
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testRejectsClientOptionRejectedByDriver() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.CLIENT_CONNECTIONS_PER_HOST, "0");
+
+		new MongoConfigurationBuilder(null, options).build();
+
+	}
+
+	@Test
+	public void testDefaultsToPrimaryWithFallback() throws Exception {
+
+		MongoConfiguration config = new MongoConfigurationBuilder(null,
+				createOptions()).build();
+
+		assertEquals(ReadPreference.primary(), config.getReadPreference());
+		assertTrue(config.isReadPrimaryFallback());
+
+	}
+
+	@Test
+	public void testParsesReadPreferenceWithTagSets() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.READ_PREFERENCE, "secondaryPreferred");
+		options.put(MongoConfiguration.READ_PREFERENCE_TAGS,
+				"dc:east, use:auth;dc:east");
+		options.put(MongoConfiguration.READ_PRIMARY_FALLBACK, "false");
+
+		MongoConfiguration config = new MongoConfigurationBuilder(null,
+				options).build();
+
+		assertEquals(ReadPreference.secondaryPreferred(new BasicDBObject(
+				"dc", "east").append("use", "auth"), new BasicDBObject("dc",
+				"east")), config.getReadPreference());
+		assertFalse(config.isReadPrimaryFallback());
+
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testRejectsUnknownReadPreference() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.READ_PREFERENCE, "closest");
+
+		new MongoConfigurationBuilder(null, options).build();
+
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testRejectsTagWithoutValue() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.READ_PREFERENCE, "nearest");
+		options.put(MongoConfiguration.READ_PREFERENCE_TAGS, "dc");
+
+		new MongoConfigurationBuilder(null, options).build();
+
+	}
+
+	@Test
+	public void testCalibratesInBackground() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.PASSWORD_LATENCY_BUDGET, "20");
+
+		// the configured iterations are used until the calibration finished
+		MongoConfiguration config = new MongoConfigurationBuilder(null,
+				options).build();
+		AdjustablePasswordHasher configured = (AdjustablePasswordHasher) config
+				.getPasswordHasher();
+		assertEquals(MongoConfiguration.DEFAULT_PBKDF2_ITERATIONS,
+				configured.getCost());
+		assertFalse(config.isPasswordCostCalibrated());
+
+		AdjustablePasswordHasher calibrated = PasswordHasherCalibrator
+				.calibrate(configured, 20).get();
+		for (int i = 0; i < 100 && !config.isPasswordCostCalibrated(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(config.isPasswordCostCalibrated());
+		assertSame(calibrated, config.getPasswordHasher());
+
+		// a configuration built later starts with the calibrated hasher
+		MongoConfiguration later = new MongoConfigurationBuilder(null, options)
+				.build();
+		assertTrue(later.isPasswordCostCalibrated());
+		assertSame(calibrated, later.getPasswordHasher());
+
+	}
+
+	@After
+	public void clearCalibrations() {
+		PasswordHasherCalibrator.clear();
+	}
+
+	private static Map<String, Object> createOptions() {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, "localhost:27017");
+		options.put(MongoConfiguration.DATABASE, "unitdb");
+		return options;
+	}
+
+}
@@ -23,8 +23,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
@@ -34,7 +37,9 @@ import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.security.auth.login.LoginException;
 
+import org.apache.karaf.jaas.boot.principal.GroupPrincipal;
 import org.apache.karaf.jaas.modules.mongo.MongoLoginModule;
+import org.apache.karaf.jaas.modules.mongo.internal.Activator;
 import org.apache.karaf.jaas.modules.mongo.internal.DefaultUserDetailService;
 import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
 
@@ -47,6 +52,7 @@ import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.*;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -85,6 +91,12 @@ public class MongoLoginModuleTest {
 		MockitoAnnotations.initMocks(this);
 	}
 
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Test
 	public void testSuccessfulLogin() throws LoginException,
@@ -144,8 +156,15 @@ public class MongoLoginModuleTest {
 		mod.initialize(subject, mockCallbackHandler, null, options);
 
 		mod.login();
-
-		assertTrue(true);
+		mod.commit();
+
+		// the roles are shared group principals as before
+		Set<String> roles = new HashSet<String>();
+		for (GroupPrincipal role : subject.getPrincipals(GroupPrincipal.class)) {
+			roles.add(role.getName());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("users", "admins")),
+				roles);
 
 	}
 
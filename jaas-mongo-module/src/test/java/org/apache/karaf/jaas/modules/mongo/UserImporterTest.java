@@ -0,0 +1,80 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class UserImporterTest {
+
+	@Test
+	public void testParseJson() {
+
+		UserInfo user = UserImporter
+				.parseJson("{\"username\": \"jane\", \"password\": \"secret\", \"roles\": [\"admin\", \"user\"]}");
+
+		assertEquals("jane", user.getName());
+		assertEquals("secret", user.getPassword());
+		assertEquals(Arrays.asList("admin", "user"), user.getGroups());
+
+	}
+
+	@Test
+	public void testParseCsv() {
+
+		assertNull(UserImporter.parseCsv("username,password,roles"));
+
+		UserInfo user = UserImporter.parseCsv("jane,\"se,c\"\"ret\",admin;user");
+
+		assertEquals("jane", user.getName());
+		assertEquals("se,c\"ret", user.getPassword());
+		assertEquals(Arrays.asList("admin", "user"), user.getGroups());
+
+		assertTrue(UserImporter.parseCsv("john,secret").getGroups().isEmpty());
+
+	}
+
+	@Test
+	public void testRejectsMalformedLines() {
+
+		String[] json = { "{\"username\": \"jane\"}", "[1, 2]", "{username:" };
+		for (String line : json) {
+			try {
+				UserImporter.parseJson(line);
+				fail("Accepted " + line);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+
+		String[] csv = { "jane", ",secret", "jane,\"secret" };
+		for (String line : csv) {
+			try {
+				UserImporter.parseCsv(line);
+				fail("Accepted " + line);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
+import org.apache.karaf.jaas.modules.mongo.testutil.WithoutMongo;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import de.flapdoodle.embed.mongo.distribution.Version;
+
+/**
+ * The pipeline runs against the oldest server supporting it, the handling of
+ * the aggregation result is tested against mocks.
+ */
+public class AggregationUserDetailServiceTest {
+
+	@Rule
+	// this will start and stop mongodb for every test
+	public MongoRule mongo = new MongoRule().port(27099).version(
+			Version.Main.V3_6);
+
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
+	@Test
+	public void testResolvesUserAndGroups() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		DefaultUserDetailService store = new DefaultUserDetailService(
+				new MongoConfigurationBuilder(null, options).build());
+		store.addUser(createUser("berti", "secret", "users", "admins"));
+		store.addUser(createUser("fred", "secret", "users"));
+
+		AggregationUserDetailService service = new AggregationUserDetailService(
+				new MongoConfigurationBuilder(null, options).build());
+
+		UserInfo userInfo = service.getUserInfo("berti");
+		assertEquals("secret", userInfo.getPassword());
+		assertEquals(new HashSet<String>(Arrays.asList("users", "admins")),
+				new HashSet<String>(userInfo.getGroups()));
+
+		assertEquals(Arrays.asList("users"), service.getUserInfo("fred")
+				.getGroups());
+		assertNull(service.getUserInfo("nobody"));
+
+	}
+
+	@Test
+	public void testResolvesRolesOfNestedGroups() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+
+		DefaultUserDetailService store = new DefaultUserDetailService(
+				new MongoConfigurationBuilder(null, options).build());
+		store.addUser(createUser("berti", "secret", "operators"));
+		// the parent group has no members of its own
+		store.addNestedGroup("admins", "operators");
+
+		UserInfo userInfo = new AggregationUserDetailService(
+				new MongoConfigurationBuilder(null, options).build())
+				.getUserInfo("berti");
+
+		assertEquals(new HashSet<String>(Arrays.asList("operators", "admins")),
+				new HashSet<String>(userInfo.getGroups()));
+
+	}
+
+	@Test
+	@WithoutMongo
+	public void testJoinsOnlyRoleFieldsOfGroups() throws Exception {
+
+		DBObject lookup = getLookup(createService(new HashMap<String, Object>()));
+
+		assertEquals(new BasicDBObject("username", "$username"),
+				lookup.get("let"));
+		assertEquals(BasicDBObjectBuilder.start().add("_id", 0)
+				.add("name", 1).get(), getGroupProjection(lookup));
+
+	}
+
+	@Test
+	@WithoutMongo
+	public void testJoinsEffectiveRolesOfNestedGroups() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+
+		DBObject lookup = getLookup(createService(options));
+
+		assertEquals(BasicDBObjectBuilder.start().add("_id", 0)
+				.add("name", 1)
+				.add(GroupHierarchy.EFFECTIVE_ROLES_FIELD, 1).get(),
+				getGroupProjection(lookup));
+
+	}
+
+	@Test
+	@WithoutMongo
+	public void testReadsRolesOfJoinedGroups() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+
+		DBObject user = BasicDBObjectBuilder
+				.start()
+				.add("username", "berti")
+				.add("passwordHash", "secret")
+				.add(AggregationUserDetailService.GROUPS_FIELD,
+						Arrays.asList(
+								new BasicDBObject("name", "users"),
+								new BasicDBObject("name", "operators").append(
+										GroupHierarchy.EFFECTIVE_ROLES_FIELD,
+										Arrays.asList("operators", "admins"))))
+				.get();
+
+		UserInfo userInfo = createService(options, user).getUserInfo("berti");
+
+		assertEquals("secret", userInfo.getPassword());
+		assertEquals(Arrays.asList("users", "operators", "admins"),
+				userInfo.getGroups());
+
+	}
+
+	@Test
+	@WithoutMongo
+	public void testMissingUser() throws Exception {
+
+		assertNull(createService(new HashMap<String, Object>(), (DBObject) null)
+				.getUserInfo("nobody"));
+
+	}
+
+	private static DBObject getLookup(AggregationUserDetailService service) {
+		for (DBObject stage : service.createPipeline("berti")) {
+			if (stage.containsField("$lookup")) {
+				return (DBObject) stage.get("$lookup");
+			}
+		}
+		fail("No $lookup stage");
+		return null;
+	}
+
+	private static DBObject getGroupProjection(DBObject lookup) {
+		List<?> pipeline = (List<?>) lookup.get("pipeline");
+		assertEquals(2, pipeline.size());
+		return (DBObject) ((DBObject) pipeline.get(1)).get("$project");
+	}
+
+	private Map<String, Object> createOptions() {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, mongo.getMongoHost() + ":"
+				+ mongo.getMongoPort());
+		options.put(MongoConfiguration.DATABASE, MongoRule.UNIT_TEST_DB);
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+		return options;
+
+	}
+
+	private static UserInfo createUser(String username, String password,
+			String... groups) {
+		UserInfo user = new UserInfo(username, password);
+		for (String group : groups) {
+			user.addGroup(group);
+		}
+		return user;
+	}
+
+	private static AggregationUserDetailService createService(
+			Map<String, Object> options) throws Exception {
+		return createService(options, (DBObject) null);
+	}
+
+	/**
+	 * @return a service reading the supplied aggregation result, none if the
+	 *         user is <code>null</code>
+	 */
+	private static AggregationUserDetailService createService(
+			Map<String, Object> options, DBObject user) throws Exception {
+
+		options.put(MongoConfiguration.DATASOURCE, "localhost:27017");
+		options.put(MongoConfiguration.DATABASE, "unitdb");
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+
+		Cursor cursor = mock(Cursor.class);
+		if (user != null) {
+			when(cursor.hasNext()).thenReturn(true, false);
+			when(cursor.next()).thenReturn(user);
+		}
+
+		DBCollection users = mock(DBCollection.class);
+		when(
+				users.aggregate(anyListOf(DBObject.class),
+						any(AggregationOptions.class),
+						any(ReadPreference.class))).thenReturn(cursor);
+
+		final DB db = mock(DB.class);
+		when(db.getCollection(anyString())).thenReturn(users);
+
+		return new AggregationUserDetailService(new MongoConfigurationBuilder(
+				null, options).build()) {
+			@Override
+			protected MongoClientRegistry.Lease acquireClient() {
+				return null;
+			}
+
+			@Override
+			protected DB getDB(MongoClientRegistry.Lease lease) {
+				return db;
+			}
+		};
+
+	}
+
+}
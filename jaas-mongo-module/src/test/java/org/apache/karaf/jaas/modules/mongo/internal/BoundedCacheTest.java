@@ -0,0 +1,123 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+	@Test
+	public void testSizeIsBounded() {
+
+		BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(
+				100, 0, TimeUnit.SECONDS);
+
+		for (int i = 0; i < 10000; i++) {
+			cache.put(i, "v" + i);
+		}
+
+		assertEquals(100, cache.size());
+		assertEquals(100, cache.weightedSize());
+		assertEquals(9900, cache.getEvictionCount());
+
+	}
+
+	@Test
+	public void testScanDoesNotEvictHotEntries() {
+
+		BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(
+				100, 0, TimeUnit.SECONDS);
+
+		// the working set is read frequently
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (cache.get(i) == null) {
+					cache.put(i, "hot" + i);
+				}
+			}
+		}
+
+		// a scan of distinct keys that are never read again, a plain LRU
+		// would evict each hot entry before it is read again
+		for (int i = 0; i < 10000; i++) {
+			cache.put(1000 + i, "cold" + i);
+			if (i % 4 == 0) {
+				cache.get((i / 4) % 50);
+			}
+		}
+
+		int retained = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get(i) != null) {
+				retained++;
+			}
+		}
+		assertEquals(50, retained);
+
+	}
+
+	@Test
+	public void testWeigher() {
+
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(
+				10, 0, TimeUnit.SECONDS,
+				new BoundedCache.Weigher<String, String>() {
+					@Override
+					public int weigh(String key, String value) {
+						return value.length();
+					}
+				});
+
+		cache.put("a", "xxxx");
+		cache.put("b", "xxxx");
+		assertEquals(8, cache.weightedSize());
+
+		cache.put("c", "xxxx");
+		assertTrue(cache.weightedSize() <= 10);
+
+		// can never fit
+		cache.put("d", "xxxxxxxxxxx");
+		assertNull(cache.get("d"));
+
+	}
+
+	@Test
+	public void testEntriesExpireAfterWrite() throws Exception {
+
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(
+				10, 50, TimeUnit.MILLISECONDS);
+
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+
+		Thread.sleep(80);
+		assertNull(cache.get("a"));
+
+		cache.cleanUp();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weightedSize());
+
+	}
+
+}
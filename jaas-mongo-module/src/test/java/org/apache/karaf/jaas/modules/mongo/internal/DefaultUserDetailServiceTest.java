@@ -0,0 +1,644 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.apache.karaf.jaas.modules.mongo.Page;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+import org.apache.karaf.jaas.modules.mongo.UserWriteException;
+import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+
+public class DefaultUserDetailServiceTest {
+
+	@Rule
+	// this will start and stop mongodb for every test
+	public MongoRule mongo = new MongoRule().port(27099);
+
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
+	@Test
+	public void testUpdatePasswordHashOnlyWritesTheHash() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("berti", "old", "users"));
+
+		assertTrue(service.updatePasswordHash("berti", "old", "new"));
+
+		DBObject user = findUser("berti");
+		assertEquals("new", user.get("passwordHash"));
+		assertEquals(1, service.getRoles("berti").size());
+
+		// the hash changed since it was read
+		assertFalse(service.updatePasswordHash("berti", "old", "other"));
+		assertEquals("new", findUser("berti").get("passwordHash"));
+
+	}
+
+	@Test
+	public void testUpdatePasswordHashDoesNotRecreateUser() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("berti", "old"));
+		service.deleteUser("berti");
+
+		assertFalse(service.updatePasswordHash("berti", "old", "new"));
+		assertNull(findUser("berti"));
+
+	}
+
+	@Test
+	public void testDeleteUserRemovesMemberships() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("berti", "secret", "users", "admins"));
+		service.addUser(createUser("fred", "secret", "users"));
+
+		service.deleteUser("berti");
+
+		assertNull(findUser("berti"));
+		assertEquals(Arrays.asList("fred"),
+				listAllUsersInRole(service, "users", 10));
+		assertEquals(Collections.emptyList(),
+				listAllUsersInRole(service, "admins", 10));
+		assertEquals(0, getDB().getCollection(
+				MongoConfiguration.DEFAULT_GROUP_COLLECTION).count(
+				new BasicDBObject("members", "berti")));
+
+	}
+
+	@Test
+	public void testEmbeddedRolesAreKeptOnUserDocument() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("berti", "secret", "users", "admins"));
+
+		assertEquals(Arrays.asList("users", "admins"),
+				findUser("berti").get(
+						MongoConfiguration.DEFAULT_USER_ROLES_ATTRIBUTE));
+		assertEquals(Arrays.asList("users", "admins"),
+				service.getRoles("berti"));
+
+		// the groups collection still lists the members of each role
+		assertEquals(Arrays.asList("berti"),
+				listAllUsersInRole(service, "admins", 10));
+
+	}
+
+	@Test
+	public void testEmbeddedRolesLoginReadsOnlyUserDocument() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+		options.put(MongoConfiguration.USER_ROLES_ATTRIBUTE, "authorities");
+
+		createService(new HashMap<String, Object>(options)).addUser(
+				createUser("berti", "secret", "users", "admins"));
+		assertEquals(Arrays.asList("users", "admins"),
+				findUser("berti").get("authorities"));
+
+		DBCollection groups = mock(DBCollection.class);
+		UserInfo userInfo = createService(
+				options,
+				createDB(
+						getDB().getCollection(
+								MongoConfiguration.DEFAULT_USER_COLLECTION),
+						groups)).getUserInfo("berti");
+
+		assertEquals("secret", userInfo.getPassword());
+		assertEquals(Arrays.asList("users", "admins"), userInfo.getGroups());
+		verifyZeroInteractions(groups);
+
+	}
+
+	@Test
+	public void testAddRoleCreatesGroupOnce() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("berti", "secret"));
+		service.addUser(createUser("fred", "secret"));
+
+		assertTrue(service.addRole("berti", "admins"));
+		assertTrue(service.addRole("berti", "admins"));
+		assertTrue(service.addRole("fred", "admins"));
+
+		assertEquals(1, getDB().getCollection(
+				MongoConfiguration.DEFAULT_GROUP_COLLECTION).count(
+				new BasicDBObject("name", "admins")));
+		assertEquals(Arrays.asList("berti", "fred"), findGroup("admins")
+				.get("members"));
+
+	}
+
+	@Test
+	public void testAddUserAgainKeepsPasswordAndAddsRoles() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("berti", "secret", "users"));
+		service.addUser(createUser("berti", "other", "users", "admins"));
+
+		assertEquals(1, getDB().getCollection(
+				MongoConfiguration.DEFAULT_USER_COLLECTION).count(
+				new BasicDBObject("username", "berti")));
+		assertEquals("secret", findUser("berti").get("passwordHash"));
+		assertEquals(Arrays.asList("berti"), findGroup("users").get("members"));
+		assertEquals(Arrays.asList("berti"), findGroup("admins")
+				.get("members"));
+
+	}
+
+	@Test
+	public void testAddRoleKeepsEmbeddedRolesDistinct() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("berti", "secret", "users"));
+
+		assertTrue(service.addRole("berti", "users"));
+		assertTrue(service.addRole("berti", "admins"));
+		assertTrue(service.addRole("berti", "admins"));
+
+		assertEquals(Arrays.asList("users", "admins"),
+				findUser("berti").get(
+						MongoConfiguration.DEFAULT_USER_ROLES_ATTRIBUTE));
+		assertEquals(Arrays.asList("berti"), findGroup("admins")
+				.get("members"));
+
+	}
+
+	@Test
+	public void testClientOptionsSelectSharedClient() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.CLIENT_SOCKET_TIMEOUT, "3000");
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("berti", "secret"));
+
+		Map<String, Object> otherOptions = new HashMap<String, Object>();
+		otherOptions.put(MongoConfiguration.CLIENT_SOCKET_TIMEOUT, "4000");
+		DefaultUserDetailService otherService = createService(otherOptions);
+
+		try (MongoClientRegistry.Lease lease = service.acquireClient();
+				MongoClientRegistry.Lease sameLease = createService(
+						new HashMap<String, Object>(options)).acquireClient();
+				MongoClientRegistry.Lease otherLease = otherService
+						.acquireClient()) {
+
+			assertSame(lease.getClient(), sameLease.getClient());
+			assertNotSame(lease.getClient(), otherLease.getClient());
+			assertEquals(3000, lease.getClient().getMongoClientOptions()
+					.getSocketTimeout());
+			assertEquals(4000, otherLease.getClient().getMongoClientOptions()
+					.getSocketTimeout());
+
+		}
+
+		// both clients read the same store
+		assertEquals("secret", otherService.getUserInfo("berti").getPassword());
+
+	}
+
+	@Test
+	public void testFallsBackToPrimaryForUserMissingOnSecondary()
+			throws Exception {
+
+		createService().addUser(createUser("berti", "secret", "users"));
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.READ_PREFERENCE, "secondary");
+		List<ReadPreference> reads = new ArrayList<ReadPreference>();
+
+		UserInfo userInfo = createService(options,
+				createLaggingSecondary(reads)).getUserInfo("berti");
+
+		assertEquals("secret", userInfo.getPassword());
+		assertEquals(Arrays.asList("users"), userInfo.getGroups());
+		assertEquals(
+				Arrays.asList(ReadPreference.secondary(),
+						ReadPreference.primary()), reads);
+
+	}
+
+	@Test
+	public void testNoFallbackToPrimaryIfDisabled() throws Exception {
+
+		createService().addUser(createUser("berti", "secret"));
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.READ_PREFERENCE, "secondary");
+		options.put(MongoConfiguration.READ_PRIMARY_FALLBACK, "false");
+		List<ReadPreference> reads = new ArrayList<ReadPreference>();
+
+		assertNull(createService(options, createLaggingSecondary(reads))
+				.getUserInfo("berti"));
+		assertEquals(Arrays.asList(ReadPreference.secondary()), reads);
+
+	}
+
+	@Test
+	public void testMissingUserIsReadOnceFromPrimary() throws Exception {
+
+		List<ReadPreference> reads = new ArrayList<ReadPreference>();
+
+		assertNull(createService(new HashMap<String, Object>(),
+				createLaggingSecondary(reads)).getUserInfo("nobody"));
+		assertEquals(Arrays.asList(ReadPreference.primary()), reads);
+
+	}
+
+	@Test
+	public void testCoveredLookupWithoutIndex() throws Exception {
+
+		// the covering indexes are never provisioned
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_LOOKUP_COVERED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("berti", "secret", "users"));
+
+		UserInfo userInfo = service.getUserInfo("berti");
+
+		assertEquals("secret", userInfo.getPassword());
+		assertEquals(Arrays.asList("users"), userInfo.getGroups());
+
+	}
+
+	@Test
+	public void testCoveredLookupExaminesNoDocuments() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_LOOKUP_COVERED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("berti", "secret", "users"));
+
+		DBCollection users = getDB().getCollection(
+				MongoConfiguration.DEFAULT_USER_COLLECTION);
+		users.createIndex(IndexBootstrapper.COVERING_USER_INDEX);
+
+		DBObject explain;
+		try {
+			explain = users.find(new BasicDBObject("username", "berti"),
+					service.createUserProjection().get())
+					.hint(IndexBootstrapper.COVERING_USER_INDEX).explain();
+		} catch (MongoException e) {
+			// the embedded server may not implement explain
+			assumeNoException(e);
+			return;
+		}
+
+		// 3.0 and later report execution stats, older servers the legacy plan
+		DBObject stats = (DBObject) explain.get("executionStats");
+		Object examined = stats != null ? stats.get("totalDocsExamined")
+				: explain.get("nscannedObjects");
+		assumeNotNull(examined);
+
+		assertEquals(0, ((Number) examined).intValue());
+
+	}
+
+	@Test
+	public void testGetUserNamesResumesAfterLastName() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("carl", "secret"));
+		service.addUser(createUser("anna", "secret"));
+		service.addUser(createUser("bert", "secret"));
+
+		assertEquals(Arrays.asList("anna", "bert"),
+				service.getUserNames(null, 2));
+		assertEquals(Arrays.asList("carl"), service.getUserNames("bert", 2));
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetUserNamesRejectsUnlimitedPage() throws Exception {
+		// a limit of 0 would mean no limit to mongo
+		createService().getUserNames(null, 0);
+	}
+
+	@Test
+	public void testListUsersInRolePagesGroupMembers() throws Exception {
+
+		DefaultUserDetailService service = createService();
+		service.addUser(createUser("anna", "secret", "admins"));
+		service.addUser(createUser("bert", "secret", "admins"));
+		service.addUser(createUser("carl", "secret", "admins"));
+		service.addUser(createUser("dora", "secret", "users"));
+
+		assertEquals(Arrays.asList("anna", "bert", "carl"),
+				listAllUsersInRole(service, "admins", 2));
+		assertEquals(Arrays.asList("anna", "bert", "carl"),
+				listAllUsersInRole(service, "admins", 3));
+		assertTrue(listAllUsersInRole(service, "unknown", 2).isEmpty());
+
+	}
+
+	@Test
+	public void testListUsersInRolePagesEmbeddedRoles() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("carl", "secret", "admins"));
+		service.addUser(createUser("anna", "secret", "admins"));
+		service.addUser(createUser("bert", "secret", "users"));
+
+		assertEquals(Arrays.asList("anna", "carl"),
+				listAllUsersInRole(service, "admins", 1));
+		assertTrue(listAllUsersInRole(service, "unknown", 1).isEmpty());
+
+	}
+
+	@Test
+	public void testListUsersInRoleIncludesNestedGroupMembers()
+			throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("carl", "secret", "admins"));
+		service.addUser(createUser("anna", "secret", "operators"));
+		service.addUser(createUser("bert", "secret", "operators", "admins"));
+		service.addUser(createUser("dora", "secret", "users"));
+		service.addNestedGroup("admins", "operators");
+
+		// a member of both groups is listed once
+		assertEquals(Arrays.asList("anna", "bert", "carl"),
+				listAllUsersInRole(service, "admins", 2));
+		assertEquals(Arrays.asList("anna", "bert"),
+				listAllUsersInRole(service, "operators", 2));
+
+	}
+
+	@Test
+	public void testGetRolesIncludesInheritedRoles() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("anna", "secret", "operators"));
+		service.addNestedGroup("admins", "operators");
+
+		assertEquals(service.getUserInfo("anna").getGroups(),
+				service.getRoles("anna"));
+		assertEquals(new HashSet<String>(Arrays.asList("operators",
+				"admins")), new HashSet<String>(service.getRoles("anna")));
+
+	}
+
+	@Test
+	public void testGetRolesIncludesInheritedEmbeddedRoles() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.GROUPS_NESTED, "true");
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+
+		DefaultUserDetailService service = createService(options);
+		service.addUser(createUser("anna", "secret", "operators"));
+		service.addNestedGroup("admins", "operators");
+
+		assertEquals(service.getUserInfo("anna").getGroups(),
+				service.getRoles("anna"));
+		assertEquals(new HashSet<String>(Arrays.asList("operators",
+				"admins")), new HashSet<String>(service.getRoles("anna")));
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testListUsersInRoleRejectsEmptyPage() throws Exception {
+		createService().listUsersInRole("admins", null, 0);
+	}
+
+	@Test
+	public void testAddUsersMapsFailedGroupsToUsers() throws Exception {
+
+		// members of a group must be a list
+		getDB().getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION)
+				.insert(new BasicDBObject("name", "broken").append("members",
+						"none"));
+
+		DefaultUserDetailService service = createService();
+		try {
+			service.addUsers(Arrays.asList(createUser("anna", "secret", "broken"),
+					createUser("bert", "secret", "users")));
+			fail("Added a user to a broken group");
+		} catch (UserWriteException e) {
+			assertEquals(Collections.singleton("anna"), e.getFailures()
+					.keySet());
+			assertTrue(e.getFailures().get("anna").contains("broken"));
+		}
+
+		assertNotNull(findUser("anna"));
+		assertEquals(Arrays.asList("users"), service.getRoles("bert"));
+
+	}
+
+	@Test
+	public void testAddUsersKeepsUserAndGroupErrors() throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.USER_ROLES_EMBEDDED, "true");
+
+		// embedded roles must be a list
+		getDB().getCollection(MongoConfiguration.DEFAULT_USER_COLLECTION)
+				.insert(new BasicDBObject("username", "carl").append("roles",
+						"none"));
+		getDB().getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION)
+				.insert(new BasicDBObject("name", "broken").append("members",
+						"none"));
+
+		DefaultUserDetailService service = createService(options);
+		try {
+			service.addUsers(Arrays.asList(createUser("anna", "secret", "broken"),
+					createUser("bert", "secret", "users"),
+					createUser("carl", "secret", "users")));
+			fail("Added users with broken documents");
+		} catch (UserWriteException e) {
+			assertEquals(new HashSet<String>(Arrays.asList("anna", "carl")),
+					e.getFailures().keySet());
+			// the user write error is the cause, the group error is kept
+			assertTrue(e.getCause() instanceof BulkWriteException);
+			assertEquals(1, e.getSuppressed().length);
+		}
+
+		assertEquals(Arrays.asList("users"), service.getRoles("bert"));
+
+	}
+
+	private static List<String> listAllUsersInRole(
+			DefaultUserDetailService service, String role, int limit)
+			throws Exception {
+
+		List<String> names = new ArrayList<String>();
+		String cursor = null;
+		do {
+			Page<String> page = service.listUsersInRole(role, cursor, limit);
+			assertTrue(page.getItems().size() <= limit);
+			names.addAll(page.getItems());
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		return names;
+
+	}
+
+	private DefaultUserDetailService createService() throws Exception {
+		return createService(new HashMap<String, Object>());
+	}
+
+	/**
+	 * @return a service reading the supplied database
+	 */
+	private DefaultUserDetailService createService(
+			Map<String, Object> options, final DB db) throws Exception {
+
+		return new DefaultUserDetailService(createService(options)
+				.getConfiguration()) {
+			@Override
+			protected DB getDB(MongoClientRegistry.Lease lease) {
+				return db;
+			}
+		};
+
+	}
+
+	/**
+	 * @return a database whose users are only found on the primary, the read
+	 *         preference of each user lookup is added to the reads
+	 */
+	private DB createLaggingSecondary(final List<ReadPreference> reads) {
+
+		final DBCollection users = getDB().getCollection(
+				MongoConfiguration.DEFAULT_USER_COLLECTION);
+
+		DBCollection laggingUsers = mock(DBCollection.class);
+		when(
+				laggingUsers.findOne(any(DBObject.class), any(DBObject.class),
+						any(ReadPreference.class))).thenAnswer(
+				new Answer<DBObject>() {
+					@Override
+					public DBObject answer(InvocationOnMock invocation) {
+						Object[] args = invocation.getArguments();
+						ReadPreference readPreference = (ReadPreference) args[2];
+						reads.add(readPreference);
+						if (!ReadPreference.primary().equals(readPreference)) {
+							return null;
+						}
+						return users.findOne((DBObject) args[0],
+								(DBObject) args[1], readPreference);
+					}
+				});
+
+		return createDB(laggingUsers, getDB().getCollection(
+				MongoConfiguration.DEFAULT_GROUP_COLLECTION));
+
+	}
+
+	private static DB createDB(DBCollection users, DBCollection groups) {
+		DB db = mock(DB.class);
+		when(db.getCollection(MongoConfiguration.DEFAULT_USER_COLLECTION))
+				.thenReturn(users);
+		when(db.getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION))
+				.thenReturn(groups);
+		return db;
+	}
+
+	private DefaultUserDetailService createService(Map<String, Object> options)
+			throws Exception {
+
+		options.put(MongoConfiguration.DATASOURCE, mongo.getMongoHost() + ":"
+				+ mongo.getMongoPort());
+		options.put(MongoConfiguration.DATABASE, MongoRule.UNIT_TEST_DB);
+
+		// no index builds running in the background of the assertions
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+
+		MongoConfiguration config = new MongoConfigurationBuilder(null,
+				options).build();
+
+		return new DefaultUserDetailService(config);
+
+	}
+
+	private static UserInfo createUser(String username, String password,
+			String... groups) {
+		UserInfo user = new UserInfo(username, password);
+		for (String group : groups) {
+			user.addGroup(group);
+		}
+		return user;
+	}
+
+	private DB getDB() {
+		return mongo.getMongoClient().getDB(MongoRule.UNIT_TEST_DB);
+	}
+
+	private DBObject findUser(String username) {
+		return getDB().getCollection(
+				MongoConfiguration.DEFAULT_USER_COLLECTION).findOne(
+				new BasicDBObject("username", username));
+	}
+
+	private DBObject findGroup(String name) {
+		return getDB().getCollection(
+				MongoConfiguration.DEFAULT_GROUP_COLLECTION).findOne(
+				new BasicDBObject("name", name));
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ExpiringMapTest {
+
+	@Test
+	public void testTimerWheelReturnsOnlyDueNodes() {
+
+		TimerWheel wheel = new TimerWheel(0);
+
+		TimerWheel.Node soon = new TimerWheel.Node();
+		TimerWheel.Node later = new TimerWheel.Node();
+		TimerWheel.Node muchLater = new TimerWheel.Node();
+
+		wheel.schedule(soon, 10);
+		wheel.schedule(later, 5000);
+		wheel.schedule(muchLater, 10L * 24 * 60 * 60 * 1000);
+
+		assertEquals(3, wheel.size());
+		assertTrue(wheel.advance(9).isEmpty());
+
+		List<TimerWheel.Node> due = wheel.advance(10);
+		assertEquals(1, due.size());
+		assertSame(soon, due.get(0));
+		assertFalse(soon.isScheduled());
+
+		// crosses several levels, the remaining nodes cascade down
+		assertTrue(wheel.advance(4999).isEmpty());
+		due = wheel.advance(6000);
+		assertEquals(1, due.size());
+		assertSame(later, due.get(0));
+
+		assertEquals(1, wheel.size());
+		assertTrue(muchLater.isScheduled());
+
+	}
+
+	@Test
+	public void testTimerWheelCancelAndReschedule() {
+
+		TimerWheel wheel = new TimerWheel(1000);
+
+		TimerWheel.Node node = new TimerWheel.Node();
+
+		wheel.schedule(node, 1100);
+		wheel.schedule(node, 70000);
+		assertEquals(1, wheel.size());
+		assertTrue(wheel.advance(2000).isEmpty());
+
+		wheel.cancel(node);
+		assertFalse(node.isScheduled());
+		assertEquals(0, wheel.size());
+		assertTrue(wheel.advance(100000).isEmpty());
+
+	}
+
+	@Test
+	public void testExpiringMapNotifiesListener() throws Exception {
+
+		ExpiringMap<String, String> map = new ExpiringMap<String, String>(50,
+				10, TimeUnit.MILLISECONDS);
+
+		final List<String> expired = new ArrayList<String>();
+		map.addExpirationListener(new ExpirationListener<String>() {
+			@Override
+			public void expired(String expiredObject) {
+				expired.add(expiredObject);
+			}
+		});
+
+		map.put("a", "1");
+		map.put("b", "2");
+		map.remove("b");
+
+		map.processExpires();
+		assertEquals("1", map.get("a"));
+
+		Thread.sleep(100);
+		map.processExpires();
+
+		assertFalse(map.containsKey("a"));
+		assertEquals(1, expired.size());
+		assertEquals("1", expired.get(0));
+
+	}
+
+	@Test
+	public void testExpireAfterWriteIgnoresAccess() throws Exception {
+
+		ExpiringMap<String, String> idle = new ExpiringMap<String, String>(
+				80, 10, TimeUnit.MILLISECONDS);
+		ExpiringMap<String, String> written = new ExpiringMap<String, String>(
+				80, 10, TimeUnit.MILLISECONDS);
+		written.setExpireAfterWrite(true);
+
+		idle.put("a", "1");
+		written.put("a", "1");
+
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(20);
+			idle.get("a");
+			written.get("a");
+			idle.processExpires();
+			written.processExpires();
+		}
+
+		assertTrue(idle.containsKey("a"));
+		assertFalse(written.containsKey("a"));
+
+	}
+
+	@Test
+	public void testSharedSchedulerDrivesExpiry() throws Exception {
+
+		ExpiringMap<String, String> map = new ExpiringMap<String, String>(50,
+				100, TimeUnit.MILLISECONDS);
+		map.getExpirer().startExpiringIfNotStarted();
+
+		map.put("a", "1");
+
+		for (int i = 0; i < 50 && map.containsKey("a"); i++) {
+			Thread.sleep(20);
+		}
+		assertFalse(map.containsKey("a"));
+
+		ExpiryScheduler.getInstance().shutdown();
+		assertFalse(map.getExpirer().isRunning());
+
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class GroupHierarchyTest {
+
+	@Test
+	public void testTopologicalOrder() {
+
+		// staff -> (admins, devs), devs -> admins
+		Map<String, DBObject> affected = new HashMap<String, DBObject>();
+		affected.put("admins", group("{name: 'admins'}"));
+		affected.put("devs", group("{name: 'devs', subgroups: ['admins']}"));
+		affected.put("staff",
+				group("{name: 'staff', subgroups: ['admins', 'devs', 'other']}"));
+
+		List<String> order = GroupHierarchy.topologicalOrder(affected);
+
+		assertEquals(3, order.size());
+		assertTrue(order.indexOf("staff") < order.indexOf("devs"));
+		assertTrue(order.indexOf("devs") < order.indexOf("admins"));
+
+	}
+
+	private static DBObject group(String json) {
+		return (DBObject) JSON.parse(json);
+	}
+
+}
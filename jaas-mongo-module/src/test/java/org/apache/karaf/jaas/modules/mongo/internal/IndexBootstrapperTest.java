@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.junit.After;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class IndexBootstrapperTest {
+
+	@Test
+	public void testWinningPlan() {
+
+		DBObject indexed = (DBObject) JSON
+				.parse("{queryPlanner: {winningPlan: {stage: 'FETCH', inputStage: {stage: 'IXSCAN', keyPattern: {username: 1}}}, rejectedPlans: []}}");
+		assertTrue(IndexBootstrapper.isIndexScan(indexed));
+
+		// an index scan among the rejected plans does not count
+		DBObject scanned = (DBObject) JSON
+				.parse("{queryPlanner: {winningPlan: {stage: 'COLLSCAN'}, rejectedPlans: [{stage: 'IXSCAN'}]}}");
+		assertFalse(IndexBootstrapper.isIndexScan(scanned));
+
+	}
+
+	@Test
+	public void testLegacyPlan() {
+
+		assertTrue(IndexBootstrapper.isIndexScan((DBObject) JSON
+				.parse("{cursor: 'BtreeCursor username_1', n: 1}")));
+		assertFalse(IndexBootstrapper.isIndexScan((DBObject) JSON
+				.parse("{cursor: 'BasicCursor', n: 1}")));
+
+	}
+
+	@Test
+	public void testCoveredPlan() {
+
+		assertTrue(IndexBootstrapper.isCovered((DBObject) JSON
+				.parse("{queryPlanner: {winningPlan: {stage: 'PROJECTION', inputStage: {stage: 'IXSCAN'}}}}")));
+		assertFalse(IndexBootstrapper.isCovered((DBObject) JSON
+				.parse("{queryPlanner: {winningPlan: {stage: 'PROJECTION', inputStage: {stage: 'FETCH', inputStage: {stage: 'IXSCAN'}}}}}")));
+
+		assertTrue(IndexBootstrapper.isCovered((DBObject) JSON
+				.parse("{cursor: 'BtreeCursor username_1_passwordHash_1', indexOnly: true}")));
+		assertFalse(IndexBootstrapper.isCovered((DBObject) JSON
+				.parse("{cursor: 'BtreeCursor username_1_passwordHash_1', indexOnly: false}")));
+
+	}
+
+	@Test
+	public void testFailedBootstrapIsNotRetriedRightAway() throws Exception {
+
+		MongoConfiguration config = new MongoConfiguration();
+		config.setDatasourceURL("unreachable:1");
+		config.setIndexProvision(true);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		DefaultUserDetailService service = new DefaultUserDetailService(config) {
+			@Override
+			protected MongoClientRegistry.Lease acquireClient()
+					throws UnknownHostException {
+				attempts.incrementAndGet();
+				throw new UnknownHostException("unreachable");
+			}
+		};
+
+		IndexBootstrapper.bootstrap(config, service).get();
+
+		// the failure is not recorded as bootstrapped, but waits to be retried
+		assertNull(IndexBootstrapper.bootstrap(config, service));
+		assertEquals(1, attempts.get());
+
+		// a bundle restart retries right away
+		IndexBootstrapper.clear();
+		IndexBootstrapper.bootstrap(config, service).get();
+		assertEquals(2, attempts.get());
+
+	}
+
+	@Test
+	public void testFailedBootstrapIsGivenUp() throws Exception {
+
+		MongoConfiguration config = new MongoConfiguration();
+		config.setDatasourceURL("unreachable:1");
+		config.setIndexProvision(true);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		DefaultUserDetailService service = new DefaultUserDetailService(config) {
+			@Override
+			protected MongoClientRegistry.Lease acquireClient()
+					throws UnknownHostException {
+				attempts.incrementAndGet();
+				throw new UnknownHostException("unreachable");
+			}
+		};
+
+		IndexBootstrapper.retryInterval = 0;
+		for (int i = 0; i < IndexBootstrapper.MAX_ATTEMPTS; i++) {
+			IndexBootstrapper.bootstrap(config, service).get();
+		}
+
+		assertNull(IndexBootstrapper.bootstrap(config, service));
+		assertEquals(IndexBootstrapper.MAX_ATTEMPTS, attempts.get());
+
+		// a bundle restart tries again
+		IndexBootstrapper.clear();
+		IndexBootstrapper.bootstrap(config, service).get();
+		assertEquals(IndexBootstrapper.MAX_ATTEMPTS + 1, attempts.get());
+
+	}
+
+	@Test
+	public void testNoBootstrapByDefault() throws Exception {
+
+		MongoConfiguration config = new MongoConfiguration();
+		config.setDatasourceURL("unreachable:1");
+
+		assertNull(IndexBootstrapper.bootstrap(config,
+				new DefaultUserDetailService(config)));
+
+	}
+
+	@After
+	public void clearBootstrapper() {
+		IndexBootstrapper.retryInterval = IndexBootstrapper.RETRY_INTERVAL;
+		IndexBootstrapper.clear();
+	}
+
+}
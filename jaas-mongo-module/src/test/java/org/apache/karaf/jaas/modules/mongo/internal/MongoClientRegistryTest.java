@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+
+public class MongoClientRegistryTest {
+
+	@Test
+	public void testClientIsCreatedOnce() throws Exception {
+
+		MongoClientRegistry registry = new MongoClientRegistry(60);
+		CountingFactory factory = new CountingFactory();
+
+		MongoClientRegistry.Lease first = registry.acquire("key", factory);
+		MongoClientRegistry.Lease second = registry.acquire("key", factory);
+
+		assertSame(first.getClient(), second.getClient());
+		assertEquals(1, factory.created.get());
+
+		first.close();
+		second.close();
+		registry.closeAll();
+
+	}
+
+	@Test
+	public void testCloseAllWaitsForOutstandingLeases() throws Exception {
+
+		MongoClientRegistry registry = new MongoClientRegistry(60);
+		CountingFactory factory = new CountingFactory();
+
+		final MongoClientRegistry.Lease lease = registry.acquire("key", factory);
+		MongoClient client = lease.getClient();
+
+		Thread user = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+					// still usable while the registry is closing
+					lease.getClient().getDB("test");
+				} catch (InterruptedException e) {
+				} finally {
+					lease.close();
+				}
+			}
+		});
+		user.start();
+
+		long start = System.currentTimeMillis();
+		registry.closeAll();
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue(elapsed >= 150);
+		assertTrue(elapsed < MongoClientRegistry.DRAIN_TIMEOUT);
+		verify(client).getDB("test");
+		verify(client).close();
+
+		user.join();
+
+	}
+
+	@Test
+	public void testNewLeaseAfterCloseAllGetsNewClient() throws Exception {
+
+		MongoClientRegistry registry = new MongoClientRegistry(60);
+		CountingFactory factory = new CountingFactory();
+
+		MongoClientRegistry.Lease lease = registry.acquire("key", factory);
+		lease.close();
+		registry.closeAll();
+
+		MongoClientRegistry.Lease next = registry.acquire("key", factory);
+		assertNotSame(lease.getClient(), next.getClient());
+		assertEquals(2, factory.created.get());
+
+		next.close();
+		registry.closeAll();
+
+	}
+
+	private static class CountingFactory implements
+			MongoClientRegistry.ClientFactory {
+
+		final AtomicInteger created = new AtomicInteger();
+
+		@Override
+		public MongoClient createClient() throws UnknownHostException {
+			created.incrementAndGet();
+			return mock(MongoClient.class);
+		}
+
+	}
+
+}
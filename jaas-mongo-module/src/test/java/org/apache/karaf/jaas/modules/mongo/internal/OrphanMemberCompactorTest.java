@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class OrphanMemberCompactorTest {
+
+	@Rule
+	// this will start and stop mongodb for every test
+	public MongoRule mongo = new MongoRule().port(27099);
+
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
+	@Test
+	public void testRemovesOnlyMissingMembers() throws Exception {
+
+		createUser("berti");
+		createUser("fred");
+		createGroup("users", "berti", "ghost", "fred", "gone", "lost");
+		createGroup("admins", "berti");
+		createGroup("guests", "ghost");
+
+		// pages of two groups and chunks of two members
+		long removed = new OrphanMemberCompactor(createService(getDB()), 2)
+				.compact();
+
+		assertEquals(4, removed);
+		assertEquals(Arrays.asList("berti", "fred"), getMembers("users"));
+		assertEquals(Arrays.asList("berti"), getMembers("admins"));
+		assertEquals(Arrays.asList(), getMembers("guests"));
+
+	}
+
+	@Test
+	public void testKeepsUserAddedBeforeRecheck() throws Exception {
+
+		createUser("berti");
+		createGroup("users", "berti", "ghost", "carl");
+
+		// carl is added after the members were checked the first time
+		long removed = new OrphanMemberCompactor(createService(addUserAfter(
+				1, "carl")), 10).compact();
+
+		assertEquals(1, removed);
+		assertEquals(Arrays.asList("berti", "carl"), getMembers("users"));
+
+	}
+
+	@Test
+	public void testRestoresUserAddedBeforePull() throws Exception {
+
+		createUser("berti");
+		createGroup("users", "berti", "ghost", "carl");
+
+		// carl is added after the orphans were checked the second time
+		long removed = new OrphanMemberCompactor(createService(addUserAfter(
+				2, "carl")), 10).compact();
+
+		assertEquals(1, removed);
+		assertEquals(Arrays.asList("berti", "carl"), getMembers("users"));
+
+	}
+
+	/**
+	 * @return a database adding the user to the users collection once the
+	 *         users were read the supplied number of times
+	 */
+	private DB addUserAfter(final int reads, final String username) {
+
+		final DBCollection users = getDB().getCollection(
+				MongoConfiguration.DEFAULT_USER_COLLECTION);
+		final AtomicInteger count = new AtomicInteger();
+
+		DBCollection racingUsers = mock(DBCollection.class);
+		when(racingUsers.find(any(DBObject.class), any(DBObject.class)))
+				.thenAnswer(new Answer<DBCursor>() {
+					@Override
+					public DBCursor answer(InvocationOnMock invocation) {
+						DBCursor cursor = users.find(
+								(DBObject) invocation.getArguments()[0],
+								(DBObject) invocation.getArguments()[1]);
+						if (count.incrementAndGet() == reads) {
+							// runs the query before the user is added
+							cursor.hasNext();
+							users.insert(new BasicDBObject("username",
+									username));
+						}
+						return cursor;
+					}
+				});
+
+		DB db = mock(DB.class);
+		when(db.getCollection(MongoConfiguration.DEFAULT_USER_COLLECTION))
+				.thenReturn(racingUsers);
+		when(db.getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION))
+				.thenReturn(
+						getDB().getCollection(
+								MongoConfiguration.DEFAULT_GROUP_COLLECTION));
+		return db;
+
+	}
+
+	private DefaultUserDetailService createService(final DB db)
+			throws Exception {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, mongo.getMongoHost() + ":"
+				+ mongo.getMongoPort());
+		options.put(MongoConfiguration.DATABASE, MongoRule.UNIT_TEST_DB);
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+
+		return new DefaultUserDetailService(new MongoConfigurationBuilder(
+				null, options).build()) {
+			@Override
+			protected DB getDB(MongoClientRegistry.Lease lease) {
+				return db;
+			}
+		};
+
+	}
+
+	private void createUser(String username) {
+		getDB().getCollection(MongoConfiguration.DEFAULT_USER_COLLECTION)
+				.insert(new BasicDBObject("username", username));
+	}
+
+	private void createGroup(String name, String... members) {
+		getDB().getCollection(MongoConfiguration.DEFAULT_GROUP_COLLECTION)
+				.insert(new BasicDBObject("name", name).append("members",
+						Arrays.asList(members)));
+	}
+
+	private Object getMembers(String name) {
+		return getDB().getCollection(
+				MongoConfiguration.DEFAULT_GROUP_COLLECTION)
+				.findOne(new BasicDBObject("name", name)).get("members");
+	}
+
+	private DB getDB() {
+		return mongo.getMongoClient().getDB(MongoRule.UNIT_TEST_DB);
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.jaas.modules.mongo.AdjustablePasswordHasher;
+import org.junit.After;
+import org.junit.Test;
+
+public class PasswordHasherCalibratorTest {
+
+	@Test
+	public void testScalesDownIntoBudget() throws Exception {
+
+		AdjustablePasswordHasher hasher = PasswordHasherCalibrator.calibrate(
+				new SleepingHasher(200, 1), 20).get();
+
+		assertTrue(hasher.getCost() <= 20);
+		assertTrue(hasher.getCost() >= 1);
+
+	}
+
+	@Test
+	public void testCapsAtLowestCost() throws Exception {
+
+		// even the lowest cost exceeds the budget
+		AdjustablePasswordHasher hasher = PasswordHasherCalibrator.calibrate(
+				new SleepingHasher(400, 30), 10).get();
+
+		assertEquals(30, hasher.getCost());
+
+	}
+
+	@Test
+	public void testCalibratesOnceInBackground() throws Exception {
+
+		final Thread caller = Thread.currentThread();
+		final AtomicBoolean onCaller = new AtomicBoolean();
+		final AtomicInteger hashes = new AtomicInteger();
+		SleepingHasher hasher = new SleepingHasher(50, 1) {
+			@Override
+			public String hash(String password) {
+				if (Thread.currentThread() == caller) {
+					onCaller.set(true);
+				}
+				hashes.incrementAndGet();
+				return super.hash(password);
+			}
+		};
+
+		CompletableFuture<AdjustablePasswordHasher> calibration = PasswordHasherCalibrator
+				.calibrate(hasher, 20);
+		assertFalse(calibration.isDone());
+		assertSame(calibration, PasswordHasherCalibrator.calibrate(hasher, 20));
+
+		AdjustablePasswordHasher calibrated = calibration.get();
+		int measured = hashes.get();
+
+		assertSame(calibrated, PasswordHasherCalibrator.calibrate(hasher, 20)
+				.get());
+		assertEquals(measured, hashes.get());
+		assertFalse(onCaller.get());
+
+	}
+
+	@After
+	public void clearCalibrations() {
+		PasswordHasherCalibrator.clear();
+	}
+
+	/**
+	 * A hash sleeps one millisecond per unit of cost.
+	 */
+	private static class SleepingHasher implements AdjustablePasswordHasher {
+
+		private final int cost;
+
+		private final int minimum;
+
+		SleepingHasher(int cost, int minimum) {
+			this.cost = cost;
+			this.minimum = minimum;
+		}
+
+		@Override
+		public String hash(String password) {
+			try {
+				Thread.sleep(cost);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "$sleep$" + cost;
+		}
+
+		@Override
+		public boolean isHash(String storedHash) {
+			return storedHash.startsWith("$sleep$");
+		}
+
+		@Override
+		public boolean verify(String password, String storedHash) {
+			return true;
+		}
+
+		@Override
+		public int getCost() {
+			return cost;
+		}
+
+		@Override
+		public int getCost(String storedHash) {
+			return Integer.parseInt(storedHash.substring(7));
+		}
+
+		@Override
+		public AdjustablePasswordHasher withScaledCost(double factor) {
+			return new SleepingHasher((int) Math.max(minimum,
+					Math.round(cost * factor)), minimum);
+		}
+
+	}
+
+}
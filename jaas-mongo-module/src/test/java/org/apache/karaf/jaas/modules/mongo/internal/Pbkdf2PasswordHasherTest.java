@@ -0,0 +1,98 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class Pbkdf2PasswordHasherTest {
+
+	@Test
+	public void testHashAndVerify() {
+
+		Pbkdf2PasswordHasher hasher = new Pbkdf2PasswordHasher(1000);
+
+		String hash = hasher.hash("secret");
+
+		assertTrue(hasher.isHash(hash));
+		assertTrue(hash.startsWith("$pbkdf2-sha256$1000$"));
+		assertTrue(hasher.verify("secret", hash));
+		assertFalse(hasher.verify("Secret", hash));
+
+		// salted, the same password never has the same hash
+		assertFalse(hash.equals(hasher.hash("secret")));
+
+	}
+
+	@Test
+	public void testVerifiesOtherIterationCounts() {
+
+		String hash = new Pbkdf2PasswordHasher(500).hash("secret");
+
+		assertTrue(new Pbkdf2PasswordHasher(2000).verify("secret", hash));
+
+	}
+
+	@Test
+	public void testRejectsExcessiveIterationCounts() {
+
+		Pbkdf2PasswordHasher hasher = new Pbkdf2PasswordHasher(1000);
+
+		assertTrue(hasher.verify("secret",
+				new Pbkdf2PasswordHasher(10000).hash("secret")));
+		assertFalse(hasher.verify("secret",
+				new Pbkdf2PasswordHasher(10001).hash("secret")));
+
+		// rejected without deriving the key
+		String hash = new Pbkdf2PasswordHasher(1000).hash("secret");
+		assertFalse(hasher.verify("secret", hash.replace("$1000$", "$"
+				+ Integer.MAX_VALUE + "$")));
+
+	}
+
+	@Test
+	public void testRejectsMalformedHashes() {
+
+		Pbkdf2PasswordHasher hasher = new Pbkdf2PasswordHasher(1000);
+
+		assertFalse(hasher.isHash("secret"));
+		assertFalse(hasher.verify("secret", "$pbkdf2-sha256$abc$x$y"));
+		assertFalse(hasher.verify("secret", "$pbkdf2-sha256$1000$!!$!!"));
+		assertFalse(hasher.verify("secret", "$pbkdf2-sha256$1000"));
+
+	}
+
+	@Test
+	public void testCost() {
+
+		Pbkdf2PasswordHasher hasher = new Pbkdf2PasswordHasher(20000);
+
+		assertEquals(20000, hasher.getCost());
+		assertEquals(20000, hasher.getCost(hasher.hash("secret")));
+		assertEquals(-1, hasher.getCost("secret"));
+
+		assertEquals(40000, hasher.withScaledCost(2).getCost());
+		assertEquals(Pbkdf2PasswordHasher.MINIMUM_ITERATIONS, hasher
+				.withScaledCost(0.01).getCost());
+
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.karaf.jaas.boot.principal.GroupPrincipal;
+import org.junit.Test;
+
+public class RoleDictionaryTest {
+
+	@Test
+	public void testSharesGroupPrincipals() {
+
+		RoleDictionary roles = new RoleDictionary(10);
+
+		GroupPrincipal principal = roles.getPrincipal("users");
+		assertSame(principal, roles.getPrincipal("users"));
+		assertEquals("users", principal.getName());
+
+	}
+
+	@Test
+	public void testIsBounded() {
+
+		RoleDictionary roles = new RoleDictionary(2);
+
+		assertEquals(0, roles.intern("users"));
+		assertEquals(1, roles.intern("admins"));
+		assertEquals(-1, roles.intern("guests"));
+		assertEquals(2, roles.size());
+
+		// a role that does not fit gets a principal of its own
+		assertEquals("guests", roles.getPrincipal("guests").getName());
+		assertNotSame(roles.getPrincipal("guests"),
+				roles.getPrincipal("guests"));
+
+		BitSet ids = roles.toBitSet(Arrays.asList("users", "guests"));
+		assertEquals(1, ids.cardinality());
+		assertTrue(ids.get(0));
+
+	}
+
+	@Test
+	public void testClearDropsRoles() {
+
+		RoleDictionary dictionary = RoleDictionary.getInstance();
+		int id = dictionary.intern("users");
+		RoleDictionary.clear();
+
+		assertEquals(0, RoleDictionary.getInstance().size());
+		assertEquals(-1, RoleDictionary.getInstance().getId("users"));
+
+		// the replaced dictionary still resolves its ids
+		assertEquals(id, dictionary.getId("users"));
+
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.junit.Test;
+
+public class StoreRegistryTest {
+
+	@Test
+	public void testSharesCachesOfSameSettings() throws Exception {
+
+		StoreRegistry<RecordingCache> registry = new StoreRegistry<RecordingCache>();
+		MongoConfiguration config = createConfiguration("users");
+
+		RecordingCache cache = registry.getInstance(config, "a", FACTORY);
+
+		assertSame(cache, registry.getInstance(config, "a", FACTORY));
+		assertNotSame(cache, registry.getInstance(config, "b", FACTORY));
+
+	}
+
+	@Test
+	public void testInvalidatesAllCachesOfStore() throws Exception {
+
+		StoreRegistry<RecordingCache> registry = new StoreRegistry<RecordingCache>();
+		MongoConfiguration config = createConfiguration("users");
+
+		RecordingCache first = registry.getInstance(config, "a", FACTORY);
+		RecordingCache second = registry.getInstance(config, "b", FACTORY);
+		RecordingCache other = registry.getInstance(
+				createConfiguration("admins"), "a", FACTORY);
+
+		registry.invalidate(config, "berti");
+		registry.invalidateAll(config);
+
+		assertEquals("[berti, *]", first.events.toString());
+		assertEquals("[berti, *]", second.events.toString());
+		assertTrue(other.events.isEmpty());
+
+	}
+
+	private static MongoConfiguration createConfiguration(String collection)
+			throws Exception {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, "localhost:27017");
+		options.put(MongoConfiguration.DATABASE, "unitdb");
+		options.put(MongoConfiguration.USER_COLLECTION, collection);
+		return new MongoConfigurationBuilder(null, options).build();
+	}
+
+	private static final StoreRegistry.CacheFactory<RecordingCache> FACTORY = new StoreRegistry.CacheFactory<RecordingCache>() {
+		@Override
+		public RecordingCache createCache(MongoConfiguration configuration) {
+			return new RecordingCache();
+		}
+	};
+
+	private static class RecordingCache implements StoreRegistry.StoreCache {
+
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void invalidate(String username) {
+			events.add(username);
+		}
+
+		@Override
+		public void clear() {
+			events.add("*");
+		}
+
+	}
+
+}
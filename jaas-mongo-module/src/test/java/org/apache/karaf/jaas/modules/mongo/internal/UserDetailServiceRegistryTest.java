@@ -0,0 +1,142 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.karaf.jaas.modules.mongo.AsyncUserDetailService;
+import org.apache.karaf.jaas.modules.mongo.MongoConfiguration;
+import org.apache.karaf.jaas.modules.mongo.MongoConfigurationBuilder;
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.apache.karaf.jaas.modules.mongo.UserInfo;
+import org.apache.karaf.jaas.modules.mongo.testutil.MongoRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UserDetailServiceRegistryTest {
+
+	@Rule
+	// this will start and stop mongodb for every test
+	public MongoRule mongo = new MongoRule().port(27099);
+
+	@After
+	public void releaseSharedResources() throws Exception {
+		// the shared clients would keep connections to the stopped server
+		new Activator().stop(null);
+	}
+
+	@Test
+	public void testReusesServiceOfSameOptions() throws Exception {
+
+		UserDetailService service = UserDetailServiceRegistry.getService(null,
+				createOptions());
+
+		assertSame(service,
+				UserDetailServiceRegistry.getService(null, createOptions()));
+		assertSame(UserDetailServiceRegistry.getAsyncService(null,
+				createOptions()), UserDetailServiceRegistry.getAsyncService(
+				null, createOptions()));
+
+		// the shared service reads the store of the options
+		service.addUser(new UserInfo("berti", "secret"));
+		assertEquals("secret", UserDetailServiceRegistry
+				.getService(null, createOptions()).getUserInfo("berti")
+				.getPassword());
+
+	}
+
+	@Test
+	public void testIgnoresObjectsHandedInByContainer() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put("bundle.context", new Object());
+
+		Map<String, Object> otherOptions = createOptions();
+		otherOptions.put("bundle.context", new Object());
+
+		assertSame(UserDetailServiceRegistry.getService(null, options),
+				UserDetailServiceRegistry.getService(null, otherOptions));
+
+	}
+
+	@Test
+	public void testBuildsServiceOfOtherOptions() throws Exception {
+
+		Map<String, Object> options = createOptions();
+		options.put(MongoConfiguration.USER_COLLECTION, "people");
+
+		UserDetailService service = UserDetailServiceRegistry.getService(null,
+				createOptions());
+		UserDetailService otherService = UserDetailServiceRegistry.getService(
+				null, options);
+
+		assertNotSame(service, otherService);
+		assertEquals("people", otherService.getConfiguration()
+				.getUserCollectionName());
+
+	}
+
+	@Test
+	public void testClearBuildsNewService() throws Exception {
+
+		UserDetailService service = UserDetailServiceRegistry.getService(null,
+				createOptions());
+
+		UserDetailServiceRegistry.clear();
+
+		assertNotSame(service,
+				UserDetailServiceRegistry.getService(null, createOptions()));
+
+	}
+
+	@Test
+	public void testSharesAdapterOfSameStore() throws Exception {
+
+		AsyncUserDetailService asyncService = UserDetailServiceRegistry
+				.getAsyncService(createService());
+
+		assertSame(asyncService,
+				UserDetailServiceRegistry.getAsyncService(createService()));
+
+	}
+
+	private UserDetailService createService() throws Exception {
+		// a backing engine builds its own service for each engine
+		return new DefaultUserDetailService(new MongoConfigurationBuilder(
+				null, createOptions()).build());
+	}
+
+	private Map<String, Object> createOptions() {
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(MongoConfiguration.DATASOURCE, mongo.getMongoHost() + ":"
+				+ mongo.getMongoPort());
+		options.put(MongoConfiguration.DATABASE, MongoRule.UNIT_TEST_DB);
+		options.put(MongoConfiguration.INDEX_PROVISION, "false");
+		options.put(MongoConfiguration.INDEX_VERIFY, "false");
+		return options;
+
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.karaf.jaas.modules.mongo.internal;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.karaf.jaas.modules.mongo.UserDetailService;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class UserNameIteratorTest {
+
+	@Test
+	public void testIteratesAllPages() throws Exception {
+
+		UserDetailService service = createService(7);
+
+		List<String> names = new ArrayList<String>();
+		for (Iterator<String> it = new UserNameIterator(service, 3); it
+				.hasNext();) {
+			names.add(it.next());
+		}
+
+		assertEquals(7, names.size());
+		assertEquals("user00", names.get(0));
+		assertEquals("user06", names.get(6));
+
+		// two full pages and a short one
+		verify(service, times(3)).getUserNames(anyString(), eq(3));
+
+	}
+
+	@Test
+	public void testStopsAfterFullLastPage() throws Exception {
+
+		UserDetailService service = createService(6);
+
+		Iterator<String> it = new UserNameIterator(service, 3);
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+
+		assertEquals(6, count);
+		// the empty page ends the iteration
+		verify(service, times(3)).getUserNames(anyString(), eq(3));
+		assertFalse(it.hasNext());
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsEmptyPages() throws Exception {
+		new UserNameIterator(createService(1), 0);
+	}
+
+	private UserDetailService createService(int users) throws Exception {
+
+		final List<String> names = new ArrayList<String>();
+		for (int i = 0; i < users; i++) {
+			names.add(String.format("user%02d", i));
+		}
+
+		UserDetailService service = mock(UserDetailService.class);
+		when(service.getUserNames(anyString(), anyInt())).thenAnswer(
+				new Answer<List<String>>() {
+					@Override
+					public List<String> answer(InvocationOnMock invocation) {
+						String after = (String) invocation.getArguments()[0];
+						int limit = (Integer) invocation.getArguments()[1];
+						List<String> page = new ArrayList<String>();
+						for (String name : names) {
+							if (page.size() < limit
+									&& (after == null || name.compareTo(after) > 0)) {
+								page.add(name);
+							}
+						}
+						return page;
+					}
+				});
+		return service;
+
+	}
+
+}
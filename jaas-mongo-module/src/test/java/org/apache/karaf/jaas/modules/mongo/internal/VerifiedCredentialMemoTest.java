@@ -19,24 +19,25 @@
  */
 package org.apache.karaf.jaas.modules.mongo.internal;
 
-import com.mongodb.MongoClient;
+import static org.junit.Assert.*;
 
-/**
- * Expiration listener to clean up the {@link MongoClient} resource.
- * 
- * @author Niels Bertram
- *
- */
-public class MongoClientExpirationListener implements
-		ExpirationListener<MongoClient> {
+import org.junit.Test;
+
+public class VerifiedCredentialMemoTest {
 
-	@Override
-	public void expired(MongoClient client) {
+	@Test
+	public void testPasswordChangeMissesMemo() {
 
-		try {
-			client.close();
-		} catch (Exception e) {
-		}
+		VerifiedCredentialMemo memo = new VerifiedCredentialMemo(60, 10);
+		memo.put("berti", "secret", "hash-1");
+
+		assertTrue(memo.isVerified("berti", "secret", "hash-1"));
+
+		// the stored hash changed since the password was verified
+		assertFalse(memo.isVerified("berti", "secret", "hash-2"));
+		assertFalse(memo.isVerified("berti", "other", "hash-1"));
+		assertFalse(memo.isVerified("fred", "secret", "hash-1"));
 
 	}
+
 }
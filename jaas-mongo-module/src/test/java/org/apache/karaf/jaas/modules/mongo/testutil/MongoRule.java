@@ -25,6 +25,8 @@ import org.junit.runners.model.Statement;
 
 import com.mongodb.MongoClient;
 
+import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
+
 /**
  * 
  * This rule will start the mongo server before a test starts and ends the mongo
@@ -36,6 +38,8 @@ import com.mongodb.MongoClient;
  * import org.junit.Test;
  * 
  * import com.mongodb.MongoClient;
+
+import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
  * 
  * public class MongoRuleTest {
  * 
@@ -165,4 +169,13 @@ public class MongoRule implements TestRule {
 		return this;
 	}
 
+	/**
+	 * @param version
+	 *            the version of the mongo server to start, 2.6.1 unless set
+	 */
+	public MongoRule version(IFeatureAwareVersion version) {
+		this.testCase.setMongoVersion(version);
+		return this;
+	}
+
 }
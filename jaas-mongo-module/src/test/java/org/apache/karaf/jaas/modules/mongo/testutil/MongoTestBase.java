@@ -30,6 +30,7 @@ import de.flapdoodle.embed.mongo.MongodStarter;
 import de.flapdoodle.embed.mongo.config.IMongodConfig;
 import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
 import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
 
@@ -44,6 +45,7 @@ public abstract class MongoTestBase {
 
 	private String mongodHost = "localhost";
 	private int mongodPort = 27017;
+	private IFeatureAwareVersion mongodVersion = Version.V2_6_1;
 
 	protected MongodExecutable mongoExec = null;
 	protected MongodProcess mongod = null;
@@ -64,7 +66,7 @@ public abstract class MongoTestBase {
 		MongodStarter runtime = MongodStarter.getDefaultInstance();
 
 		IMongodConfig mongodConfig = new MongodConfigBuilder()
-				.version(Version.Main.PRODUCTION)
+				.version(mongodVersion)
 				.net(new Net(mongodPort, Network.localhostIsIPv6())).build();
 
 		mongoExec = runtime.prepare(mongodConfig);
@@ -107,6 +109,14 @@ public abstract class MongoTestBase {
 		this.mongodPort = port;
 	}
 
+	public IFeatureAwareVersion getMongoVersion() {
+		return mongodVersion;
+	}
+
+	protected void setMongoVersion(IFeatureAwareVersion version) {
+		this.mongodVersion = version;
+	}
+
 	protected MongoClient getMongoClient() {
 		return mongoClient;
 	}
@@ -121,4 +131,9 @@ public abstract class MongoTestBase {
 		return this;
 	}
 
+	protected MongoTestBase withMongoVersion(IFeatureAwareVersion version) {
+		setMongoVersion(version);
+		return this;
+	}
+
 }